@@ -0,0 +1,71 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Бенчмарк встречных переводов между небольшим набором счетов из многих потоков:
+ * переводы через очереди операций с отменой ({@link BankService#transferFunds})
+ * против атомарных переводов под блокировками ({@link BankService#transferFundsAtomic}).
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AtomicTransferBenchmark {
+
+    /**
+     * Количество счетов, между которыми выполняются переводы.
+     */
+    private static final int ACCOUNTS = 16;
+
+    /**
+     * Начальный баланс счетов, которого хватит на любое количество итераций.
+     */
+    private static final long BALANCE = Long.MAX_VALUE / 4 / ACCOUNTS;
+
+    /**
+     * Способ перевода.
+     */
+    public enum TransferMode {
+        QUEUE, STRIPED
+    }
+
+    @Param
+    TransferMode mode;
+
+    BankService bankService;
+    BankAccount[] accounts;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkRunner.silenceConsole();
+        bankService = new BankService(ExecutionMode.CALLER);
+        accounts = new BankAccount[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accounts[i] = new BankAccount("Счёт " + i, BALANCE);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        bankService.close();
+    }
+
+    @Benchmark
+    @Threads(9)
+    public void randomPairs() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int sender = random.nextInt(ACCOUNTS);
+        int receiver = (sender + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+        if (mode == TransferMode.STRIPED) {
+            bankService.transferFundsAtomic(accounts[sender], accounts[receiver], 1);
+        } else {
+            bankService.transferFunds(accounts[sender], accounts[receiver], 1);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Запуск бенчмарков банка. Всегда подключает GC-профайлер (скорость выделения памяти)
+ * и сохраняет результаты в jmh-result.json, чтобы их можно было сравнивать между версиями.
+ * Остальные параметры передаются как обычные параметры JMH, например:
+ * <pre>
+ * mvn -f jmh/pom.xml package
+ * java -jar jmh/target/benchmarks.jar TransferBenchmark -t 9
+ * </pre>
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("jmh-result.json")
+                .build();
+        new Runner(options).run();
+    }
+
+    /**
+     * Отключение вывода в консоль в процессе бенчмарка: сообщения операций и транзакций
+     * не должны смешиваться с выводом JMH. Стоимость их форматирования при этом остаётся в замерах.
+     */
+    static void silenceConsole() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+}
@@ -0,0 +1,79 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Бенчмарк перевода средств через {@link ShardedEngine} в зависимости от количества шардов:
+ * независимые пары счетов и много отправителей на одного получателя.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShardedTransferBenchmark {
+
+    /**
+     * Начальный баланс отправителей, которого хватит на любое количество итераций.
+     */
+    private static final long BALANCE = Long.MAX_VALUE / 4;
+
+    /**
+     * Счётчик для уникальных номеров счетов.
+     */
+    private static final AtomicInteger ACCOUNT_NUMBERS = new AtomicInteger();
+
+    /**
+     * Движок и общий для всех потоков получатель.
+     */
+    @State(Scope.Benchmark)
+    public static class Shared {
+        @Param({"1", "4", "8"})
+        int shards;
+
+        ShardedEngine engine;
+        BankAccount receiver;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            engine = new ShardedEngine(shards, (id, sender, receiver, amount, successful) -> {
+            });
+            receiver = new BankAccount("Получатель", 0);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            engine.close();
+        }
+    }
+
+    /**
+     * Собственная пара счетов каждого потока.
+     */
+    @State(Scope.Thread)
+    public static class Pair {
+        BankAccount sender;
+        BankAccount receiver;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            sender = new BankAccount("Отправитель " + ACCOUNT_NUMBERS.incrementAndGet(), BALANCE);
+            receiver = new BankAccount("Получатель " + ACCOUNT_NUMBERS.incrementAndGet(), 0);
+        }
+    }
+
+    @Benchmark
+    @Threads(9)
+    public TransferResult uncontendedPairs(Shared shared, Pair pair) {
+        return shared.engine.transfer(pair.sender, pair.receiver, 1).join();
+    }
+
+    @Benchmark
+    @Threads(9)
+    public TransferResult contendedFanIn(Shared shared, Pair pair) {
+        return shared.engine.transfer(pair.sender, shared.receiver, 1).join();
+    }
+}
@@ -0,0 +1,76 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Бенчмарк операционной очереди: постановка и разбор операций без изменения баланса,
+ * чтобы замерялась только стоимость самой очереди.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TaskQueueBenchmark {
+
+    /**
+     * Количество операций, которые ставятся в очередь перед одним разбором.
+     */
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * Счёт, к которому привязаны пустые операции.
+     */
+    private static final BankAccount ACCOUNT = new BankAccount("Счёт", 0);
+
+    /**
+     * Очередь, разбираемая одним потоком.
+     */
+    @State(Scope.Thread)
+    public static class OwnQueue {
+        TaskQueue taskQueue = new TaskQueue();
+    }
+
+    /**
+     * Очередь, в которую одновременно пишут все потоки.
+     */
+    @State(Scope.Benchmark)
+    public static class SharedQueue {
+        TaskQueue taskQueue = new TaskQueue();
+    }
+
+    /**
+     * Пустая операция: выполняется очередью, но ничего не делает.
+     *
+     * @return Новая операция.
+     */
+    private static Operation noop() {
+        return new Operation(ACCOUNT, 0, null) {
+            @Override
+            public void operate() {
+            }
+        };
+    }
+
+    @Benchmark
+    public Object submit(OwnQueue state) {
+        return state.taskQueue.submit(noop());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void enqueueThenDrain(OwnQueue state) {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            state.taskQueue.offer(noop());
+        }
+        state.taskQueue.process();
+    }
+
+    @Benchmark
+    @Threads(9)
+    public Object contendedSubmit(SharedQueue state) {
+        return state.taskQueue.submit(noop());
+    }
+}
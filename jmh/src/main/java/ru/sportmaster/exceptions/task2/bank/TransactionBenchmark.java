@@ -0,0 +1,98 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import org.openjdk.jmh.annotations.*;
+import ru.sportmaster.exceptions.task2.bank.journal.TransactionJournal;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Бенчмарк создания транзакции: идентификатор, операции списания и зачисления, а также перевода
+ * на повторно используемых транзакциях без журнала, который в установившемся режиме не должен выделять память,
+ * и отклонённых переводов: при проверке параметров и при замороженном счёте отправителя,
+ * в том числе проверкой на мошенничество до постановки в очереди, а также перевода между счетами с лимитами списаний.
+ * Выделение памяти на одну транзакцию показывает GC-профайлер (gc.alloc.rate.norm).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TransactionBenchmark {
+
+    private final BankAccount sender = new BankAccount("Отправитель", 0);
+    private final BankAccount receiver = new BankAccount("Получатель", 0);
+    private final BankAccount first = new BankAccount("Первый", 1);
+    private final BankAccount second = new BankAccount("Второй", 0);
+    private final BankService bankService = new BankService(ExecutionMode.CALLER, TransactionJournal.NONE);
+    private final BankAccount fraud = fraudAccount();
+    private final BankService screenedService = new BankService(ExecutionMode.CALLER, TransactionJournal.NONE,
+            TransferMetrics.NONE, 65_536, new FraudScreening(new FrozenAccounts(1024), 1024, Duration.ofMinutes(1),
+            Long.MAX_VALUE, Long.MAX_VALUE));
+    private final BankAccount limitedFirst = limitedAccount("Первый с лимитом", 1);
+    private final BankAccount limitedSecond = limitedAccount("Второй с лимитом", 0);
+    private boolean forward;
+
+    private static BankAccount limitedAccount(String accountNumber, long balance) {
+        BankAccount account = new BankAccount(accountNumber, balance);
+        account.setVelocityLimit(new VelocityLimit(Duration.ofMinutes(1), Long.MAX_VALUE, Long.MAX_VALUE));
+        return account;
+    }
+
+    private static BankAccount fraudAccount() {
+        BankAccount account = new BankAccount("Мошенник", 1);
+        account.setFraud(true);
+        return account;
+    }
+
+    @Benchmark
+    public Transaction allocate() {
+        return new Transaction(sender, receiver, 1);
+    }
+
+    @Benchmark
+    public void recycledTransfer() {
+        forward = !forward;
+        if (forward) {
+            bankService.transferFunds(first, second, 1);
+        } else {
+            bankService.transferFunds(second, first, 1);
+        }
+    }
+
+    @Benchmark
+    public void limitedTransfer() {
+        forward = !forward;
+        if (forward) {
+            bankService.transferFunds(limitedFirst, limitedSecond, 1);
+        } else {
+            bankService.transferFunds(limitedSecond, limitedFirst, 1);
+        }
+    }
+
+    @Benchmark
+    public TransferOutcome rejectedSameAccount() {
+        return bankService.transferFunds(first, first, 1);
+    }
+
+    @Benchmark
+    public TransferOutcome rejectedFraud() {
+        return bankService.transferFunds(fraud, first, 1);
+    }
+
+    @Benchmark
+    public TransferOutcome screenedFraud() {
+        return screenedService.transferFunds(fraud, first, 1);
+    }
+
+    @Benchmark
+    public void screenedTransfer() {
+        forward = !forward;
+        if (forward) {
+            screenedService.transferFunds(first, second, 1);
+        } else {
+            screenedService.transferFunds(second, first, 1);
+        }
+    }
+}
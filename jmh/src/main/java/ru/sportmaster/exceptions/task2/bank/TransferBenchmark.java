@@ -0,0 +1,90 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Бенчмарк перевода средств через {@link BankService#transferFunds}:
+ * один поток, много отправителей на одного получателя (обычный и горячий счёт) и независимые пары счетов.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+    /**
+     * Начальный баланс отправителей, которого хватит на любое количество итераций.
+     */
+    private static final long BALANCE = Long.MAX_VALUE / 4;
+
+    /**
+     * Счётчик для уникальных номеров счетов.
+     */
+    private static final AtomicInteger ACCOUNT_NUMBERS = new AtomicInteger();
+
+    /**
+     * Сервис и общий для всех потоков получатель.
+     */
+    @State(Scope.Benchmark)
+    public static class Shared {
+        BankService bankService;
+        BankAccount receiver;
+        BankAccount hotReceiver;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            BenchmarkRunner.silenceConsole();
+            bankService = new BankService(ExecutionMode.CALLER);
+            receiver = new BankAccount("Получатель", 0);
+            hotReceiver = BankAccount.hot("Горячий получатель", 0, 16, AccountLog.NONE);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            bankService.close();
+        }
+    }
+
+    /**
+     * Собственная пара счетов каждого потока.
+     */
+    @State(Scope.Thread)
+    public static class Pair {
+        BankAccount sender;
+        BankAccount receiver;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            sender = new BankAccount("Отправитель " + ACCOUNT_NUMBERS.incrementAndGet(), BALANCE);
+            receiver = new BankAccount("Получатель " + ACCOUNT_NUMBERS.incrementAndGet(), 0);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void singleThread(Shared shared, Pair pair) {
+        shared.bankService.transferFunds(pair.sender, pair.receiver, 1);
+    }
+
+    @Benchmark
+    @Threads(9)
+    public void contendedFanIn(Shared shared, Pair pair) {
+        shared.bankService.transferFunds(pair.sender, shared.receiver, 1);
+    }
+
+    @Benchmark
+    @Threads(9)
+    public void contendedFanInHot(Shared shared, Pair pair) {
+        shared.bankService.transferFunds(pair.sender, shared.hotReceiver, 1);
+    }
+
+    @Benchmark
+    @Threads(9)
+    public void uncontendedPairs(Shared shared, Pair pair) {
+        shared.bankService.transferFunds(pair.sender, pair.receiver, 1);
+    }
+}
@@ -0,0 +1,80 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import java.util.function.Consumer;
+
+/**
+ * Журнал изменений счёта. Получает уведомления обо всех применённых к счёту изменениях,
+ * чтобы состояние счетов можно было восстановить после перезапуска.
+ * Вызывается на пути выполнения операций, поэтому реализация должна быть потокобезопасной.
+ * По умолчанию все методы ничего не делают.
+ */
+public interface AccountLog {
+
+    /**
+     * Журнал, который ничего не записывает. Используется для счетов без журнала.
+     */
+    AccountLog NONE = new AccountLog() {
+    };
+
+    /**
+     * Открытие счёта (или восстановление счёта с указанным состоянием).
+     *
+     * @param state Состояние счёта.
+     */
+    default void opened(AccountState state) {
+    }
+
+    /**
+     * Изменение баланса счёта.
+     *
+     * @param accountNumber Номер счёта.
+     * @param delta         Изменение баланса в копейках (для списания отрицательное).
+     */
+    default void balanceChanged(String accountNumber, long delta) {
+    }
+
+    /**
+     * Изменение балансов группы счетов с числовыми номерами, например при массовом начислении процентов.
+     * По умолчанию изменения передаются по одному в {@link #balanceChanged}.
+     *
+     * @param accountNumbers Номера счетов.
+     * @param deltas         Изменения балансов в копейках.
+     * @param count          Количество изменений в начале массивов.
+     */
+    default void balancesChanged(long[] accountNumbers, long[] deltas, int count) {
+        for (int i = 0; i < count; i++) {
+            balanceChanged(Long.toString(accountNumbers[i]), deltas[i]);
+        }
+    }
+
+    /**
+     * Изменение признака мошеннического счёта.
+     *
+     * @param accountNumber Номер счёта.
+     * @param fraud         Новое значение признака.
+     */
+    default void fraudChanged(String accountNumber, boolean fraud) {
+    }
+
+    /**
+     * Закрытие счёта.
+     *
+     * @param accountNumber Номер счёта.
+     */
+    default void closed(String accountNumber) {
+    }
+
+    /**
+     * Выполнение действия после надёжного сохранения всех записей, принятых журналом до вызова.
+     * Так перевод подтверждается только после того, как его изменения переживут сбой (group commit):
+     * действие выполняется после записи группы, в которую попали изменения, а не после каждой записи.
+     * По умолчанию журнал ничего не сохраняет, и действие выполняется сразу в вызывающем потоке.
+     * Реализация не должна выполнять действие в потоке, который пишет журнал: действие завершает
+     * future перевода, а продолжения вызывающего могут сами ждать сохранения записей.
+     *
+     * @param action Действие, получает null или ошибку журнала, из-за которой записи не сохранены.
+     */
+    default void whenDurable(Consumer<Throwable> action) {
+        action.accept(null);
+    }
+}
@@ -0,0 +1,732 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import ru.sportmaster.exceptions.task2.bank.exceptions.*;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Реестр счетов с поиском по числовому номеру счёта, рассчитанный на десятки миллионов
+ * в основном неактивных счетов.
+ * <p>
+ * Состояние счетов хранится не в объектах, а в примитивных массивах: индекс с открытой адресацией
+ * (номер счёта - номер ячейки) и страницы балансов и признаков по номеру ячейки. На один счёт
+ * приходится около 35 байт вместо объекта счёта, строки с номером и очереди операций.
+ * Ячейка счёта никогда не перемещается, поэтому баланс меняется CAS прямо в массиве,
+ * а при росте реестра перестраивается только индекс.
+ * <p>
+ * {@link #get(long)} возвращает лёгкое представление счёта ({@link BankAccount}), которое можно
+ * передавать в {@link BankService}: все его изменения применяются к массивам реестра.
+ * Очереди операций берутся из ограниченного набора по номеру ячейки и создаются при первой операции:
+ * счёт делит очередь с другими счетами, зато память на очереди не растёт с числом счетов,
+ * когда-либо участвовавших в переводах.
+ * <p>
+ * Поиск и изменение баланса не блокируются. Открытие счетов выполняется под блокировкой.
+ * Массовое начисление по всем счетам ({@link #accrue}) выполняется параллельно и одновременно с переводами.
+ */
+public class AccountRegistry {
+
+    /**
+     * Дескриптор элементов массива long для атомарного изменения балансов.
+     */
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /**
+     * Дескриптор элементов массива byte для атомарного изменения признаков.
+     */
+    private static final VarHandle BYTES = MethodHandles.arrayElementVarHandle(byte[].class);
+
+    /**
+     * Размер страницы балансов и признаков - степень двойки.
+     */
+    private static final int PAGE_SHIFT = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /**
+     * Признак мошеннического счёта.
+     */
+    private static final byte FRAUD = 1;
+
+    /**
+     * Признак закрытого счёта.
+     */
+    private static final byte CLOSED = 2;
+
+    /**
+     * Признак идущего закрытия счёта: устанавливается до проверки баланса при закрытии,
+     * зачисление, увидевшее его, дожидается итога закрытия (см. {@link #tryCredit(int, long, long)}).
+     */
+    private static final byte CLOSING = 4;
+
+    /**
+     * Признак счёта с лимитом списаний, сам лимит хранится в {@link #velocityLimits}.
+     */
+    private static final byte LIMITED = 8;
+
+    /**
+     * Количество изменений балансов, передаваемых в журнал одним пакетом при массовом начислении.
+     */
+    private static final int ACCRUAL_BATCH = 1024;
+
+    /**
+     * Количество очередей операций реестра (степень двойки).
+     */
+    private static final int MAILBOXES = 4096;
+
+    /**
+     * Пустой ключ индекса. Номера счетов должны быть неотрицательными.
+     */
+    private static final long EMPTY = -1;
+
+    /**
+     * Индекс с открытой адресацией и линейным пробированием: номер счёта - номер ячейки.
+     */
+    private static final class Index {
+        final long[] keys;
+        final int[] slots;
+        final int mask;
+
+        Index(int capacity) {
+            keys = new long[capacity];
+            slots = new int[capacity];
+            mask = capacity - 1;
+            Arrays.fill(keys, EMPTY);
+        }
+    }
+
+    /**
+     * Текущий индекс. При росте заменяется новым целиком.
+     */
+    private volatile Index index;
+
+    /**
+     * Страницы балансов по номеру ячейки.
+     */
+    private volatile long[][] balances;
+
+    /**
+     * Страницы признаков по номеру ячейки.
+     */
+    private volatile byte[][] flags;
+
+    /**
+     * Количество счетов. Изменяется под блокировкой открытия.
+     */
+    private int size;
+
+    /**
+     * Блокировка открытия счетов.
+     */
+    private final ReentrantLock openLock;
+
+    /**
+     * Очереди операций по номеру ячейки по модулю их количества, null - очередь ещё не понадобилась.
+     */
+    private final AtomicReferenceArray<TaskQueue> mailboxes;
+
+    /**
+     * Количество созданных очередей операций.
+     */
+    private final AtomicInteger mailboxCount;
+
+    /**
+     * Лимиты списаний по номеру ячейки. Лимиты есть у немногих счетов, поэтому хранятся отдельно
+     * от страниц, а признак {@link #LIMITED} позволяет не искать лимит у остальных счетов.
+     */
+    private final Map<Integer, VelocityLimit> velocityLimits;
+
+    /**
+     * Журнал изменений счетов.
+     */
+    private final AccountLog log;
+
+    /**
+     * Создание пустого реестра без журнала.
+     */
+    public AccountRegistry() {
+        this(1024, AccountLog.NONE);
+    }
+
+    /**
+     * Создание пустого реестра.
+     *
+     * @param expectedAccounts Ожидаемое количество счетов.
+     * @param log              Журнал изменений счетов.
+     */
+    public AccountRegistry(int expectedAccounts, AccountLog log) {
+        this.index = new Index(Integer.highestOneBit(Math.max(expectedAccounts, 8) * 2 - 1) * 2);
+        this.balances = new long[0][];
+        this.flags = new byte[0][];
+        this.openLock = new ReentrantLock();
+        this.mailboxes = new AtomicReferenceArray<>(MAILBOXES);
+        this.mailboxCount = new AtomicInteger();
+        this.velocityLimits = new ConcurrentHashMap<>();
+        this.log = log;
+    }
+
+    /**
+     * Открытие нового счёта.
+     *
+     * @param number  Номер счёта (неотрицательный).
+     * @param balance Баланс в копейках.
+     * @return Представление счёта.
+     */
+    public BankAccount open(long number, long balance) {
+        return restore(number, new AccountState(Long.toString(number), balance, false, false), true);
+    }
+
+    /**
+     * Восстановление счёта с указанным состоянием, например из снимка.
+     *
+     * @param state Состояние счёта, номер счёта должен быть числом.
+     * @return Представление счёта.
+     */
+    public BankAccount restore(AccountState state) {
+        return restore(Long.parseLong(state.accountNumber()), state, true);
+    }
+
+    /**
+     * Получение получателя восстановления: применяет к реестру состояния из снимка и изменения
+     * из журнала упреждающей записи по мере их чтения (см.
+     * {@link ru.sportmaster.exceptions.task2.bank.wal.SnapshotStore#recover(AccountLog)}),
+     * поэтому реестр восстанавливается без промежуточной копии всех счетов в памяти.
+     * Восстановленные изменения уже есть в журнале и повторно в журнал реестра не пишутся.
+     * Открытие существующего счёта заменяет его состояние.
+     *
+     * @return Получатель восстановления.
+     */
+    public AccountLog recovery() {
+        return new Recovery();
+    }
+
+    /**
+     * Добавление счёта в реестр.
+     *
+     * @param number Номер счёта.
+     * @param state  Состояние счёта.
+     * @param logged Записывать ли открытие в журнал реестра.
+     * @return Представление счёта.
+     */
+    private BankAccount restore(long number, AccountState state, boolean logged) {
+        if (number < 0) {
+            throw new IllegalArgumentException("Номер счёта должен быть неотрицательным: " + number);
+        }
+        if (state.balance() < 0) {
+            throw NegativeBalanceException.INSTANCE;
+        }
+        int slot;
+        openLock.lock();
+        try {
+            if (find(index, number) >= 0) {
+                throw new IllegalArgumentException("Счёт уже существует: " + number);
+            }
+            slot = size;
+            if ((slot >> PAGE_SHIFT) == balances.length) {
+                addPage();
+            }
+            balances[slot >> PAGE_SHIFT][slot & PAGE_MASK] = state.balance();
+            flags[slot >> PAGE_SHIFT][slot & PAGE_MASK] = flagsOf(state);
+            if ((size + 1) * 2 > index.keys.length) {
+                index = grow(index);
+            }
+            insert(index, number, slot);
+            size++;
+        } finally {
+            openLock.unlock();
+        }
+        if (logged) {
+            log.opened(state);
+        }
+        return new RegistryAccount(this, number, slot);
+    }
+
+    /**
+     * Поиск счёта по номеру.
+     *
+     * @param number Номер счёта.
+     * @return Представление счёта или null, если счёта нет.
+     */
+    public BankAccount get(long number) {
+        int slot = find(index, number);
+        return slot < 0 ? null : new RegistryAccount(this, number, slot);
+    }
+
+    /**
+     * Получение количества счетов.
+     *
+     * @return Количество счетов.
+     */
+    public int size() {
+        openLock.lock();
+        try {
+            return size;
+        } finally {
+            openLock.unlock();
+        }
+    }
+
+    /**
+     * Получение количества созданных очередей операций. Не превышает ни количества счетов,
+     * над которыми выполнялись операции, ни размера набора очередей.
+     *
+     * @return Количество очередей.
+     */
+    public int mailboxCount() {
+        return mailboxCount.get();
+    }
+
+    /**
+     * Массовое начисление или списание по всем счетам реестра, например процентов или платы за обслуживание.
+     * Индекс счетов делится на части, которые обрабатываются параллельно в общем пуле fork/join.
+     * Мошеннические и закрытые счета пропускаются. Изменение баланса вычисляется по текущему балансу
+     * и применяется через CAS, поэтому начисление можно выполнять одновременно с переводами:
+     * если перевод изменил баланс между чтением и CAS, изменение вычисляется заново.
+     * Списание не делает баланс отрицательным - списывается не больше остатка.
+     * Изменения передаются в журнал пакетами. Счета, открытые во время начисления, могут быть пропущены.
+     *
+     * @param rule Функция от баланса в копейках, возвращающая изменение баланса (для списания отрицательное).
+     * @return Итоги начисления.
+     */
+    public AccrualSummary accrue(LongUnaryOperator rule) {
+        Index snapshot = index;
+        int parts = (snapshot.keys.length + PAGE_SIZE - 1) >> PAGE_SHIFT;
+        return IntStream.range(0, parts).parallel()
+                .mapToObj(part -> accrue(snapshot, part << PAGE_SHIFT,
+                        Math.min(snapshot.keys.length, (part + 1) << PAGE_SHIFT), rule))
+                .reduce(AccrualSummary.EMPTY, AccrualSummary::plus);
+    }
+
+    /**
+     * Начисление по счетам части индекса.
+     *
+     * @param index Индекс счетов.
+     * @param from  Первая позиция индекса.
+     * @param to    Позиция индекса после последней.
+     * @param rule  Функция изменения баланса.
+     * @return Итоги начисления по части.
+     */
+    private AccrualSummary accrue(Index index, int from, int to, LongUnaryOperator rule) {
+        long[] numbers = log != AccountLog.NONE ? new long[ACCRUAL_BATCH] : null;
+        long[] deltas = log != AccountLog.NONE ? new long[ACCRUAL_BATCH] : null;
+        int batched = 0;
+        long accounts = 0;
+        long skipped = 0;
+        long total = 0;
+        for (int position = from; position < to; position++) {
+            long number = (long) LONGS.getAcquire(index.keys, position);
+            if (number == EMPTY) {
+                continue;
+            }
+            int slot = index.slots[position];
+            if ((flags(slot) & (FRAUD | CLOSED)) != 0) {
+                skipped++;
+                continue;
+            }
+            long delta = accrue(slot, rule);
+            if (delta == 0) {
+                continue;
+            }
+            accounts++;
+            total += delta;
+            if (numbers != null) {
+                numbers[batched] = number;
+                deltas[batched] = delta;
+                if (++batched == ACCRUAL_BATCH) {
+                    log.balancesChanged(numbers, deltas, batched);
+                    batched = 0;
+                }
+            }
+        }
+        if (batched > 0) {
+            log.balancesChanged(numbers, deltas, batched);
+        }
+        return new AccrualSummary(accounts, skipped, total);
+    }
+
+    /**
+     * Изменение баланса ячейки на величину, вычисленную по текущему балансу.
+     *
+     * @param slot Номер ячейки.
+     * @param rule Функция изменения баланса.
+     * @return Применённое изменение баланса.
+     */
+    private long accrue(int slot, LongUnaryOperator rule) {
+        long[] page = balances[slot >> PAGE_SHIFT];
+        int offset = slot & PAGE_MASK;
+        long current;
+        long delta;
+        do {
+            current = (long) LONGS.getVolatile(page, offset);
+            delta = Math.max(rule.applyAsLong(current), -current);
+        } while (delta != 0 && !LONGS.weakCompareAndSet(page, offset, current, current + delta));
+        return delta;
+    }
+
+    private static int find(Index index, long number) {
+        int position = hash(number) & index.mask;
+        while (true) {
+            long key = (long) LONGS.getAcquire(index.keys, position);
+            if (key == number) {
+                return index.slots[position];
+            }
+            if (key == EMPTY) {
+                return -1;
+            }
+            position = (position + 1) & index.mask;
+        }
+    }
+
+    /**
+     * Добавление ключа в индекс. Номер ячейки записывается до публикации ключа,
+     * поэтому читатель, увидевший ключ, видит и ячейку.
+     */
+    private static void insert(Index index, long number, int slot) {
+        int position = hash(number) & index.mask;
+        while (index.keys[position] != EMPTY) {
+            position = (position + 1) & index.mask;
+        }
+        index.slots[position] = slot;
+        LONGS.setRelease(index.keys, position, number);
+    }
+
+    private static Index grow(Index current) {
+        Index grown = new Index(current.keys.length * 2);
+        for (int i = 0; i < current.keys.length; i++) {
+            if (current.keys[i] != EMPTY) {
+                insert(grown, current.keys[i], current.slots[i]);
+            }
+        }
+        return grown;
+    }
+
+    private void addPage() {
+        long[][] balancePages = Arrays.copyOf(balances, balances.length + 1);
+        byte[][] flagPages = Arrays.copyOf(flags, flags.length + 1);
+        balancePages[balancePages.length - 1] = new long[PAGE_SIZE];
+        flagPages[flagPages.length - 1] = new byte[PAGE_SIZE];
+        flags = flagPages;
+        balances = balancePages;
+    }
+
+    private static int hash(long number) {
+        long h = number * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /*
+     * Операции над ячейкой счёта, используются представлениями счетов. Зачисление пишется в журнал
+     * до изменения баланса, списание отменяется, если журнал его не принял.
+     */
+
+    long balance(int slot) {
+        return (long) LONGS.getVolatile(balances[slot >> PAGE_SHIFT], slot & PAGE_MASK);
+    }
+
+    void credit(int slot, long number, long amount) {
+        if (log != AccountLog.NONE) {
+            log.balanceChanged(Long.toString(number), amount);
+        }
+        LONGS.getAndAdd(balances[slot >> PAGE_SHIFT], slot & PAGE_MASK, amount);
+    }
+
+    boolean tryDebit(int slot, long number, long amount) {
+        long[] page = balances[slot >> PAGE_SHIFT];
+        int offset = slot & PAGE_MASK;
+        long current;
+        do {
+            current = (long) LONGS.getVolatile(page, offset);
+            if (current < amount) {
+                return false;
+            }
+        } while (!LONGS.weakCompareAndSet(page, offset, current, current - amount));
+        if (log != AccountLog.NONE) {
+            try {
+                log.balanceChanged(Long.toString(number), -amount);
+            } catch (RuntimeException e) {
+                LONGS.getAndAdd(page, offset, amount);
+                throw e;
+            }
+        }
+        return true;
+    }
+
+    byte flags(int slot) {
+        return (byte) BYTES.getVolatile(flags[slot >> PAGE_SHIFT], slot & PAGE_MASK);
+    }
+
+    /*
+     * Признаки хранятся в одном байте, поэтому изменяются через compareAndExchange: одновременные
+     * пометка и закрытие не затирают друг друга, а проверки повторяются при каждой попытке.
+     */
+
+    void setFraud(int slot, long number, boolean fraud) {
+        byte[] page = flags[slot >> PAGE_SHIFT];
+        int offset = slot & PAGE_MASK;
+        byte current = (byte) BYTES.getVolatile(page, offset);
+        while (true) {
+            if ((current & CLOSED) != 0) {
+                throw TryToMarkAsFraudClosedAccountException.INSTANCE;
+            }
+            if (((current & FRAUD) != 0) == fraud) {
+                if (fraud) {
+                    throw AlreadyMarkedAsFraudException.INSTANCE;
+                }
+                throw AlreadyNonFraudulentException.INSTANCE;
+            }
+            byte updated = (byte) (fraud ? current | FRAUD : current & ~FRAUD);
+            byte witness = (byte) BYTES.compareAndExchange(page, offset, current, updated);
+            if (witness == current) {
+                break;
+            }
+            current = witness;
+        }
+        log.fraudChanged(Long.toString(number), fraud);
+    }
+
+    void setClosed(int slot, long number) {
+        byte[] page = flags[slot >> PAGE_SHIFT];
+        int offset = slot & PAGE_MASK;
+        byte current = (byte) BYTES.getVolatile(page, offset);
+        while (true) {
+            if ((current & CLOSED) != 0) {
+                throw AlreadyIsClosedException.INSTANCE;
+            }
+            if ((current & CLOSING) != 0) {
+                Thread.onSpinWait();
+                current = (byte) BYTES.getVolatile(page, offset);
+                continue;
+            }
+            byte witness = (byte) BYTES.compareAndExchange(page, offset, current, (byte) (current | CLOSING));
+            if (witness == current) {
+                break;
+            }
+            current = witness;
+        }
+        boolean closed = balance(slot) == 0;
+        current = (byte) BYTES.getVolatile(page, offset);
+        while (true) {
+            byte updated = (byte) ((current & ~CLOSING) | (closed ? CLOSED : 0));
+            byte witness = (byte) BYTES.compareAndExchange(page, offset, current, updated);
+            if (witness == current) {
+                break;
+            }
+            current = witness;
+        }
+        if (!closed) {
+            throw NonZeroBalanceException.INSTANCE;
+        }
+        log.closed(Long.toString(number));
+    }
+
+    /**
+     * Зачисление в переводе: на закрытый счёт средства не зачисляются. Сумма добавляется в баланс,
+     * затем проверяются признаки: закрытие устанавливает признак идущего закрытия до проверки баланса,
+     * поэтому либо закрытие увидит сумму, либо зачисление дождётся итога закрытия и вернёт сумму.
+     */
+    boolean tryCredit(int slot, long number, long amount) {
+        if ((flags(slot) & CLOSED) != 0) {
+            return false;
+        }
+        credit(slot, number, amount);
+        byte current;
+        while (((current = flags(slot)) & CLOSING) != 0) {
+            Thread.onSpinWait();
+        }
+        if ((current & CLOSED) != 0) {
+            credit(slot, number, -amount);
+            return false;
+        }
+        return true;
+    }
+
+    VelocityLimit velocityLimit(int slot) {
+        return (flags(slot) & LIMITED) != 0 ? velocityLimits.get(slot) : null;
+    }
+
+    /**
+     * Установка лимита списаний счёта. Лимит добавляется до установки признака и удаляется после его снятия,
+     * поэтому увидевший признак находит лимит.
+     */
+    void setVelocityLimit(int slot, VelocityLimit velocityLimit) {
+        byte[] page = flags[slot >> PAGE_SHIFT];
+        int offset = slot & PAGE_MASK;
+        if (velocityLimit != null) {
+            velocityLimits.put(slot, velocityLimit);
+            BYTES.getAndBitwiseOr(page, offset, LIMITED);
+        } else {
+            BYTES.getAndBitwiseAnd(page, offset, (byte) ~LIMITED);
+            velocityLimits.remove(slot);
+        }
+    }
+
+    TaskQueue mailbox(int slot) {
+        int stripe = slot & (MAILBOXES - 1);
+        TaskQueue queue = mailboxes.get(stripe);
+        if (queue == null) {
+            TaskQueue created = new TaskQueue();
+            queue = mailboxes.compareAndExchange(stripe, null, created);
+            if (queue == null) {
+                mailboxCount.incrementAndGet();
+                queue = created;
+            }
+        }
+        return queue;
+    }
+
+    private static byte flagsOf(AccountState state) {
+        return (byte) ((state.fraud() ? FRAUD : 0) | (state.closed() ? CLOSED : 0));
+    }
+
+    /**
+     * Применение восстановленных состояний и изменений к ячейкам реестра без записи в журнал.
+     */
+    private final class Recovery implements AccountLog {
+
+        @Override
+        public void opened(AccountState state) {
+            long number = Long.parseLong(state.accountNumber());
+            int slot = find(index, number);
+            if (slot < 0) {
+                restore(number, state, false);
+            } else {
+                LONGS.setVolatile(balances[slot >> PAGE_SHIFT], slot & PAGE_MASK, state.balance());
+                BYTES.setVolatile(flags[slot >> PAGE_SHIFT], slot & PAGE_MASK,
+                        (byte) (flags(slot) & LIMITED | flagsOf(state)));
+            }
+        }
+
+        @Override
+        public void balanceChanged(String accountNumber, long delta) {
+            int slot = slot(Long.parseLong(accountNumber));
+            LONGS.getAndAdd(balances[slot >> PAGE_SHIFT], slot & PAGE_MASK, delta);
+        }
+
+        @Override
+        public void balancesChanged(long[] accountNumbers, long[] deltas, int count) {
+            for (int i = 0; i < count; i++) {
+                int slot = slot(accountNumbers[i]);
+                LONGS.getAndAdd(balances[slot >> PAGE_SHIFT], slot & PAGE_MASK, deltas[i]);
+            }
+        }
+
+        @Override
+        public void fraudChanged(String accountNumber, boolean fraud) {
+            int slot = slot(Long.parseLong(accountNumber));
+            if (fraud) {
+                BYTES.getAndBitwiseOr(flags[slot >> PAGE_SHIFT], slot & PAGE_MASK, FRAUD);
+            } else {
+                BYTES.getAndBitwiseAnd(flags[slot >> PAGE_SHIFT], slot & PAGE_MASK, (byte) ~FRAUD);
+            }
+        }
+
+        @Override
+        public void closed(String accountNumber) {
+            int slot = slot(Long.parseLong(accountNumber));
+            BYTES.getAndBitwiseOr(flags[slot >> PAGE_SHIFT], slot & PAGE_MASK, CLOSED);
+        }
+
+        private int slot(long number) {
+            int slot = find(index, number);
+            if (slot < 0) {
+                throw new IllegalStateException("Журнал изменяет счёт, которого нет в реестре: " + number);
+            }
+            return slot;
+        }
+    }
+
+    /**
+     * Представление счёта из реестра. Не хранит состояние, а обращается к ячейке реестра.
+     * Представления одного счёта равны между собой.
+     */
+    private static final class RegistryAccount extends BankAccount {
+        private final AccountRegistry registry;
+        private final long number;
+        private final int slot;
+
+        RegistryAccount(AccountRegistry registry, long number, int slot) {
+            super(Long.toString(number));
+            this.registry = registry;
+            this.number = number;
+            this.slot = slot;
+        }
+
+        @Override
+        public long getBalance() {
+            return registry.balance(slot);
+        }
+
+        @Override
+        void credit(long amount) {
+            registry.credit(slot, number, amount);
+        }
+
+        @Override
+        boolean tryCredit(long amount) {
+            return registry.tryCredit(slot, number, amount);
+        }
+
+        @Override
+        boolean tryDebit(long amount) {
+            return registry.tryDebit(slot, number, amount);
+        }
+
+        @Override
+        public boolean isFraud() {
+            return (registry.flags(slot) & FRAUD) != 0;
+        }
+
+        @Override
+        public void setFraud(boolean fraud) {
+            registry.setFraud(slot, number, fraud);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return (registry.flags(slot) & CLOSED) != 0;
+        }
+
+        @Override
+        public void setClosed() {
+            registry.setClosed(slot, number);
+        }
+
+        @Override
+        public VelocityLimit getVelocityLimit() {
+            return registry.velocityLimit(slot);
+        }
+
+        @Override
+        public void setVelocityLimit(VelocityLimit velocityLimit) {
+            registry.setVelocityLimit(slot, velocityLimit);
+        }
+
+        @Override
+        AccountLog getLog() {
+            return registry.log;
+        }
+
+        @Override
+        public TaskQueue getTaskQueue() {
+            return registry.mailbox(slot);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof RegistryAccount other && other.registry == registry && other.slot == slot;
+        }
+
+        @Override
+        public int hashCode() {
+            return slot;
+        }
+    }
+}
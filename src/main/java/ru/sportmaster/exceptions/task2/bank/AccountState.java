@@ -0,0 +1,12 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+/**
+ * Состояние счёта на определённый момент времени. Используется для сохранения и восстановления счетов.
+ *
+ * @param accountNumber Номер счёта.
+ * @param balance       Баланс в копейках.
+ * @param fraud         Признак мошеннического счёта.
+ * @param closed        Признак закрытого счёта.
+ */
+public record AccountState(String accountNumber, long balance, boolean fraud, boolean closed) {
+}
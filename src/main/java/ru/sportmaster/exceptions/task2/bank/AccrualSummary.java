@@ -0,0 +1,26 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+/**
+ * Итоги массового начисления по счетам.
+ *
+ * @param accounts Количество счетов, баланс которых изменён.
+ * @param skipped  Количество пропущенных мошеннических и закрытых счетов.
+ * @param total    Суммарное изменение балансов в копейках.
+ */
+public record AccrualSummary(long accounts, long skipped, long total) {
+
+    /**
+     * Итоги без изменений.
+     */
+    public static final AccrualSummary EMPTY = new AccrualSummary(0, 0, 0);
+
+    /**
+     * Сложение итогов двух частей начисления.
+     *
+     * @param other Итоги другой части.
+     * @return Общие итоги.
+     */
+    public AccrualSummary plus(AccrualSummary other) {
+        return new AccrualSummary(accounts + other.accounts, skipped + other.skipped, total + other.total);
+    }
+}
@@ -2,52 +2,188 @@ package ru.sportmaster.exceptions.task2.bank;
 
 import ru.sportmaster.exceptions.task2.bank.exceptions.*;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
 /**
  * Класс реализует лицевой счёт клиента.
  */
 public class BankAccount {
+    /**
+     * Дескриптор поля баланса для атомарного изменения без блокировок.
+     */
+    private static final VarHandle BALANCE;
+
+    /**
+     * Дескриптор поля очереди операций для её создания при первом обращении.
+     */
+    private static final VarHandle TASK_QUEUE;
+
+    /**
+     * Дескриптор элементов массива ячеек зачислений горячего счёта.
+     */
+    private static final VarHandle CELLS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /**
+     * Шаг между ячейками зачислений в элементах массива: по ячейке на 128 байт, чтобы соседние
+     * ячейки не попадали в одну строку кэша.
+     */
+    private static final int CELL_STRIDE = 16;
+
+    static {
+        try {
+            BALANCE = MethodHandles.lookup().findVarHandle(BankAccount.class, "balance", long.class);
+            TASK_QUEUE = MethodHandles.lookup().findVarHandle(BankAccount.class, "taskQueue", TaskQueue.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     /**
      * Номер счёта.
      */
     private final String accountNumber;
 
     /**
-     * Баланс - количество денежных средств на счёте. Не может быть отрицательным.
+     * Баланс - количество денежных средств на счёте в копейках. Не может быть отрицательным.
      */
-    private double balance;
+    private volatile long balance;
 
     /**
      * Признак мошеннического счёта. Изменить признак может только специалист банка.
      * Если true - то запрет на получение/вывод денежных средств.
+     * Читается проверкой перед постановкой перевода в очереди из любого потока, поэтому volatile.
      */
-    private boolean isFraud;
+    private volatile boolean isFraud;
 
     /**
      * Признак закрытого счёта. Клиент может закрыть счёт самостоятельно или через
      * оператора банка. Счёт можно закрыть только при нулевом балансе.
      * Если true - счёт закрыт.
      */
-    private boolean isClosed;
+    private volatile boolean isClosed;
+
+    /**
+     * Признак идущего закрытия счёта. Устанавливается до проверки баланса при закрытии,
+     * чтобы зачисление, которое могло не попасть в эту проверку, перепроверило признак закрытия
+     * под блокировкой счёта (см. {@link #tryCredit}).
+     */
+    private volatile boolean isClosing;
+
+    /**
+     * Очередь операций для счёта. Создаётся при первой операции, чтобы счета без операций её не хранили.
+     */
+    private volatile TaskQueue taskQueue;
+
+    /**
+     * Лимит списаний за скользящее окно, null - без лимита.
+     */
+    private volatile VelocityLimit velocityLimit;
 
     /**
-     * Очередь операций для счёта.
+     * Журнал изменений счёта.
      */
-    private final TaskQueue taskQueue;
+    private final AccountLog log;
+
+    /**
+     * Ячейки зачислений горячего счёта, null - обычный счёт. Зачисления на горячий счёт не меняют
+     * баланс, а добавляются в ячейку вызывающего потока и сворачиваются в баланс только
+     * при чтении баланса, списании или закрытии счёта.
+     */
+    private final long[] cells;
 
     /**
      * Открытие нового счёта. По умолчанию создается с признаками не закрытого и не мошеннического.
      *
      * @param accountNumber Номер счёта.
-     * @param balance       Баланс на счёте.
+     * @param balance       Баланс на счёте в копейках.
      */
-    public BankAccount(String accountNumber, double balance) {
-        if (balance < 0) throw new NegativeBalanceException();
+    public BankAccount(String accountNumber, long balance) {
+        this(accountNumber, balance, AccountLog.NONE);
+    }
 
+    /**
+     * Открытие нового счёта с журналом изменений. Открытие счёта записывается в журнал.
+     *
+     * @param accountNumber Номер счёта.
+     * @param balance       Баланс на счёте в копейках.
+     * @param log           Журнал изменений счёта.
+     */
+    public BankAccount(String accountNumber, long balance, AccountLog log) {
+        this(new AccountState(accountNumber, balance, false, false), log, 0);
+    }
+
+    /**
+     * Открытие горячего счёта, который принимает зачисления от многих потоков одновременно
+     * (счёт торговца, расчётный счёт). Зачисления на такой счёт распределяются по ячейкам
+     * и не проходят через очередь операций счёта.
+     *
+     * @param accountNumber Номер счёта.
+     * @param balance       Баланс на счёте в копейках.
+     * @param stripes       Количество ячеек зачислений (степень двойки).
+     * @param log           Журнал изменений счёта.
+     * @return Горячий счёт.
+     */
+    public static BankAccount hot(String accountNumber, long balance, int stripes, AccountLog log) {
+        if (stripes <= 0 || Integer.bitCount(stripes) != 1) {
+            throw new IllegalArgumentException("Количество ячеек должно быть степенью двойки: " + stripes);
+        }
+        return new BankAccount(new AccountState(accountNumber, balance, false, false), log, stripes);
+    }
+
+    /**
+     * Создание счёта с указанным состоянием.
+     *
+     * @param state   Состояние счёта.
+     * @param log     Журнал изменений счёта.
+     * @param stripes Количество ячеек зачислений горячего счёта, 0 - обычный счёт.
+     */
+    private BankAccount(AccountState state, AccountLog log, int stripes) {
+        if (state.balance() < 0) throw NegativeBalanceException.INSTANCE;
+
+        this.accountNumber = state.accountNumber();
+        this.balance = state.balance();
+        this.isFraud = state.fraud();
+        this.isClosed = state.closed();
+        this.log = log;
+        this.cells = stripes == 0 ? null : new long[stripes * CELL_STRIDE];
+        log.opened(state);
+    }
+
+    /**
+     * Создание счёта-представления, состояние которого хранится вне объекта, в {@link AccountRegistry}.
+     *
+     * @param accountNumber Номер счёта.
+     */
+    BankAccount(String accountNumber) {
         this.accountNumber = accountNumber;
-        this.balance = balance;
-        this.isFraud = false;
-        this.isClosed = false;
-        this.taskQueue = new TaskQueue();
+        this.log = AccountLog.NONE;
+        this.cells = null;
+    }
+
+    /**
+     * Восстановление счёта из сохранённого состояния, например после перезапуска.
+     * Восстановленное состояние записывается в журнал как открытие счёта.
+     *
+     * @param state Сохранённое состояние счёта.
+     * @param log   Журнал изменений счёта.
+     * @return Восстановленный счёт.
+     */
+    public static BankAccount restore(AccountState state, AccountLog log) {
+        return new BankAccount(state, log, 0);
+    }
+
+    /**
+     * Получение текущего состояния счёта.
+     *
+     * @return Состояние счёта.
+     */
+    public AccountState getState() {
+        return new AccountState(accountNumber, getBalance(), isFraud(), isClosed());
     }
 
     /**
@@ -62,19 +198,261 @@ public class BankAccount {
     /**
      * Получение баланса счёта.
      *
-     * @return Количество денежных средств на балансе счёта.
+     * @return Количество денежных средств на балансе счёта в копейках.
      */
-    public synchronized double getBalance() {
+    public long getBalance() {
+        if (cells != null) {
+            synchronized (cells) {
+                fold();
+            }
+        }
         return balance;
     }
 
     /**
-     * Изменение баланса текущего счёта, используется только для отмены операций.
+     * Получение журнала изменений счёта.
+     *
+     * @return Журнал изменений.
+     */
+    AccountLog getLog() {
+        return log;
+    }
+
+    /**
+     * Выполнение действия после надёжного сохранения изменений двух счетов перевода.
+     * Обычно у счетов один журнал, и действие ждёт одну запись группы.
+     *
+     * @param sender   Счёт отправителя.
+     * @param receiver Счёт получателя.
+     * @param action   Действие, получает null или ошибку журнала.
+     */
+    static void whenDurable(BankAccount sender, BankAccount receiver, Consumer<Throwable> action) {
+        AccountLog senderLog = sender.getLog();
+        AccountLog receiverLog = receiver.getLog();
+        if (senderLog == receiverLog) {
+            senderLog.whenDurable(action);
+        } else {
+            senderLog.whenDurable(senderFailure -> receiverLog.whenDurable(
+                    receiverFailure -> action.accept(senderFailure != null ? senderFailure : receiverFailure)));
+        }
+    }
+
+    /**
+     * Выполнение действия после надёжного сохранения изменений группы счетов.
+     * Действие ждёт по одной записи группы в каждом из различных журналов счетов.
+     *
+     * @param accounts Счета.
+     * @param action   Действие, получает null или первую ошибку журнала.
+     */
+    static void whenDurable(Collection<? extends BankAccount> accounts, Consumer<Throwable> action) {
+        List<AccountLog> logs = new ArrayList<>(1);
+        for (BankAccount account : accounts) {
+            if (!logs.contains(account.getLog())) {
+                logs.add(account.getLog());
+            }
+        }
+        whenDurable(logs, 0, null, action);
+    }
+
+    private static void whenDurable(List<AccountLog> logs, int index, Throwable failure, Consumer<Throwable> action) {
+        if (index == logs.size()) {
+            action.accept(failure);
+            return;
+        }
+        logs.get(index).whenDurable(error -> whenDurable(logs, index + 1, failure != null ? failure : error, action));
+    }
+
+    /**
+     * Признак горячего счёта.
+     *
+     * @return true, если зачисления распределяются по ячейкам.
+     */
+    boolean isHot() {
+        return cells != null;
+    }
+
+    /**
+     * Зачисление средств на счёт. Выполняется одной атомарной операцией getAndAdd,
+     * поэтому не требует блокировок и всегда завершается за один шаг.
+     * На горячем счёте сумма добавляется в ячейку вызывающего потока, а не в баланс.
+     * Зачисление всегда выполнимо, поэтому сперва пишется в журнал: если журнал его не принял,
+     * то баланс не меняется.
+     *
+     * @param amount Сумма зачисления в копейках.
+     */
+    void credit(long amount) {
+        log.balanceChanged(accountNumber, amount);
+        if (cells != null) {
+            long hash = Thread.currentThread().threadId() * 0x9E3779B97F4A7C15L;
+            int cell = (int) (hash >>> 32) & (cells.length / CELL_STRIDE - 1);
+            CELLS.getAndAdd(cells, cell * CELL_STRIDE, amount);
+        } else {
+            BALANCE.getAndAdd(this, amount);
+        }
+    }
+
+    /**
+     * Зачисление средств в переводе: на закрытый счёт средства не зачисляются. Быстрый путь не блокируется:
+     * сумма добавляется в баланс (или в ячейку горячего счёта), затем проверяются признаки закрытия.
+     * Закрытие устанавливает признак идущего закрытия до проверки баланса, поэтому либо закрытие
+     * увидит зачисленную сумму и не состоится, либо зачисление увидит признак и перепроверит
+     * закрытие под блокировкой счёта, а если счёт закрыт - вернёт сумму.
+     *
+     * @param amount Сумма зачисления в копейках.
+     * @return true - средства зачислены, false - счёт закрыт.
+     */
+    boolean tryCredit(long amount) {
+        if (isClosed) {
+            return false;
+        }
+        credit(amount);
+        if (isClosing || isClosed) {
+            synchronized (monitor()) {
+                if (isClosed) {
+                    credit(-amount);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Получение блокировки счёта для сворачивания ячеек и закрытия.
      *
-     * @param balance Баланс текущего счёта.
+     * @return Ячейки горячего счёта или сам счёт.
      */
-    public synchronized void setBalance(double balance) {
-        this.balance = balance;
+    private Object monitor() {
+        return cells != null ? cells : this;
+    }
+
+    /**
+     * Сворачивание ячеек зачислений горячего счёта в баланс. Выполняется под блокировкой ячеек,
+     * чтобы сумма, изъятая из ячейки, не была временно невидима для другого сворачивания.
+     */
+    private void fold() {
+        for (int i = 0; i < cells.length; i += CELL_STRIDE) {
+            long amount = (long) CELLS.getAndSet(cells, i, 0L);
+            if (amount != 0) {
+                BALANCE.getAndAdd(this, amount);
+            }
+        }
+    }
+
+    /**
+     * Попытка списания средств со счёта. Проверка достаточности средств и списание
+     * выполняются в одном CAS-цикле, поэтому баланс не может уйти в минус даже
+     * при одновременных списаниях.
+     *
+     * @param amount Сумма списания в копейках.
+     * @return true - средства списаны, false - недостаточно средств на счёте.
+     */
+    boolean tryDebit(long amount) {
+        if (cells != null) {
+            synchronized (cells) {
+                fold();
+                return debit(amount);
+            }
+        }
+        return debit(amount);
+    }
+
+    /**
+     * Списание средств в переводе с учётом лимита списаний: сперва проверяется лимит, затем списываются
+     * средства, и только выполненное списание учитывается в лимите. Вызывается там, где списания счёта
+     * выполняются последовательно (в очереди счёта, в шарде-владельце или под блокировкой счёта).
+     *
+     * @param amount Сумма списания в копейках.
+     * @return Код отказа или null, если средства списаны.
+     */
+    TransferOutcome withdraw(long amount) {
+        return withdraw(amount, limitEpoch());
+    }
+
+    /**
+     * Списание средств в переводе с учётом лимита списаний в указанном периоде лимита.
+     * Период запоминается тем, кто может отменить списание, и передаётся в {@link #refund}.
+     *
+     * @param amount Сумма списания в копейках.
+     * @param epoch  Номер текущего периода лимита ({@link #limitEpoch()}).
+     * @return Код отказа или null, если средства списаны.
+     */
+    TransferOutcome withdraw(long amount, long epoch) {
+        VelocityLimit limit = getVelocityLimit();
+        if (limit == null) {
+            return tryDebit(amount) ? null : TransferOutcome.INSUFFICIENT_FUNDS;
+        }
+        if (!limit.allows(epoch, amount)) {
+            return TransferOutcome.VELOCITY_LIMIT;
+        }
+        if (!tryDebit(amount)) {
+            return TransferOutcome.INSUFFICIENT_FUNDS;
+        }
+        limit.record(epoch, amount);
+        return null;
+    }
+
+    /**
+     * Получение номера текущего периода лимита списаний.
+     *
+     * @return Номер периода или 0, если лимита нет.
+     */
+    long limitEpoch() {
+        VelocityLimit limit = getVelocityLimit();
+        return limit != null ? limit.epoch() : 0;
+    }
+
+    /**
+     * Отмена списания в переводе: средства возвращаются на счёт, а списание вычитается из лимита,
+     * чтобы отменённый перевод не расходовал лимит отправителя.
+     *
+     * @param amount Сумма списания в копейках.
+     * @param epoch  Номер периода лимита, в котором выполнено списание.
+     */
+    void refund(long amount, long epoch) {
+        credit(amount);
+        VelocityLimit limit = getVelocityLimit();
+        if (limit != null) {
+            limit.release(epoch, amount);
+        }
+    }
+
+    /**
+     * Получение лимита списаний.
+     *
+     * @return Лимит списаний или null, если лимита нет.
+     */
+    public VelocityLimit getVelocityLimit() {
+        return velocityLimit;
+    }
+
+    /**
+     * Установка лимита списаний за скользящее окно. Лимит хранится в объекте счёта
+     * (у счёта из реестра - в реестре, поэтому он действует для всех представлений счёта),
+     * учёт списаний начинается с момента установки.
+     *
+     * @param velocityLimit Лимит списаний или null, чтобы снять лимит.
+     */
+    public void setVelocityLimit(VelocityLimit velocityLimit) {
+        this.velocityLimit = velocityLimit;
+    }
+
+    private boolean debit(long amount) {
+        long current;
+        do {
+            current = balance;
+            if (current < amount) {
+                return false;
+            }
+        } while (!BALANCE.weakCompareAndSet(this, current, current - amount));
+        try {
+            log.balanceChanged(accountNumber, -amount);
+        } catch (RuntimeException e) {
+            // Журнал не принял списание: списание отменяется, чтобы баланс совпадал с журналом.
+            BALANCE.getAndAdd(this, amount);
+            throw e;
+        }
+        return true;
     }
 
     /**
@@ -97,14 +475,15 @@ public class BankAccount {
      */
     public void setFraud(boolean fraud) {
         if (isClosed) {
-            throw new TryToMarkAsFraudClosedAccountException();
+            throw TryToMarkAsFraudClosedAccountException.INSTANCE;
         }
         if (isFraud && fraud) {
-            throw new AlreadyMarkedAsFraudException();
+            throw AlreadyMarkedAsFraudException.INSTANCE;
         } else if (!isFraud && !fraud) {
-            throw new AlreadyNonFraudulentException();
+            throw AlreadyNonFraudulentException.INSTANCE;
         } else {
             isFraud = fraud;
+            log.fraudChanged(accountNumber, fraud);
         }
     }
 
@@ -122,31 +501,52 @@ public class BankAccount {
      * Клиент может закрыть счёт самостоятельно или через оператора банка.
      * Счёт можно закрыть только при нулевом балансе.
      * Закрытый счёт нельзя открыть.
+     * Баланс проверяется под блокировкой счёта (у горячего счёта - после сворачивания ячеек),
+     * а одновременное зачисление либо попадает в проверку, либо отменяется (см. {@link #tryCredit}).
      */
     public void setClosed() {
-        if (isClosed) {
-            throw new AlreadyIsClosedException();
-        }
-        if (balance != 0) {
-            throw new NonZeroBalanceException();
+        synchronized (monitor()) {
+            if (isClosed) {
+                throw AlreadyIsClosedException.INSTANCE;
+            }
+            isClosing = true;
+            try {
+                if (cells != null) {
+                    fold();
+                }
+                if (balance != 0) {
+                    throw NonZeroBalanceException.INSTANCE;
+                }
+                isClosed = true;
+            } finally {
+                isClosing = false;
+            }
         }
-        isClosed = true;
+        log.closed(accountNumber);
     }
 
     /**
-     * Получение операционной очереди текущего счёта.
+     * Получение операционной очереди текущего счёта. Очередь создаётся при первом обращении.
      *
      * @return Очередь операций.
      */
     public TaskQueue getTaskQueue() {
-        return taskQueue;
+        TaskQueue queue = taskQueue;
+        if (queue == null) {
+            queue = new TaskQueue();
+            TaskQueue witness = (TaskQueue) TASK_QUEUE.compareAndExchange(this, null, queue);
+            if (witness != null) {
+                queue = witness;
+            }
+        }
+        return queue;
     }
 
     @Override
     public String toString() {
         return "BankAccount{" +
                 "accountNumber='" + accountNumber + '\'' +
-                ", balance=" + balance +
+                ", balance=" + Money.format(getBalance()) +
                 '}';
     }
 
@@ -1,8 +1,37 @@
 package ru.sportmaster.exceptions.task2.bank;
 
+import ru.sportmaster.exceptions.task2.bank.exceptions.NonZeroBalanceException;
+import ru.sportmaster.exceptions.task2.bank.exceptions.TryToMarkAsFraudClosedAccountException;
+import ru.sportmaster.exceptions.task2.bank.journal.FileJournal;
+import ru.sportmaster.exceptions.task2.bank.journal.HistoryRecord;
+import ru.sportmaster.exceptions.task2.bank.journal.TransactionHistory;
+import ru.sportmaster.exceptions.task2.bank.journal.TransactionJournal;
+import ru.sportmaster.exceptions.task2.bank.metrics.BankMetrics;
+import ru.sportmaster.exceptions.task2.bank.metrics.MetricsSnapshot;
+import ru.sportmaster.exceptions.task2.bank.wal.Snapshot;
+import ru.sportmaster.exceptions.task2.bank.wal.SnapshotStore;
+import ru.sportmaster.exceptions.task2.bank.wal.WriteAheadLog;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
 public class BankApp {
 
@@ -16,19 +45,41 @@ public class BankApp {
         test2();
         test3();
         test4();
+        test5();
+        test6();
+        test7();
+        test8();
+        test9();
+        test10();
+        test11();
+        test12();
+        test13();
+        test14();
+        test15();
+        test16();
+        test17();
+        test18();
+        test19();
+        test20();
+        test21();
+        test22();
+        test23();
+        test24();
+        test25();
 //        stressTest(); //Осторожно, 9 миллионов транзакций за 3-4 минуты!!!
+//        stressTestOpenLoop(); //То же самое на виртуальных потоках, без ожидания после каждой пачки
     }
 
     /**
      * Успешный перевод всех дублонов с одного счёта на другой.
      */
     private static void test1() {
-        BankAccount account1 = new BankAccount("Счёт 1", 100);
-        BankAccount account2 = new BankAccount("Счёт 2", 100);
+        BankAccount account1 = new BankAccount("Счёт 1", Money.of(100));
+        BankAccount account2 = new BankAccount("Счёт 2", Money.of(100));
         BankService bankService = new BankService();
-        bankService.transferFunds(account1, account2, 100);
+        bankService.transferFunds(account1, account2, Money.of(100));
 
-        if (account1.getBalance() == 0 && account2.getBalance() == 200) {
+        if (account1.getBalance() == 0 && account2.getBalance() == Money.of(200)) {
             System.out.println("Тест1 пройден");
         } else {
             System.out.println("Тест1 не пройден");
@@ -39,12 +90,12 @@ public class BankApp {
      * Неудачный перевод средств, т.к. дублонов на счёте отправителя меньше, чем сумма перевода.
      */
     private static void test2() {
-        BankAccount account1 = new BankAccount("Счёт 1", 100);
-        BankAccount account2 = new BankAccount("Счёт 2", 100);
+        BankAccount account1 = new BankAccount("Счёт 1", Money.of(100));
+        BankAccount account2 = new BankAccount("Счёт 2", Money.of(100));
         BankService bankService = new BankService();
-        bankService.transferFunds(account1, account2, 200);
+        bankService.transferFunds(account1, account2, Money.of(200));
 
-        if (account1.getBalance() == 100 && account2.getBalance() == 100) {
+        if (account1.getBalance() == Money.of(100) && account2.getBalance() == Money.of(100)) {
             System.out.println("Тест2 пройден");
         } else {
             System.out.println("Тест2 не пройден");
@@ -55,13 +106,13 @@ public class BankApp {
      * Неудачный перевод средств, т.к. счёт получателя закрыт.
      */
     private static void test3() {
-        BankAccount account1 = new BankAccount("Счёт 1", 200);
+        BankAccount account1 = new BankAccount("Счёт 1", Money.of(200));
         BankAccount account2 = new BankAccount("Счёт 2", 0);
         account2.setClosed();
         BankService bankService = new BankService();
-        bankService.transferFunds(account1, account2, 100);
+        bankService.transferFunds(account1, account2, Money.of(100));
 
-        if (account1.getBalance() == 200 && account2.getBalance() == 0) {
+        if (account1.getBalance() == Money.of(200) && account2.getBalance() == 0) {
             System.out.println("Тест3 пройден");
         } else {
             System.out.println("Тест3 не пройден");
@@ -72,19 +123,1220 @@ public class BankApp {
      * Неудачный перевод средств, т.к. счёт отправителя считается мошенническим.
      */
     private static void test4() {
-        BankAccount account1 = new BankAccount("Счёт 1", 200);
-        BankAccount account2 = new BankAccount("Счёт 2", 100);
+        BankAccount account1 = new BankAccount("Счёт 1", Money.of(200));
+        BankAccount account2 = new BankAccount("Счёт 2", Money.of(100));
         account1.setFraud(true);
         BankService bankService = new BankService();
-        bankService.transferFunds(account1, account2, 200);
+        bankService.transferFunds(account1, account2, Money.of(200));
 
-        if (account1.getBalance() == 200 && account2.getBalance() == 100) {
+        if (account1.getBalance() == Money.of(200) && account2.getBalance() == Money.of(100)) {
             System.out.println("Тест4 пройден");
         } else {
             System.out.println("Тест4 не пройден");
         }
     }
 
+    /**
+     * Пакетный перевод: успешные заявки зачисляются получателю одной суммой,
+     * заявка без достаточных средств и заявка на закрытый счёт не выполняются.
+     * Заявки, списание или зачисление которых не принял журнал счёта, получают LOG_FAILURE,
+     * а средства по ним остаются у отправителя.
+     */
+    private static void test5() {
+        BankAccount account1 = new BankAccount("Счёт 1", Money.of(100));
+        BankAccount account2 = new BankAccount("Счёт 2", Money.of(50));
+        BankAccount account3 = new BankAccount("Счёт 3", 0);
+        BankAccount account4 = new BankAccount("Счёт 4", 0);
+        account4.setClosed();
+        AccountLog failing = new AccountLog() {
+            @Override
+            public void balanceChanged(String accountNumber, long delta) {
+                throw new UncheckedIOException(new IOException("Диск заполнен"));
+            }
+        };
+        BankAccount account5 = new BankAccount("Счёт 5", Money.of(30));
+        BankAccount unloggedReceiver = new BankAccount("Счёт 6", 0, failing);
+        BankAccount unloggedSender = new BankAccount("Счёт 7", Money.of(30), failing);
+        BankService bankService = new BankService();
+        TransferOutcome[] outcomes = bankService.transferFundsBatch(List.of(
+                new TransferRequest(account1, account3, Money.of(60)),
+                new TransferRequest(account2, account3, Money.of(50)),
+                new TransferRequest(account1, account3, Money.of(60)),
+                new TransferRequest(account1, account4, Money.of(10)),
+                new TransferRequest(account5, unloggedReceiver, Money.of(30)),
+                new TransferRequest(unloggedSender, account3, Money.of(30))));
+
+        if (outcomes[0] == TransferOutcome.SUCCESS && outcomes[1] == TransferOutcome.SUCCESS
+                && outcomes[2] == TransferOutcome.INSUFFICIENT_FUNDS && outcomes[3] == TransferOutcome.CLOSED
+                && outcomes[4] == TransferOutcome.LOG_FAILURE && outcomes[5] == TransferOutcome.LOG_FAILURE
+                && account1.getBalance() == Money.of(40) && account2.getBalance() == 0
+                && account3.getBalance() == Money.of(110) && account4.getBalance() == 0
+                && account5.getBalance() == Money.of(30) && unloggedReceiver.getBalance() == 0
+                && unloggedSender.getBalance() == Money.of(30)) {
+            System.out.println("Тест5 пройден");
+        } else {
+            System.out.println("Тест5 не пройден");
+        }
+    }
+
+    /**
+     * Асинхронный перевод: результат содержит идентификатор транзакции, статус и причину неудачи.
+     */
+    private static void test6() {
+        BankAccount account1 = new BankAccount("Счёт 1", Money.of(100));
+        BankAccount account2 = new BankAccount("Счёт 2", Money.of(100));
+        BankService bankService = new BankService();
+        TransferResult success = bankService.transferFundsAsync(account1, account2, Money.of(100)).join();
+        TransferResult failure = bankService.transferFundsAsync(account1, account2, Money.of(100)).join();
+
+        if (success.successful() && success.transactionId() != null && success.failureReason() == null
+                && !failure.successful() && failure.outcome() == TransferOutcome.INSUFFICIENT_FUNDS
+                && account1.getBalance() == 0 && account2.getBalance() == Money.of(200)) {
+            System.out.println("Тест6 пройден");
+        } else {
+            System.out.println("Тест6 не пройден");
+        }
+    }
+
+    /**
+     * Переводы в режиме виртуальных потоков: после закрытия сервиса все переводы выполнены.
+     */
+    private static void test7() {
+        BankAccount account1 = new BankAccount("Счёт 1", Money.of(100));
+        BankAccount account2 = new BankAccount("Счёт 2", 0);
+        try (BankService bankService = new BankService(ExecutionMode.VIRTUAL_THREADS)) {
+            for (int i = 0; i < 100; i++) {
+                bankService.transferFunds(account1, account2, Money.of(1));
+            }
+        }
+
+        if (account1.getBalance() == 0 && account2.getBalance() == Money.of(100)) {
+            System.out.println("Тест7 пройден");
+        } else {
+            System.out.println("Тест7 не пройден");
+        }
+    }
+
+    /**
+     * Запись транзакций в файловый журнал: после закрытия журнала в файле есть строка по каждой транзакции.
+     * Записи, принятые одновременно с закрытием, не теряются, а перевод после закрытия журнала
+     * завершается ошибкой журнала, не оставляя незавершённых переводов.
+     */
+    private static void test8() {
+        BankAccount account1 = new BankAccount("Счёт 1", Money.of(100));
+        BankAccount account2 = new BankAccount("Счёт 2", 0);
+        try {
+            Path file = Files.createTempFile("journal", ".log");
+            TransferResult result;
+            BankService bankService;
+            FileJournal journal = new FileJournal(file, 16, 10, false);
+            try (journal) {
+                bankService = new BankService(ExecutionMode.CALLER, journal);
+                result = bankService.transferFundsAsync(account1, account2, Money.of(100, 50)).join();
+                bankService.transferFundsAsync(account1, account2, Money.of(100)).join();
+            }
+            CompletableFuture<TransferResult> afterClose = bankService.transferFundsAsync(account2, account1, 1);
+            List<String> lines = Files.readAllLines(file);
+
+            AtomicInteger accepted = new AtomicInteger();
+            FileJournal racing = new FileJournal(file, 16, 0, false);
+            try (ExecutorService executor = Executors.newFixedThreadPool(4)) {
+                for (int t = 0; t < 4; t++) {
+                    executor.execute(() -> {
+                        try {
+                            for (long id = 0; ; id++) {
+                                racing.record(id, "Счёт 1", "Счёт 2", 1, true);
+                                accepted.incrementAndGet();
+                            }
+                        } catch (IllegalStateException e) {
+                            // Журнал закрыт.
+                        }
+                    });
+                }
+                Thread.sleep(20);
+                racing.close();
+            }
+            int raced = Files.readAllLines(file).size() - lines.size();
+            Files.delete(file);
+
+            if (lines.size() == 2 && lines.get(0).equals(result.transactionId() + ";Счёт 1;Счёт 2;100.50;false")
+                    && lines.get(1).endsWith(";100.00;true") && afterClose.isCompletedExceptionally()
+                    && bankService.getInFlight() == 0 && accepted.get() > 0 && raced == accepted.get()) {
+                System.out.println("Тест8 пройден");
+            } else {
+                System.out.println("Тест8 не пройден");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Тест8 не пройден: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Восстановление счетов по журналу упреждающей записи: балансы и признаки совпадают с исходными.
+     * Перевод подтверждается только после записи группы, в которую попали его изменения,
+     * а перевод на счёт, журнал которого не принял изменение, отклоняется без изменения балансов.
+     * Продолжение подтверждённого перевода может само выполнить перевод, ожидающий того же журнала.
+     */
+    private static void test9() {
+        try {
+            Path file = Files.createTempFile("wal", ".log");
+            long durableOnCompletion;
+            TransferResult unlogged;
+            TransferResult chained;
+            boolean released;
+            try (WriteAheadLog log = new WriteAheadLog(file, 64 * 1024, 5, true)) {
+                BankAccount account1 = new BankAccount("Счёт 1", Money.of(100), log);
+                BankAccount account2 = new BankAccount("Счёт 2", 0, log);
+                BankAccount account3 = new BankAccount("Счёт 3", 0, log);
+                BankService bankService = new BankService(ExecutionMode.CALLER, log);
+                // 3 открытия счетов, списание, зачисление и итог транзакции
+                durableOnCompletion = bankService.transferFundsAsync(account1, account2, Money.of(30, 5))
+                        .thenApply(result -> log.getDurableLsn()).join();
+                bankService.transferFundsAsync(account1, account2, Money.of(100)).join();
+                chained = bankService.transferFundsAsync(account2, account1, Money.of(1))
+                        .thenApply(result -> bankService.transferFundsAtomic(account1, account2, Money.of(1)))
+                        .orTimeout(5, TimeUnit.SECONDS).join();
+                account1.setFraud(true);
+                account3.setClosed();
+
+                BankAccount broken = new BankAccount("Счёт 4", 0, new AccountLog() {
+                    @Override
+                    public void balanceChanged(String accountNumber, long delta) {
+                        throw new UncheckedIOException(new IOException("Диск заполнен"));
+                    }
+                });
+                unlogged = bankService.transferFundsAsync(account2, broken, Money.of(1)).join();
+                released = bankService.getInFlight() == 0 && broken.getBalance() == 0;
+            }
+            Map<String, AccountState> states = WriteAheadLog.replay(file);
+            Files.delete(file);
+
+            if (durableOnCompletion >= 6 && unlogged.outcome() == TransferOutcome.LOG_FAILURE && released
+                    && chained.successful()
+                    && states.size() == 3
+                    && states.get("Счёт 1").equals(new AccountState("Счёт 1", Money.of(69, 95), true, false))
+                    && states.get("Счёт 2").equals(new AccountState("Счёт 2", Money.of(30, 5), false, false))
+                    && states.get("Счёт 3").equals(new AccountState("Счёт 3", 0, false, true))) {
+                System.out.println("Тест9 пройден");
+            } else {
+                System.out.println("Тест9 не пройден");
+            }
+        } catch (IOException e) {
+            System.out.println("Тест9 не пройден: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Восстановление счетов по снимку и журналу: часть изменений свёрнута в снимок, часть осталась
+     * в новом сегменте журнала, восстановленное состояние совпадает с исходным. Повторная свёртка
+     * переносит записи прежнего снимка, а реестр восстанавливается потоково, без карты состояний.
+     */
+    private static void test10() {
+        try {
+            Path directory = Files.createTempDirectory("snapshots");
+            SnapshotStore store = new SnapshotStore(directory);
+            BankAccount account1;
+            BankAccount account2;
+            BankAccount account3;
+            long snapshotBalance;
+            long reopenedBalance;
+            try (WriteAheadLog log = new WriteAheadLog(store.nextSegment(), 64 * 1024, 5, true)) {
+                account1 = new BankAccount("Счёт 1", Money.of(100), log);
+                account2 = new BankAccount("Счёт 2", 0, log);
+                BankService bankService = new BankService(ExecutionMode.CALLER, log);
+                bankService.transferFundsAsync(account1, account2, Money.of(10)).join();
+                store.checkpoint(log);
+                try (Snapshot snapshot = new Snapshot(store.getSnapshotFile())) {
+                    snapshotBalance = snapshot.balance(snapshot.find("Счёт 2"));
+                }
+                bankService.transferFundsAsync(account1, account2, Money.of(20)).join();
+                account3 = new BankAccount("Счёт 3", Money.of(5), log);
+                store.checkpoint(log);
+                try (Snapshot snapshot = new Snapshot(store.getSnapshotFile())) {
+                    reopenedBalance = snapshot.size() == 3 && snapshot.find("Счёт 4") < 0
+                            ? snapshot.balance(snapshot.find("Счёт 2")) : -1;
+                }
+                account1.setFraud(true);
+            }
+            Map<String, AccountState> states = store.recover();
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+
+            Path registryDirectory = Files.createTempDirectory("snapshots");
+            SnapshotStore registryStore = new SnapshotStore(registryDirectory);
+            try (WriteAheadLog log = new WriteAheadLog(registryStore.nextSegment(), 64 * 1024, 5, true)) {
+                AccountRegistry registry = new AccountRegistry(16, log);
+                registry.open(1, Money.of(100));
+                registry.open(2, 0);
+                registryStore.checkpoint(log);
+                new BankService(ExecutionMode.CALLER, log).transferFundsAsync(registry.get(1), registry.get(2),
+                        Money.of(40)).join();
+                registry.get(1).setFraud(true);
+            }
+            AccountRegistry recovered = new AccountRegistry();
+            registryStore.recover(recovered.recovery());
+            try (Stream<Path> files = Files.walk(registryDirectory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+
+            if (snapshotBalance == Money.of(10) && reopenedBalance == Money.of(30)
+                    && states.get("Счёт 1").equals(account1.getState())
+                    && states.get("Счёт 2").equals(account2.getState())
+                    && states.get("Счёт 3").equals(account3.getState())
+                    && recovered.size() == 2 && recovered.get(1).getBalance() == Money.of(60)
+                    && recovered.get(1).isFraud() && recovered.get(2).getBalance() == Money.of(40)) {
+                System.out.println("Тест10 пройден");
+            } else {
+                System.out.println("Тест10 не пройден");
+            }
+        } catch (IOException e) {
+            System.out.println("Тест10 не пройден: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Реестр счетов: поиск по номеру, переводы между счетами реестра через банковский сервис,
+     * очереди операций создаются только для счетов, участвовавших в переводах, и их число ограничено.
+     * Одновременные пометка и закрытие счетов не затирают признаки друг друга.
+     */
+    private static void test11() {
+        AccountRegistry registry = new AccountRegistry();
+        for (long number = 1; number <= 100_000; number++) {
+            registry.open(number, Money.of(10));
+        }
+        BankService bankService = new BankService();
+        bankService.transferFunds(registry.get(1), registry.get(2), Money.of(10));
+        bankService.transferFunds(registry.get(3), registry.get(2), Money.of(11));
+        boolean created = registry.mailboxCount() == 3;
+        BankService quietService = new BankService(ExecutionMode.CALLER, TransactionJournal.NONE);
+        for (long number = 10; number < 50_000; number++) {
+            quietService.transferFunds(registry.get(number), registry.get(number + 50_000), 1);
+        }
+        boolean bounded = registry.mailboxCount() < 50_000 && registry.get(10).getBalance() == Money.of(10) - 1;
+
+        AccountRegistry flagged = new AccountRegistry();
+        for (long number = 0; number < 20_000; number++) {
+            flagged.open(number, 0);
+        }
+        AtomicInteger closedFirst = new AtomicInteger();
+        try (ExecutorService executor = Executors.newFixedThreadPool(2)) {
+            executor.submit(() -> {
+                for (long number = 0; number < 20_000; number++) {
+                    try {
+                        flagged.get(number).setFraud(true);
+                    } catch (TryToMarkAsFraudClosedAccountException e) {
+                        closedFirst.incrementAndGet();
+                    }
+                }
+            });
+            executor.submit(() -> {
+                for (long number = 0; number < 20_000; number++) {
+                    flagged.get(number).setClosed();
+                }
+            });
+        }
+        long flagsLost = 0;
+        for (long number = 0; number < 20_000; number++) {
+            if (!flagged.get(number).isClosed()) {
+                flagsLost++;
+            }
+            if (!flagged.get(number).isFraud()) {
+                flagsLost++;
+            }
+        }
+
+        if (registry.size() == 100_000 && registry.get(100_001) == null
+                && registry.get(1).getBalance() == 0 && registry.get(2).getBalance() == Money.of(20)
+                && registry.get(3).getBalance() == Money.of(10) && registry.get(100_000).getBalance() == Money.of(10)
+                && created && bounded && registry.get(5).equals(registry.get(5))
+                && flagsLost == closedFirst.get()) {
+            System.out.println("Тест11 пройден");
+        } else {
+            System.out.println("Тест11 не пройден");
+        }
+    }
+
+    /**
+     * Атомарные переводы: встречные переводы между двумя счетами из многих потоков
+     * не блокируют друг друга, сумма средств сохраняется, перевод без средств отклоняется.
+     * Отказ журнала счёта получателя завершает перевод с LOG_FAILURE и возвратом средств отправителю.
+     */
+    private static void test12() {
+        BankAccount account1 = new BankAccount("Счёт 1", Money.of(1000));
+        BankAccount account2 = new BankAccount("Счёт 2", Money.of(1000));
+        BankService bankService = new BankService(ExecutionMode.CALLER, (id, sender, receiver, amount, ok) -> {
+        });
+        try (ExecutorService executorService = Executors.newFixedThreadPool(4)) {
+            for (int i = 0; i < 4; i++) {
+                boolean forward = i % 2 == 0;
+                executorService.execute(() -> {
+                    for (int j = 0; j < 10_000; j++) {
+                        if (forward) {
+                            bankService.transferFundsAtomic(account1, account2, 1);
+                        } else {
+                            bankService.transferFundsAtomic(account2, account1, 1);
+                        }
+                    }
+                });
+            }
+        }
+        TransferResult failure = bankService.transferFundsAtomic(account1, account2, Money.of(3000));
+        BankAccount unlogged = new BankAccount("Счёт без журнала", 0, new AccountLog() {
+            @Override
+            public void balanceChanged(String accountNumber, long delta) {
+                throw new UncheckedIOException(new IOException("Диск заполнен"));
+            }
+        });
+        TransferResult logFailed = bankService.transferFundsAtomic(account1, unlogged, Money.of(10));
+
+        if (account1.getBalance() + account2.getBalance() == Money.of(2000) && !failure.successful()
+                && failure.outcome() == TransferOutcome.INSUFFICIENT_FUNDS
+                && logFailed.outcome() == TransferOutcome.LOG_FAILURE && unlogged.getBalance() == 0) {
+            System.out.println("Тест12 пройден");
+        } else {
+            System.out.println("Тест12 не пройден");
+        }
+    }
+
+    /**
+     * Шардированный движок: переводы по кругу между счетами разных шардов из многих потоков
+     * сохраняют сумму средств, перевод на мошеннический счёт отклоняется с возвратом средств.
+     * Отказ журнала счёта получателя завершает перевод с LOG_FAILURE и возвратом средств,
+     * а шард продолжает обрабатывать следующие переводы.
+     */
+    private static void test13() {
+        BankAccount[] accounts = new BankAccount[9];
+        for (int i = 0; i < accounts.length; i++) {
+            accounts[i] = new BankAccount("Счёт " + i, Money.of(100));
+        }
+        BankAccount fraud = new BankAccount("Мошенник", 0);
+        fraud.setFraud(true);
+        BankAccount unlogged = new BankAccount("Счёт без журнала", 0, new AccountLog() {
+            @Override
+            public void balanceChanged(String accountNumber, long delta) {
+                throw new UncheckedIOException(new IOException("Диск заполнен"));
+            }
+        });
+        TransferResult rejected;
+        TransferResult logFailed;
+        TransferResult afterFailure;
+        try (ShardedEngine engine = new ShardedEngine(4, (id, sender, receiver, amount, ok) -> {
+        })) {
+            List<CompletableFuture<TransferResult>> results = new CopyOnWriteArrayList<>();
+            try (ExecutorService executorService = Executors.newFixedThreadPool(4)) {
+                for (int i = 0; i < 4; i++) {
+                    executorService.execute(() -> {
+                        for (int j = 0; j < 10_000; j++) {
+                            results.add(engine.transfer(accounts[j % accounts.length],
+                                    accounts[(j + 1) % accounts.length], 1));
+                        }
+                    });
+                }
+            }
+            CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).join();
+            rejected = engine.transfer(accounts[0], fraud, 1).join();
+            logFailed = engine.transfer(accounts[0], unlogged, 1).orTimeout(5, TimeUnit.SECONDS).join();
+            afterFailure = engine.transfer(accounts[0], accounts[1], 1).orTimeout(5, TimeUnit.SECONDS).join();
+        }
+        long total = Arrays.stream(accounts).mapToLong(BankAccount::getBalance).sum();
+
+        if (total == Money.of(900) && !rejected.successful() && fraud.getBalance() == 0
+                && rejected.outcome() == TransferOutcome.FRAUD
+                && logFailed.outcome() == TransferOutcome.LOG_FAILURE && unlogged.getBalance() == 0
+                && afterFailure.successful()) {
+            System.out.println("Тест13 пройден");
+        } else {
+            System.out.println("Тест13 не пройден");
+        }
+    }
+
+    /**
+     * Горячий счёт: одновременные зачисления от многих отправителей учитываются точно,
+     * после вывода всех средств счёт можно закрыть. Закрытие горячего счёта и счёта реестра
+     * одновременно с зачислениями не оставляет закрытый счёт с ненулевым балансом.
+     */
+    private static void test14() {
+        BankAccount merchant = BankAccount.hot("Торговец", 0, 8, AccountLog.NONE);
+        BankAccount[] senders = new BankAccount[9];
+        for (int i = 0; i < senders.length; i++) {
+            senders[i] = new BankAccount("Покупатель " + i, Money.of(100));
+        }
+        BankService bankService = new BankService(ExecutionMode.CALLER, (id, sender, receiver, amount, ok) -> {
+        });
+        try (ExecutorService executorService = Executors.newFixedThreadPool(senders.length)) {
+            for (BankAccount sender : senders) {
+                executorService.execute(() -> {
+                    for (int j = 0; j < 10_000; j++) {
+                        bankService.transferFunds(sender, merchant, 1);
+                    }
+                });
+            }
+        }
+        long credited = merchant.getBalance();
+        bankService.transferFunds(merchant, senders[0], credited);
+        merchant.setClosed();
+
+        // Закрытие одновременно с зачислениями: закрытый счёт всегда остаётся с нулевым балансом.
+        AccountRegistry registry = new AccountRegistry();
+        int closedWithMoney = 0;
+        for (int round = 0; round < 200; round++) {
+            BankAccount payer = new BankAccount("Плательщик", Money.of(100));
+            BankAccount[] targets = {BankAccount.hot("Касса " + round, 0, 8, AccountLog.NONE),
+                    registry.open(round, 0)};
+            for (BankAccount target : targets) {
+                long before = payer.getBalance();
+                CountDownLatch start = new CountDownLatch(1);
+                CountDownLatch paid = new CountDownLatch(1);
+                try (ExecutorService executorService = Executors.newFixedThreadPool(2)) {
+                    executorService.execute(() -> {
+                        awaitQuietly(start);
+                        for (int j = 0; j < 100; j++) {
+                            bankService.transferFunds(payer, target, 1);
+                        }
+                        paid.countDown();
+                    });
+                    executorService.execute(() -> {
+                        awaitQuietly(start);
+                        while (!target.isClosed()) {
+                            try {
+                                target.setClosed();
+                            } catch (NonZeroBalanceException e) {
+                                if (paid.getCount() == 0) {
+                                    return;
+                                }
+                            }
+                        }
+                    });
+                    start.countDown();
+                }
+                if (target.isClosed() && target.getBalance() != 0
+                        || payer.getBalance() + target.getBalance() != before) {
+                    closedWithMoney++;
+                }
+            }
+        }
+
+        if (credited == 90_000 && merchant.getBalance() == 0 && merchant.isClosed() && closedWithMoney == 0) {
+            System.out.println("Тест14 пройден");
+        } else {
+            System.out.println("Тест14 не пройден");
+        }
+    }
+
+    /**
+     * Переводы на повторно используемых транзакциях из многих потоков: сумма средств сохраняется,
+     * каждый перевод записан в журнал ровно один раз под своим идентификатором.
+     */
+    private static void test15() {
+        BankAccount[] accounts = new BankAccount[4];
+        for (int i = 0; i < accounts.length; i++) {
+            accounts[i] = new BankAccount("Счёт " + i, 100);
+        }
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        BankService bankService = new BankService(ExecutionMode.CALLER, new TransactionJournal() {
+            @Override
+            public void record(String transactionId, String sender, String receiver, long amount, boolean ok) {
+            }
+
+            @Override
+            public void record(long transactionId, String sender, String receiver, long amount, boolean ok) {
+                ids.add(transactionId);
+            }
+        });
+        try (ExecutorService executorService = Executors.newFixedThreadPool(4)) {
+            for (int i = 0; i < 4; i++) {
+                executorService.execute(() -> {
+                    for (int j = 0; j < 10_000; j++) {
+                        bankService.transferFunds(accounts[j % 4], accounts[(j + 1) % 4], 1 + j % 7);
+                    }
+                });
+            }
+        }
+        long total = Arrays.stream(accounts).mapToLong(BankAccount::getBalance).sum();
+
+        if (total == 400 && ids.size() == 40_000) {
+            System.out.println("Тест15 пройден");
+        } else {
+            System.out.println("Тест15 не пройден");
+        }
+    }
+
+    /**
+     * Измерения: успешные и неуспешные переводы, отмена списания и отказы по причинам
+     * видны в снимке и через JMX. Счёт, очередь которого достигла порога, попадает в отчёт о глубоких очередях.
+     */
+    private static void test16() {
+        BankAccount account1 = new BankAccount("Счёт 1", Money.of(100));
+        BankAccount account2 = new BankAccount("Счёт 2", 0);
+        BankAccount fraud = new BankAccount("Мошенник", 0);
+        fraud.setFraud(true);
+        BankMetrics metrics = new BankMetrics();
+        BankService bankService = new BankService(ExecutionMode.CALLER, TransactionJournal.NONE, metrics);
+        for (int i = 0; i < 10; i++) {
+            bankService.transferFunds(account1, account2, Money.of(1));
+        }
+        bankService.transferFunds(account1, fraud, Money.of(1));
+        bankService.transferFunds(account2, account1, Money.of(1000));
+        bankService.transferFunds(account1, account1, Money.of(1));
+
+        MetricsSnapshot snapshot = metrics.snapshot();
+        Object jmxTransfers;
+        try {
+            ObjectName name = metrics.register("test16");
+            jmxTransfers = ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Transfers");
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            jmxTransfers = e;
+        }
+
+        BankAccount hot = new BankAccount("Горячий счёт", 0);
+        CountDownLatch busy = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try (ExecutorService executorService = Executors.newSingleThreadExecutor()) {
+            executorService.execute(() -> occupy(hot, busy, release));
+            awaitQuietly(busy);
+            for (int i = 0; i < 100; i++) {
+                hot.getTaskQueue().submit(new Operation(hot, 0, null) {
+                    @Override
+                    public void operate() {
+                    }
+                }, metrics);
+            }
+            release.countDown();
+        }
+        Map<String, Integer> deepQueues = metrics.snapshot().deepQueues();
+
+        if (snapshot.transfers() == 12 && snapshot.failedTransfers() == 2 && snapshot.withdrawalRollbacks() == 1
+                && snapshot.latencyNanos().count() == 12 && snapshot.queueDepth().count() == 24
+                && snapshot.rejections().get(TransferOutcome.FRAUD) == 1
+                && snapshot.rejections().get(TransferOutcome.INSUFFICIENT_FUNDS) == 1
+                && snapshot.rejections().get(TransferOutcome.SAME_ACCOUNT) == 1
+                && Long.valueOf(12).equals(jmxTransfers) && snapshot.deepQueues().isEmpty()
+                && deepQueues.equals(Map.of("Горячий счёт", 100))) {
+            System.out.println("Тест16 пройден");
+        } else {
+            System.out.println("Тест16 не пройден");
+        }
+    }
+
+    /**
+     * Ключ идемпотентности: повторы запроса с тем же ключом, в том числе одновременные,
+     * переводят средства один раз и возвращают результат первого перевода. Когда кэш ключей
+     * заполнен живыми ключами, новые ключи получают отказ, а повторы запомненных не переводят средства снова.
+     */
+    private static void test17() {
+        BankAccount account1 = new BankAccount("Счёт 1", Money.of(100));
+        BankAccount account2 = new BankAccount("Счёт 2", 0);
+        BankService bankService = new BankService(ExecutionMode.CALLER, TransactionJournal.NONE);
+        List<CompletableFuture<TransferResult>> retries = new CopyOnWriteArrayList<>();
+        try (ExecutorService executorService = Executors.newFixedThreadPool(4)) {
+            for (int i = 0; i < 8; i++) {
+                executorService.execute(() -> retries.add(
+                        bankService.transferFunds("заявка-1", account1, account2, Money.of(10))));
+            }
+        }
+        TransferResult first = retries.get(0).join();
+        boolean sameResult = retries.stream().allMatch(retry -> retry.join() == first);
+        bankService.transferFunds("заявка-2", account1, account2, Money.of(10)).join();
+
+        BankAccount account3 = new BankAccount("Счёт 3", Money.of(1000));
+        BankAccount account4 = new BankAccount("Счёт 4", 0);
+        BankService smallCache = new BankService(ExecutionMode.CALLER, TransactionJournal.NONE, TransferMetrics.NONE,
+                16, FraudScreen.NONE, 64, Duration.ofMinutes(1));
+        int accepted = 0;
+        int overloaded = 0;
+        for (int i = 0; i < 200; i++) {
+            TransferOutcome outcome = smallCache.transferFunds("ключ-" + i, account3, account4, 1).join().outcome();
+            if (outcome == TransferOutcome.SUCCESS) {
+                accepted++;
+            } else if (outcome == TransferOutcome.OVERLOADED) {
+                overloaded++;
+            }
+        }
+        for (int i = 0; i < 200; i++) {
+            smallCache.transferFunds("ключ-" + i, account3, account4, 1).join();
+        }
+        boolean bounded = accepted <= 64 && overloaded > 0 && accepted + overloaded == 200
+                && account4.getBalance() == accepted;
+
+        if (sameResult && first.successful() && bounded
+                && account1.getBalance() == Money.of(80) && account2.getBalance() == Money.of(20)) {
+            System.out.println("Тест17 пройден");
+        } else {
+            System.out.println("Тест17 не пройден");
+        }
+    }
+
+    /**
+     * Ограниченные очереди счетов и предел незавершённых переводов: пока очереди отправителей
+     * не разбираются, переполненная очередь отклоняет или вытесняет списания, а сервис
+     * сверх предела незавершённых переводов сразу отвечает отказом. Отклонённые переводы отменяются, средства сохраняются.
+     * Операции, которые нельзя отклонить, ждут места в очереди и выполняются только её обработчиком.
+     */
+    private static void test18() {
+        try {
+            BankAccount rejecting = new BankAccount("Счёт 1", Money.of(1000));
+            BankAccount shedding = new BankAccount("Счёт 2", Money.of(1000));
+            BankAccount receiver = new BankAccount("Счёт 3", 0);
+            BankAccount idle = new BankAccount("Счёт 4", Money.of(1000));
+            System.setProperty(OverflowPolicy.PROPERTY, OverflowPolicy.REJECT.name());
+            rejecting.getTaskQueue();
+            System.setProperty(OverflowPolicy.PROPERTY, OverflowPolicy.SHED_OLDEST.name());
+            shedding.getTaskQueue();
+            System.clearProperty(OverflowPolicy.PROPERTY);
+
+            CountDownLatch busy = new CountDownLatch(2);
+            CountDownLatch release = new CountDownLatch(1);
+            Thread rejectingProcessor = Thread.ofPlatform().start(() -> occupy(rejecting, busy, release));
+            Thread sheddingProcessor = Thread.ofPlatform().start(() -> occupy(shedding, busy, release));
+            busy.await();
+
+            int capacity = TaskQueue.DEFAULT_CAPACITY;
+            BankService bankService = new BankService(ExecutionMode.CALLER, TransactionJournal.NONE);
+            BankService limitedService = new BankService(ExecutionMode.CALLER, TransactionJournal.NONE,
+                    TransferMetrics.NONE, 1);
+            int accepted = 0;
+            for (int i = 0; i < capacity; i++) {
+                if (bankService.transferFunds(rejecting, receiver, Money.of(1)) == TransferOutcome.ACCEPTED) {
+                    accepted++;
+                }
+            }
+            boolean rejected = rejecting.getTaskQueue().remainingCapacity() == 0
+                    && bankService.transferFunds(rejecting, receiver, Money.of(1)) == TransferOutcome.OVERLOADED;
+            for (int i = 0; i < capacity + 44; i++) {
+                if (bankService.transferFunds(shedding, receiver, Money.of(1)) == TransferOutcome.ACCEPTED) {
+                    accepted++;
+                }
+            }
+            boolean limited = bankService.getInFlight() == 2 * capacity
+                    && limitedService.transferFunds(shedding, receiver, Money.of(1)) == TransferOutcome.ACCEPTED
+                    && limitedService.transferFunds(idle, receiver, Money.of(1)) == TransferOutcome.OVERLOADED;
+
+            release.countDown();
+            rejectingProcessor.join();
+            sheddingProcessor.join();
+
+            // Очередь заполнена операциями, которые нельзя отклонить: поставщик засыпает до освобождения места
+            // и не выполняет операции сам, а обработчик выполняет их по одной и по порядку.
+            BankAccount batchAccount = new BankAccount("Счёт 5", 0);
+            System.setProperty(OverflowPolicy.PROPERTY, OverflowPolicy.SHED_OLDEST.name());
+            batchAccount.getTaskQueue();
+            System.clearProperty(OverflowPolicy.PROPERTY);
+            CountDownLatch batchBusy = new CountDownLatch(1);
+            CountDownLatch batchRelease = new CountDownLatch(1);
+            Thread batchProcessor = Thread.ofPlatform().start(() -> occupy(batchAccount, batchBusy, batchRelease));
+            batchBusy.await();
+            List<Integer> order = new CopyOnWriteArrayList<>();
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger overlaps = new AtomicInteger();
+            Thread producer = Thread.ofPlatform().start(() -> {
+                for (int i = 0; i <= capacity; i++) {
+                    int number = i;
+                    batchAccount.getTaskQueue().submit(new Operation(batchAccount, 0, null) {
+                        @Override
+                        public void operate() {
+                            if (running.incrementAndGet() != 1) {
+                                overlaps.incrementAndGet();
+                            }
+                            order.add(number);
+                            running.decrementAndGet();
+                        }
+                    });
+                }
+            });
+            for (int attempt = 0; attempt < 5000 && producer.getState() != Thread.State.WAITING; attempt++) {
+                Thread.sleep(1);
+            }
+            boolean parked = producer.getState() == Thread.State.WAITING && order.isEmpty();
+            batchRelease.countDown();
+            producer.join();
+            batchProcessor.join();
+            while (!batchAccount.getTaskQueue().isEmpty()) {
+                Thread.sleep(1);
+            }
+            boolean ordered = order.size() == capacity + 1 && overlaps.get() == 0;
+            for (int i = 0; ordered && i <= capacity; i++) {
+                ordered = order.get(i) == i;
+            }
+
+            if (accepted == 2 * capacity + 44 && rejected && limited && parked && ordered
+                    && bankService.getInFlight() == 0 && limitedService.getInFlight() == 0
+                    && rejecting.getBalance() == Money.of(1000 - capacity)
+                    && shedding.getBalance() == Money.of(1000 - capacity)
+                    && receiver.getBalance() == Money.of(2 * capacity) && idle.getBalance() == Money.of(1000)) {
+                System.out.println("Тест18 пройден");
+            } else {
+                System.out.println("Тест18 не пройден");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Массовое начисление процентов и списание платы по реестру счетов одновременно с переводами:
+     * мошеннические и закрытые счета пропускаются, плата не больше остатка, изменения журналируются пакетами.
+     */
+    private static void test19() {
+        LongAdder logged = new LongAdder();
+        AtomicInteger batches = new AtomicInteger();
+        AccountRegistry registry = new AccountRegistry(3000, new AccountLog() {
+            @Override
+            public void balancesChanged(long[] accountNumbers, long[] deltas, int count) {
+                batches.incrementAndGet();
+                for (int i = 0; i < count; i++) {
+                    logged.add(deltas[i]);
+                }
+            }
+        });
+        for (long number = 1; number <= 3000; number++) {
+            registry.open(number, Money.of(100));
+        }
+        registry.get(1).setFraud(true);
+        registry.open(3001, 0).setClosed();
+        registry.open(3002, Money.of(2));
+
+        BankService bankService = new BankService(ExecutionMode.CALLER, TransactionJournal.NONE);
+        AccrualSummary interest;
+        try (ExecutorService executorService = Executors.newSingleThreadExecutor()) {
+            executorService.execute(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    bankService.transferFunds(registry.get(2 + i % 100), registry.get(200 + i % 100), 1);
+                }
+            });
+            interest = registry.accrue(balance -> balance / 100);
+        }
+        AccrualSummary fee = registry.accrue(balance -> -Money.of(5));
+
+        long total = 0;
+        for (long number = 1; number <= 3002; number++) {
+            total += registry.get(number).getBalance();
+        }
+        if (interest.accounts() == 3000 && interest.skipped() == 2
+                && registry.get(1).getBalance() == Money.of(100) && registry.get(3002).getBalance() == 0
+                && fee.total() == -(Money.of(5) * 2999 + Money.of(2) + Money.of(2) / 100)
+                && total == Money.of(3000 * 100 + 2) + interest.total() + fee.total()
+                && logged.sum() == interest.total() + fee.total() && batches.get() < 3000) {
+            System.out.println("Тест19 пройден");
+        } else {
+            System.out.println("Тест19 не пройден");
+        }
+    }
+
+    /**
+     * Проверка переводов до постановки в очереди: мошеннические и замороженные счета, лимиты переводов
+     * отправителя за окно. Отклонённые переводы не создают транзакций и не попадают в журнал.
+     */
+    private static void test20() {
+        BankAccount account1 = new BankAccount("Счёт 1", Money.of(1000));
+        BankAccount account2 = new BankAccount("Счёт 2", Money.of(1000));
+        BankAccount account3 = new BankAccount("Счёт 3", 0);
+        BankAccount account4 = new BankAccount("Счёт 4", Money.of(1000));
+        account4.setFraud(true);
+        FrozenAccounts frozenAccounts = new FrozenAccounts(1000);
+        frozenAccounts.freeze("Счёт 3");
+        AtomicInteger journaled = new AtomicInteger();
+        BankService bankService = new BankService(ExecutionMode.CALLER,
+                (id, sender, receiver, amount, successful) -> journaled.incrementAndGet(), TransferMetrics.NONE,
+                1000, new FraudScreening(frozenAccounts, 1024, Duration.ofMinutes(1), 3, Money.of(100)));
+
+        boolean screened = bankService.transferFunds(account4, account1, Money.of(1)) == TransferOutcome.FRAUD
+                && bankService.transferFunds(account1, account3, Money.of(1)) == TransferOutcome.FRAUD
+                && bankService.transferFunds(account1, account2, Money.of(50)) == TransferOutcome.ACCEPTED
+                && bankService.transferFunds(account1, account2, Money.of(40)) == TransferOutcome.ACCEPTED
+                && bankService.transferFunds(account1, account2, Money.of(20)) == TransferOutcome.VELOCITY_LIMIT;
+        for (int i = 0; i < 3; i++) {
+            bankService.transferFunds(account2, account1, Money.of(1));
+        }
+        boolean limited =
+                bankService.transferFunds(account2, account1, Money.of(1)) == TransferOutcome.VELOCITY_LIMIT;
+        frozenAccounts.unfreeze("Счёт 3");
+        boolean unfrozen = bankService.transferFunds(account4, account3, Money.of(1)) == TransferOutcome.FRAUD
+                && bankService.transferFundsAtomic(account1, account3, Money.of(5)).successful();
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (frozenAccounts.isFrozen(Integer.toString(i))) {
+                falsePositives++;
+            }
+        }
+
+        if (screened && limited && unfrozen && falsePositives == 0 && journaled.get() == 6
+                && account1.getBalance() == Money.of(1000 - 50 - 40 + 3 - 5)
+                && account3.getBalance() == Money.of(5) && account4.getBalance() == Money.of(1000)) {
+            System.out.println("Тест20 пройден");
+        } else {
+            System.out.println("Тест20 не пройден");
+        }
+    }
+
+    /**
+     * Лимиты списаний со счёта за скользящее окно: по количеству и по сумме, в переводах через очереди
+     * и в атомарных переводах. Неудачные и отменённые списания в лимите не учитываются,
+     * по истечении окна лимит восстанавливается. Лимит счёта из реестра действует для всех его представлений.
+     */
+    private static void test21() {
+        try {
+            BankAccount counted = new BankAccount("Счёт 1", Money.of(1000));
+            BankAccount summed = new BankAccount("Счёт 2", Money.of(1000));
+            BankAccount receiver = new BankAccount("Счёт 3", 0);
+            counted.setVelocityLimit(new VelocityLimit(Duration.ofMillis(320), 3, Money.of(10_000)));
+            summed.setVelocityLimit(new VelocityLimit(Duration.ofMinutes(1), 100, Money.of(100)));
+            BankService bankService = new BankService(ExecutionMode.CALLER, TransactionJournal.NONE);
+
+            boolean byCount = bankService.transferFundsAsync(counted, receiver, Money.of(2000)).join()
+                    .outcome() == TransferOutcome.INSUFFICIENT_FUNDS;
+            for (int i = 0; i < 3; i++) {
+                byCount &= bankService.transferFundsAsync(counted, receiver, Money.of(10)).join().successful();
+            }
+            byCount &= bankService.transferFundsAsync(counted, receiver, Money.of(10)).join()
+                    .outcome() == TransferOutcome.VELOCITY_LIMIT;
+            byCount &= bankService.transferFundsAtomic(counted, receiver, Money.of(10))
+                    .outcome() == TransferOutcome.VELOCITY_LIMIT;
+            Thread.sleep(400);
+            byCount &= bankService.transferFundsAtomic(counted, receiver, Money.of(10)).successful();
+
+            boolean byAmount = bankService.transferFundsAsync(summed, receiver, Money.of(60)).join().successful()
+                    && bankService.transferFundsAsync(summed, receiver, Money.of(50)).join()
+                    .outcome() == TransferOutcome.VELOCITY_LIMIT
+                    && bankService.transferFundsAtomic(summed, receiver, Money.of(40)).successful();
+
+            BankAccount closed = new BankAccount("Счёт 4", 0);
+            closed.setClosed();
+            BankAccount refunded = new BankAccount("Счёт 5", Money.of(1000));
+            refunded.setVelocityLimit(new VelocityLimit(Duration.ofMinutes(1), 2, Money.of(10_000)));
+            boolean released = bankService.transferFundsAsync(refunded, closed, Money.of(10)).join()
+                    .outcome() == TransferOutcome.CLOSED
+                    && bankService.transferFundsAsync(refunded, receiver, Money.of(10)).join().successful()
+                    && bankService.transferFundsAsync(refunded, receiver, Money.of(10)).join().successful()
+                    && bankService.transferFundsAsync(refunded, receiver, Money.of(10)).join()
+                    .outcome() == TransferOutcome.VELOCITY_LIMIT;
+
+            AccountRegistry registry = new AccountRegistry();
+            registry.open(1, Money.of(1000));
+            registry.open(2, 0);
+            VelocityLimit registryLimit = new VelocityLimit(Duration.ofMinutes(1), 1, Money.of(10_000));
+            registry.get(1).setVelocityLimit(registryLimit);
+            boolean shared = registry.get(1).getVelocityLimit() == registryLimit
+                    && registry.get(2).getVelocityLimit() == null
+                    && bankService.transferFundsAsync(registry.get(1), registry.get(2), Money.of(10)).join()
+                    .successful()
+                    && bankService.transferFundsAsync(registry.get(1), registry.get(2), Money.of(10)).join()
+                    .outcome() == TransferOutcome.VELOCITY_LIMIT;
+            registry.get(1).setVelocityLimit(null);
+            shared &= registry.get(1).getVelocityLimit() == null
+                    && bankService.transferFundsAsync(registry.get(1), registry.get(2), Money.of(10)).join()
+                    .successful();
+
+            if (byCount && byAmount && released && shared && counted.getBalance() == Money.of(960)
+                    && summed.getBalance() == Money.of(900) && receiver.getBalance() == Money.of(160)
+                    && refunded.getBalance() == Money.of(980)) {
+                System.out.println("Тест21 пройден");
+            } else {
+                System.out.println("Тест21 не пройден");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * История транзакций: последние переводы счёта и переводы за период постранично,
+     * из хвоста в памяти и из сегментов на диске, в том числе после повторного открытия хранилища
+     * и после потери индекса заполненного сегмента, и записи составного перевода в выписках всех его счетов.
+     */
+    private static void test22() {
+        try {
+            Path directory = Files.createTempDirectory("history");
+            BankAccount account1 = new BankAccount("Счёт 1", Money.of(1000));
+            BankAccount account2 = new BankAccount("Счёт 2", Money.of(1000));
+            BankAccount account3 = new BankAccount("Счёт 3", Money.of(1000));
+            boolean found;
+            Instant middle;
+            try (TransactionHistory history = new TransactionHistory(directory, 4, 16)) {
+                BankService bankService = new BankService(ExecutionMode.CALLER, history);
+                for (int i = 1; i <= 20; i++) {
+                    bankService.transferFundsAtomic(account1, account2, Money.of(i));
+                }
+                Thread.sleep(5);
+                middle = Instant.ofEpochMilli(System.currentTimeMillis());
+                for (int i = 1; i <= 5; i++) {
+                    bankService.transferFundsAtomic(account3, account1, Money.of(i));
+                }
+                bankService.transferFundsAtomic(account2, account3, Money.of(5000));
+                List<HistoryRecord> last = history.last("Счёт 1", 0, 3);
+                List<HistoryRecord> page = history.last("Счёт 1", 5, 3);
+                List<HistoryRecord> recent = history.between("Счёт 1", middle, Instant.MAX, 1, 10);
+                found = history.size() == 26 && last.size() == 3 && last.get(0).amount() == Money.of(5)
+                        && last.get(2).amount() == Money.of(3) && page.get(0).amount() == Money.of(20)
+                        && page.get(2).amount() == Money.of(18) && recent.size() == 4
+                        && recent.get(0).amount() == Money.of(2) && recent.get(3).amount() == Money.of(5)
+                        && history.between(middle, Instant.MAX, 0, 100).size() == 6
+                        && !history.last("Счёт 3", 0, 1).get(0).successful()
+                        && history.last("Счёт 4", 0, 10).isEmpty();
+            }
+            Path index = directory.resolve(String.format("history-%019d.idx", 0));
+            found &= Files.exists(index);
+            Files.delete(index);
+            try (TransactionHistory history = new TransactionHistory(directory, 4, 16)) {
+                List<HistoryRecord> earlier = history.between("Счёт 2", Instant.EPOCH, middle, 18, 10);
+                List<HistoryRecord> all = history.last("Счёт 1", 0, 100);
+                List<HistoryRecord> older = history.last("Счёт 2", 6, 3);
+                found &= history.size() == 26 && earlier.size() == 2 && earlier.get(1).amount() == Money.of(20)
+                        && earlier.get(1).senderAccount().equals("Счёт 1")
+                        && history.last("Счёт 2", 0, 1).get(0).amount() == Money.of(5000)
+                        && all.size() == 25 && all.get(24).amount() == Money.of(1)
+                        && older.size() == 3 && older.get(0).amount() == Money.of(15)
+                        && older.get(2).amount() == Money.of(13) && Files.exists(index);
+                new BankService(ExecutionMode.CALLER, history).transferFundsMultiLeg(
+                        List.of(new TransferLeg(account1, Money.of(3))),
+                        List.of(new TransferLeg(account2, Money.of(1)), new TransferLeg(account3, Money.of(2)))).join();
+                HistoryRecord salary = history.last("Счёт 3", 0, 1).get(0);
+                found &= history.size() == 28 && history.last("Счёт 1", 0, 2).size() == 2
+                        && salary.senderAccount().equals("Счёт 1") && salary.amount() == Money.of(2)
+                        && salary.transactionId() == history.last("Счёт 2", 0, 1).get(0).transactionId();
+            }
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+
+            if (found) {
+                System.out.println("Тест22 пройден");
+            } else {
+                System.out.println("Тест22 не пройден");
+            }
+        } catch (IOException e) {
+            System.out.println("Тест22 не пройден: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Загрузка файла переводов: разбор сумм, пропуск пустых строк, отказы по параметрам, неизвестным счетам
+     * и недостатку средств, строки на границах окон и пакетов, параллельный разбор частей окна
+     * и выполнение переводов в порядке строк файла.
+     */
+    private static void test23() {
+        try {
+            Path file = Files.createTempFile("transfers", ".csv");
+            AccountRegistry registry = new AccountRegistry();
+            for (int i = 1; i <= 9; i++) {
+                registry.open(i, Money.of(i == 5 || i == 7 ? 10_000 : i >= 6 && i != 7 ? 0 : 100));
+            }
+            BankService bankService = new BankService(ExecutionMode.CALLER, TransactionJournal.NONE);
+
+            StringBuilder transfers = new StringBuilder("1,2,10.50\n2,3,5\r\n\n3,3,1\n1,2,-5\n1,2,0\n1,99,1\n"
+                    + "abc\n1,2,1.234\n4,1,1000\n");
+            transfers.append("5,6,1\n".repeat(200)).append("6,5,0.5");
+            Files.writeString(file, transfers);
+            ImportSummary small = new TransferImporter(bankService, registry, 64, 7).importFile(file);
+
+            // Последняя строка тратит деньги, зачисленные предыдущими частями окна.
+            Files.writeString(file, "7,8,0.01\n".repeat(300_000) + "8,9,2950");
+            ImportSummary large = new TransferImporter(bankService, registry).importFile(file);
+            Files.delete(file);
+
+            if (small.equals(new ImportSummary(210, 203, 5, 2, Map.of(TransferOutcome.SAME_ACCOUNT, 1L,
+                    TransferOutcome.NON_POSITIVE_AMOUNT, 2L, TransferOutcome.INSUFFICIENT_FUNDS, 1L)))
+                    && large.equals(new ImportSummary(300_001, 300_001, 0, 0, Map.of()))
+                    && registry.get(1).getBalance() == Money.of(89, 50)
+                    && registry.get(2).getBalance() == Money.of(105, 50)
+                    && registry.get(3).getBalance() == Money.of(105) && registry.get(4).getBalance() == Money.of(100)
+                    && registry.get(5).getBalance() == Money.of(9800, 50)
+                    && registry.get(6).getBalance() == Money.of(199, 50)
+                    && registry.get(8).getBalance() == Money.of(50)
+                    && registry.get(9).getBalance() == Money.of(2950)) {
+                System.out.println("Тест23 пройден");
+            } else {
+                System.out.println("Тест23 не пройден");
+            }
+        } catch (IOException e) {
+            System.out.println("Тест23 не пройден: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Составные переводы: выплата с одного счёта на 10 000 счетов одной транзакцией, перевод с нескольких
+     * счетов на несколько, отмена целиком при неудачном списании и при неудачном зачислении, проверка параметров
+     * и запись в журнал по части на каждую пару счетов, отмена при ошибке журнала счёта получателя.
+     */
+    private static void test24() {
+        List<String> journaled = Collections.synchronizedList(new ArrayList<>());
+        BankService bankService = new BankService(ExecutionMode.CALLER, (id, sender, receiver, amount, successful) -> {
+            journaled.add(sender + " -> " + receiver + ": " + amount);
+        });
+
+        BankAccount payer = new BankAccount("Работодатель", Money.of(1_000_050));
+        List<TransferLeg> salaries = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            salaries.add(new TransferLeg(new BankAccount("Сотрудник " + i, 0), Money.of(100)));
+        }
+        boolean payroll = bankService.transferFundsMultiLeg(List.of(new TransferLeg(payer, Money.of(1_000_000))),
+                salaries).join().successful() && payer.getBalance() == Money.of(50)
+                && salaries.stream().allMatch(leg -> leg.account().getBalance() == Money.of(100));
+
+        BankAccount account1 = new BankAccount("Счёт 1", Money.of(100));
+        BankAccount account2 = new BankAccount("Счёт 2", Money.of(50));
+        BankAccount account3 = new BankAccount("Счёт 3", 0);
+        BankAccount account4 = new BankAccount("Счёт 4", 0);
+        BankAccount account5 = new BankAccount("Счёт 5", 0);
+        account5.setFraud(true);
+        boolean manyToMany = bankService.transferFundsMultiLeg(
+                List.of(new TransferLeg(account1, Money.of(60)), new TransferLeg(account2, Money.of(40))),
+                List.of(new TransferLeg(account3, Money.of(70)), new TransferLeg(account4, Money.of(30))))
+                .join().successful();
+        boolean debitFailed = bankService.transferFundsMultiLeg(
+                List.of(new TransferLeg(account1, Money.of(1000)), new TransferLeg(account2, Money.of(10))),
+                List.of(new TransferLeg(account3, Money.of(1010)))).join()
+                .outcome() == TransferOutcome.INSUFFICIENT_FUNDS;
+        boolean creditFailed = bankService.transferFundsMultiLeg(List.of(new TransferLeg(account3, Money.of(50))),
+                List.of(new TransferLeg(account4, Money.of(20)), new TransferLeg(account5, Money.of(30)))).join()
+                .outcome() == TransferOutcome.FRAUD;
+        boolean validated = bankService.transferFundsMultiLeg(List.of(new TransferLeg(account1, Money.of(10))),
+                List.of(new TransferLeg(account3, Money.of(9)))).join().outcome() == TransferOutcome.UNBALANCED
+                && bankService.transferFundsMultiLeg(List.of(new TransferLeg(account1, Money.of(10))),
+                List.of(new TransferLeg(account1, Money.of(10)))).join().outcome() == TransferOutcome.SAME_ACCOUNT
+                && bankService.transferFundsMultiLeg(List.of(new TransferLeg(account1, 0)),
+                List.of(new TransferLeg(account3, 0))).join().outcome() == TransferOutcome.NON_POSITIVE_AMOUNT
+                && bankService.transferFundsMultiLeg(List.of(), List.of()).join()
+                .outcome() == TransferOutcome.NO_LEGS
+                // Суммы зачислений переполняют long и без проверки переполнения совпали бы со списанием.
+                && bankService.transferFundsMultiLeg(List.of(new TransferLeg(account1, 1)),
+                List.of(new TransferLeg(account3, Long.MAX_VALUE), new TransferLeg(account4, Long.MAX_VALUE),
+                        new TransferLeg(new BankAccount("Счёт 6", 0), 3))).join()
+                .outcome() == TransferOutcome.UNBALANCED;
+
+        // Журнал счёта получателя не принимает зачисления: выполненные части отменяются, результат не зависает.
+        BankAccount payer2 = new BankAccount("Плательщик", Money.of(1000));
+        BankAccount payee = new BankAccount("Получатель", 0);
+        BankAccount unlogged = new BankAccount("Счёт без журнала", 0, new AccountLog() {
+            @Override
+            public void balanceChanged(String accountNumber, long delta) {
+                throw new UncheckedIOException(new IOException("Диск заполнен"));
+            }
+        });
+        boolean logFailed = bankService.transferFundsMultiLeg(List.of(new TransferLeg(payer2, Money.of(100))),
+                List.of(new TransferLeg(payee, Money.of(40)), new TransferLeg(unlogged, Money.of(60))))
+                .orTimeout(5, TimeUnit.SECONDS).join().outcome() == TransferOutcome.LOG_FAILURE
+                && payer2.getBalance() == Money.of(1000) && payee.getBalance() == 0 && unlogged.getBalance() == 0;
+
+        // Каждая выплата зарплаты и каждая пара счетов составного перевода - отдельная запись журнала.
+        boolean journal = journaled.size() == 10_009
+                && journaled.get(9_999).equals("Работодатель -> Сотрудник 9999: " + Money.of(100))
+                && journaled.subList(10_000, 10_003).equals(List.of("Счёт 1 -> Счёт 3: " + Money.of(60),
+                "Счёт 2 -> Счёт 3: " + Money.of(10), "Счёт 2 -> Счёт 4: " + Money.of(30)));
+
+        if (payroll && manyToMany && debitFailed && creditFailed && validated && logFailed && journal
+                && bankService.getInFlight() == 0
+                && account1.getBalance() == Money.of(40) && account2.getBalance() == Money.of(10)
+                && account3.getBalance() == Money.of(70) && account4.getBalance() == Money.of(30)
+                && account5.getBalance() == 0) {
+            System.out.println("Тест24 пройден");
+        } else {
+            System.out.println("Тест24 не пройден");
+        }
+    }
+
+    /**
+     * Гонка поставщиков с обработчиком очереди: несколько потоков одновременно ставят операции в очередь
+     * одного счёта. Каждая операция должна выполниться ровно один раз, операции одного поставщика -
+     * в порядке постановки, одновременно не должно выполняться двух операций, а все признаки
+     * завершения должны завершиться.
+     */
+    private static void test25() {
+        int threads = 8;
+        int perThread = 20_000;
+        TaskQueue queue = new TaskQueue(64);
+        BankAccount account = new BankAccount("Счёт 1", 0);
+        int[] lastExecuted = new int[threads];
+        Arrays.fill(lastExecuted, -1);
+        AtomicInteger executing = new AtomicInteger();
+        AtomicInteger executed = new AtomicInteger();
+        AtomicInteger violations = new AtomicInteger();
+        List<CompletableFuture<Void>> completions = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(threads)) {
+            List<Future<List<CompletableFuture<Void>>>> submitters = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int submitter = t;
+                submitters.add(executor.submit(() -> {
+                    List<CompletableFuture<Void>> submitted = new ArrayList<>(perThread);
+                    for (int i = 0; i < perThread; i++) {
+                        int sequence = i;
+                        submitted.add(queue.submit(new Operation(account, 0, null) {
+                            @Override
+                            public void operate() {
+                                if (executing.incrementAndGet() != 1
+                                        || lastExecuted[submitter] != sequence - 1) {
+                                    violations.incrementAndGet();
+                                }
+                                lastExecuted[submitter] = sequence;
+                                executed.incrementAndGet();
+                                executing.decrementAndGet();
+                            }
+                        }));
+                    }
+                    return submitted;
+                }));
+            }
+            for (Future<List<CompletableFuture<Void>>> submitter : submitters) {
+                completions.addAll(submitter.get());
+            }
+            CompletableFuture.allOf(completions.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            violations.incrementAndGet();
+        }
+
+        if (violations.get() == 0 && executed.get() == threads * perThread && queue.isEmpty()
+                && completions.stream().allMatch(CompletableFuture::isDone)
+                && Arrays.stream(lastExecuted).allMatch(last -> last == perThread - 1)) {
+            System.out.println("Тест25 пройден");
+        } else {
+            System.out.println("Тест25 не пройден");
+        }
+    }
+
+    /**
+     * Захват обработки очереди счёта операцией, которая ждёт сигнала: пока она выполняется,
+     * очередь счёта не разбирается.
+     *
+     * @param account Счёт.
+     * @param busy    Сигнал о захвате обработки.
+     * @param release Сигнал к освобождению обработки.
+     */
+    private static void occupy(BankAccount account, CountDownLatch busy, CountDownLatch release) {
+        account.getTaskQueue().submit(new Operation(account, 0, null) {
+            @Override
+            public void operate() {
+                busy.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    /**
+     * Ожидание общего старта потоков теста.
+     *
+     * @param start Сигнал старта.
+     */
+    private static void awaitQuietly(CountDownLatch start) {
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * Имитация донатов от страждущих школотронов в топовом камхор-чате.
      * 9 счетов с 10кк дублонов каждый засылают на 10-й счёт по 1 дублону в каждой транзакции.
@@ -96,53 +1348,53 @@ public class BankApp {
     private static void stressTest() {
         long startTime = System.nanoTime();
 
-        BankAccount account1 = new BankAccount("Счёт 1", 10_000_000);
-        BankAccount account2 = new BankAccount("Счёт 2", 10_000_000);
-        BankAccount account3 = new BankAccount("Счёт 3", 10_000_000);
-        BankAccount account4 = new BankAccount("Счёт 4", 10_000_000);
-        BankAccount account5 = new BankAccount("Счёт 5", 10_000_000);
-        BankAccount account6 = new BankAccount("Счёт 6", 10_000_000);
-        BankAccount account7 = new BankAccount("Счёт 7", 10_000_000);
-        BankAccount account8 = new BankAccount("Счёт 8", 10_000_000);
-        BankAccount account9 = new BankAccount("Счёт 9", 10_000_000);
+        BankAccount account1 = new BankAccount("Счёт 1", Money.of(10_000_000));
+        BankAccount account2 = new BankAccount("Счёт 2", Money.of(10_000_000));
+        BankAccount account3 = new BankAccount("Счёт 3", Money.of(10_000_000));
+        BankAccount account4 = new BankAccount("Счёт 4", Money.of(10_000_000));
+        BankAccount account5 = new BankAccount("Счёт 5", Money.of(10_000_000));
+        BankAccount account6 = new BankAccount("Счёт 6", Money.of(10_000_000));
+        BankAccount account7 = new BankAccount("Счёт 7", Money.of(10_000_000));
+        BankAccount account8 = new BankAccount("Счёт 8", Money.of(10_000_000));
+        BankAccount account9 = new BankAccount("Счёт 9", Money.of(10_000_000));
         BankAccount account10 = new BankAccount("Счёт 10", 0);
 
         BankService bankService = new BankService();
 
         Callable<Void> task1 = () -> {
-            bankService.transferFunds(account1, account10, 1);
+            bankService.transferFunds(account1, account10, Money.of(1));
             return null;
         };
         Callable<Void> task2 = () -> {
-            bankService.transferFunds(account2, account10, 1);
+            bankService.transferFunds(account2, account10, Money.of(1));
             return null;
         };
         Callable<Void> task3 = () -> {
-            bankService.transferFunds(account3, account10, 1);
+            bankService.transferFunds(account3, account10, Money.of(1));
             return null;
         };
         Callable<Void> task4 = () -> {
-            bankService.transferFunds(account4, account10, 1);
+            bankService.transferFunds(account4, account10, Money.of(1));
             return null;
         };
         Callable<Void> task5 = () -> {
-            bankService.transferFunds(account5, account10, 1);
+            bankService.transferFunds(account5, account10, Money.of(1));
             return null;
         };
         Callable<Void> task6 = () -> {
-            bankService.transferFunds(account6, account10, 1);
+            bankService.transferFunds(account6, account10, Money.of(1));
             return null;
         };
         Callable<Void> task7 = () -> {
-            bankService.transferFunds(account7, account10, 1);
+            bankService.transferFunds(account7, account10, Money.of(1));
             return null;
         };
         Callable<Void> task8 = () -> {
-            bankService.transferFunds(account8, account10, 1);
+            bankService.transferFunds(account8, account10, Money.of(1));
             return null;
         };
         Callable<Void> task9 = () -> {
-            bankService.transferFunds(account9, account10, 1);
+            bankService.transferFunds(account9, account10, Money.of(1));
             return null;
         };
 
@@ -190,4 +1442,46 @@ public class BankApp {
             System.out.printf("Время выполнения: %.3f s\n", seconds);
         }
     }
+
+    /**
+     * Тот же сценарий, что и в {@link #stressTest()}, но в режиме виртуальных потоков и с открытой нагрузкой:
+     * переводы подаются непрерывно, не дожидаясь завершения предыдущих, каждый выполняется в своём
+     * виртуальном потоке. Окончание определяется по счётчику завершённых переводов.
+     */
+    private static void stressTestOpenLoop() {
+        long startTime = System.nanoTime();
+
+        BankAccount[] senders = new BankAccount[9];
+        for (int i = 0; i < senders.length; i++) {
+            senders[i] = new BankAccount("Счёт " + (i + 1), Money.of(10_000_000));
+        }
+        BankAccount account10 = new BankAccount("Счёт 10", 0);
+
+        CountDownLatch completed = new CountDownLatch(9_000_000);
+        try (BankService bankService = new BankService(ExecutionMode.VIRTUAL_THREADS)) {
+            for (int i = 0; i < 1_000_000; i++) {
+                for (BankAccount sender : senders) {
+                    bankService.transferFundsAsync(sender, account10, Money.of(1))
+                            .whenComplete((result, error) -> completed.countDown());
+                }
+            }
+            try {
+                if (completed.await(1, TimeUnit.MINUTES)) {
+                    System.out.println("Все задачи успешно завершены!");
+                } else {
+                    System.out.println("Некоторые задачи не успели завершиться в отведенное время!");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (BankAccount sender : senders) {
+            System.out.println(sender);
+        }
+        System.out.println(account10);
+
+        long elapsedTime = System.nanoTime() - startTime;
+        System.out.printf("Время выполнения: %.3f s\n", (double) elapsedTime / 1_000_000_000);
+    }
 }
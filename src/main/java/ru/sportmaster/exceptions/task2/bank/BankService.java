@@ -1,35 +1,600 @@
 package ru.sportmaster.exceptions.task2.bank;
 
+import ru.sportmaster.exceptions.task2.bank.journal.ConsoleJournal;
+import ru.sportmaster.exceptions.task2.bank.journal.TransactionJournal;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
 /**
  * Класс реализует банковский сервис.
  */
-public class BankService {
+public class BankService implements AutoCloseable {
+
+    /**
+     * Количество полос блокировок для атомарных переводов.
+     */
+    private static final int LOCK_STRIPES = 1024;
+
+    /**
+     * Ёмкость пула повторно используемых транзакций.
+     */
+    private static final int TRANSACTION_POOL_CAPACITY = 4096;
+
+    /**
+     * Предел незавершённых переводов по умолчанию.
+     */
+    private static final int DEFAULT_MAX_IN_FLIGHT = 65_536;
+
+    /**
+     * Максимальное количество запоминаемых ключей идемпотентности по умолчанию.
+     */
+    private static final int DEFAULT_IDEMPOTENCY_CAPACITY = 100_000;
+
+    /**
+     * Время, в течение которого повтор запроса с тем же ключом идемпотентности не выполняется, по умолчанию.
+     */
+    private static final Duration DEFAULT_IDEMPOTENCY_TTL = Duration.ofMinutes(10);
+
+    /**
+     * Режим выполнения переводов.
+     */
+    private final ExecutionMode executionMode;
+
+    /**
+     * Исполнитель переводов в режиме виртуальных потоков, null - в режиме выполнения вызывающим потоком.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Журнал транзакций.
+     */
+    private final TransactionJournal journal;
+
+    /**
+     * Блокировки счетов для атомарных переводов.
+     */
+    private final StripedLocks locks;
+
+    /**
+     * Пул транзакций для переводов, результат которых не возвращается вызывающему.
+     */
+    private final RecyclingPool<Transaction> transactions;
+
+    /**
+     * Получатель измерений.
+     */
+    private final TransferMetrics metrics;
+
+    /**
+     * Результаты переводов по ключам идемпотентности.
+     */
+    private final IdempotencyCache idempotencyCache;
+
+    /**
+     * Предел незавершённых переводов.
+     */
+    private final int maxInFlight;
+
+    /**
+     * Разрешения на незавершённые переводы. Перевод занимает разрешение при приёме,
+     * а его транзакция освобождает после завершения.
+     */
+    private final Semaphore inFlight;
+
+    /**
+     * Проверка переводов на мошенничество перед постановкой в очереди.
+     */
+    private final FraudScreen fraudScreen;
+
+    /**
+     * Создание сервиса с режимом выполнения из конфигурации.
+     */
+    public BankService() {
+        this(ExecutionMode.fromConfiguration());
+    }
+
+    /**
+     * Создание сервиса с указанным режимом выполнения.
+     *
+     * @param executionMode Режим выполнения переводов.
+     */
+    public BankService(ExecutionMode executionMode) {
+        this(executionMode, new ConsoleJournal());
+    }
+
+    /**
+     * Создание сервиса с указанным режимом выполнения и журналом транзакций.
+     * Журнал принадлежит вызывающему и не закрывается вместе с сервисом.
+     *
+     * @param executionMode Режим выполнения переводов.
+     * @param journal       Журнал транзакций.
+     */
+    public BankService(ExecutionMode executionMode, TransactionJournal journal) {
+        this(executionMode, journal, TransferMetrics.NONE);
+    }
+
+    /**
+     * Создание сервиса с указанным режимом выполнения, журналом транзакций и получателем измерений,
+     * например {@link ru.sportmaster.exceptions.task2.bank.metrics.BankMetrics}.
+     *
+     * @param executionMode Режим выполнения переводов.
+     * @param journal       Журнал транзакций.
+     * @param metrics       Получатель измерений.
+     */
+    public BankService(ExecutionMode executionMode, TransactionJournal journal, TransferMetrics metrics) {
+        this(executionMode, journal, metrics, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Создание сервиса с пределом незавершённых переводов. Переводы сверх предела не ставятся в очереди
+     * и не занимают виртуальные потоки, а сразу получают отказ {@link TransferOutcome#OVERLOADED},
+     * поэтому при перегрузке растёт доля отказов, а не очереди, задержка и нагрузка на сборщик мусора.
+     *
+     * @param executionMode Режим выполнения переводов.
+     * @param journal       Журнал транзакций.
+     * @param metrics       Получатель измерений.
+     * @param maxInFlight   Предел незавершённых переводов.
+     */
+    public BankService(ExecutionMode executionMode, TransactionJournal journal, TransferMetrics metrics,
+                       int maxInFlight) {
+        this(executionMode, journal, metrics, maxInFlight, FraudScreen.NONE);
+    }
+
+    /**
+     * Создание сервиса с проверкой переводов на мошенничество, например {@link FraudScreening}.
+     * Проверка выполняется до создания транзакции, поэтому во время волны мошенничества отклоняемые
+     * переводы не занимают очереди счетов и не требуют отмены.
+     *
+     * @param executionMode Режим выполнения переводов.
+     * @param journal       Журнал транзакций.
+     * @param metrics       Получатель измерений.
+     * @param maxInFlight   Предел незавершённых переводов.
+     * @param fraudScreen   Проверка переводов на мошенничество.
+     */
+    public BankService(ExecutionMode executionMode, TransactionJournal journal, TransferMetrics metrics,
+                       int maxInFlight, FraudScreen fraudScreen) {
+        this(executionMode, journal, metrics, maxInFlight, fraudScreen, DEFAULT_IDEMPOTENCY_CAPACITY,
+                DEFAULT_IDEMPOTENCY_TTL);
+    }
+
+    /**
+     * Создание сервиса с указанными ёмкостью и временем жизни ключей идемпотентности.
+     * Ёмкость нужно выбирать не меньше количества запросов с ключами за время жизни ключа:
+     * живые ключи не вытесняются, поэтому сверх ёмкости запросы с новыми ключами
+     * получают отказ {@link TransferOutcome#OVERLOADED}.
+     *
+     * @param executionMode       Режим выполнения переводов.
+     * @param journal             Журнал транзакций.
+     * @param metrics             Получатель измерений.
+     * @param maxInFlight         Предел незавершённых переводов.
+     * @param fraudScreen         Проверка переводов на мошенничество.
+     * @param idempotencyCapacity Максимальное количество запоминаемых ключей идемпотентности.
+     * @param idempotencyTtl      Время, в течение которого повтор запроса с тем же ключом не выполняется.
+     */
+    public BankService(ExecutionMode executionMode, TransactionJournal journal, TransferMetrics metrics,
+                       int maxInFlight, FraudScreen fraudScreen, int idempotencyCapacity, Duration idempotencyTtl) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("Предел незавершённых переводов должен быть больше 0: " + maxInFlight);
+        }
+        this.executionMode = executionMode;
+        this.journal = journal;
+        this.metrics = metrics;
+        this.idempotencyCache = new IdempotencyCache(idempotencyCapacity, idempotencyTtl);
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.fraudScreen = fraudScreen;
+        this.locks = new StripedLocks(LOCK_STRIPES);
+        this.transactions = new RecyclingPool<>(TRANSACTION_POOL_CAPACITY);
+        this.executor = executionMode == ExecutionMode.VIRTUAL_THREADS
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : null;
+    }
+
+    /**
+     * Получение режима выполнения переводов.
+     *
+     * @return Режим выполнения.
+     */
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * Получение количества принятых, но ещё не завершённых переводов. Вместе с глубиной очередей счетов
+     * ({@link TaskQueue#size()}) позволяет вызывающему снизить нагрузку до того, как начнутся отказы.
+     *
+     * @return Количество незавершённых переводов.
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Получение предела незавершённых переводов.
+     *
+     * @return Предел незавершённых переводов.
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
 
     /**
      * Перевод денежных средств между счетами. Сперва создаётся новая транзакция с операциями списания и зачисления.
      * Далее операция списания кладётся в операционную очередь отправителя и запускается её обработка.
      * Затем операция начисления добавляется в операционную очередь получателя и запускается её обработка.
+     * Если очередь уже обрабатывается другим потоком, то операцию выполнит он, вызывающий поток не ждёт.
+     * В режиме виртуальных потоков транзакция создаётся и ставится в очереди в отдельном виртуальном потоке.
+     * Результат перевода вызывающему не нужен, поэтому транзакция берётся из пула и после завершения
+     * возвращается в него: в режиме {@link ExecutionMode#CALLER} успешный перевод не выделяет память.
+     * Если превышен предел незавершённых переводов или очередь отправителя отклонила списание,
+     * то возвращается {@link TransferOutcome#OVERLOADED}.
      *
      * @param sender   Счёт отправителя.
      * @param receiver Счёт получателя.
-     * @param amount   Сумма перевода.
+     * @param amount   Сумма перевода в копейках.
+     * @return {@link TransferOutcome#ACCEPTED}, если перевод принят к выполнению, иначе код отказа.
      */
-    public void transferFunds(BankAccount sender, BankAccount receiver, double amount) {
+    public TransferOutcome transferFunds(BankAccount sender, BankAccount receiver, long amount) {
+        TransferOutcome rejection = admit(sender, receiver, amount);
+        if (rejection != null) {
+            metrics.rejected(rejection);
+            return rejection;
+        }
+        if (!inFlight.tryAcquire()) {
+            metrics.rejected(TransferOutcome.OVERLOADED);
+            return TransferOutcome.OVERLOADED;
+        }
+        if (executor != null) {
+            executor.execute(() -> submit(sender, receiver, recycle(sender, receiver, amount)));
+            return TransferOutcome.ACCEPTED;
+        }
+        return submit(sender, receiver, recycle(sender, receiver, amount))
+                ? TransferOutcome.ACCEPTED
+                : TransferOutcome.OVERLOADED;
+    }
 
-        if (sender.getAccountNumber().equals(receiver.getAccountNumber())) {
-            System.out.println("Перевод средств невозможен: счёт получателя совпадает со счётом отправителя!");
-            return;
+    /**
+     * Асинхронный перевод денежных средств между счетами. Работает так же, как {@link #transferFunds},
+     * но возвращает итоговый результат перевода. Вызывающий поток не блокируется:
+     * future завершается, когда выполнены списание, зачисление и, при необходимости, отмена,
+     * а их изменения надёжно сохранены в журнале счетов.
+     *
+     * @param sender   Счёт отправителя.
+     * @param receiver Счёт получателя.
+     * @param amount   Сумма перевода в копейках.
+     * @return Future с результатом перевода.
+     */
+    public CompletableFuture<TransferResult> transferFundsAsync(BankAccount sender, BankAccount receiver,
+                                                                long amount) {
+        TransferOutcome rejection = admit(sender, receiver, amount);
+        if (rejection != null) {
+            metrics.rejected(rejection);
+            return CompletableFuture.completedFuture(new TransferResult(null, rejection));
+        }
+        if (!inFlight.tryAcquire()) {
+            metrics.rejected(TransferOutcome.OVERLOADED);
+            return CompletableFuture.completedFuture(new TransferResult(null, TransferOutcome.OVERLOADED));
+        }
+        if (executor != null) {
+            return CompletableFuture.supplyAsync(() -> {
+                Transaction transaction = new Transaction(sender, receiver, amount, journal, metrics, inFlight);
+                submit(sender, receiver, transaction);
+                return transaction;
+            }, executor).thenCompose(Transaction::getResult);
+        }
+        Transaction transaction = new Transaction(sender, receiver, amount, journal, metrics, inFlight);
+        submit(sender, receiver, transaction);
+        return transaction.getResult();
+    }
+
+    /**
+     * Перевод денежных средств с ключом идемпотентности клиента. Повторный запрос с тем же ключом
+     * (например, повтор после таймаута) не переводит средства второй раз, а возвращает результат
+     * первого перевода, даже если тот ещё выполняется. Ключ помнится ограниченное время,
+     * а параметры повторного запроса не сравниваются с первым. Если живых ключей столько, сколько вмещает кэш,
+     * то новый ключ не запоминается и перевод получает отказ {@link TransferOutcome#OVERLOADED}.
+     * Перевод, отклонённый из-за перегрузки, не запоминается: повтор с тем же ключом выполнит его заново.
+     *
+     * @param idempotencyKey Ключ идемпотентности.
+     * @param sender         Счёт отправителя.
+     * @param receiver       Счёт получателя.
+     * @param amount         Сумма перевода в копейках.
+     * @return Future с результатом первого перевода с этим ключом.
+     */
+    public CompletableFuture<TransferResult> transferFunds(String idempotencyKey, BankAccount sender,
+                                                           BankAccount receiver, long amount) {
+        CompletableFuture<TransferResult> result = new CompletableFuture<>();
+        CompletableFuture<TransferResult> original = idempotencyCache.putIfAbsent(idempotencyKey, result);
+        if (original == IdempotencyCache.FULL) {
+            metrics.rejected(TransferOutcome.OVERLOADED);
+            return CompletableFuture.completedFuture(new TransferResult(null, TransferOutcome.OVERLOADED));
         }
+        if (original != null) {
+            return original;
+        }
+        transferFundsAsync(sender, receiver, amount).whenComplete((transferResult, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                if (transferResult.outcome() == TransferOutcome.OVERLOADED) {
+                    idempotencyCache.remove(idempotencyKey, result);
+                }
+                result.complete(transferResult);
+            }
+        });
+        return result;
+    }
 
+    /**
+     * Строго атомарный перевод денежных средств. В отличие от {@link #transferFunds}, списание и зачисление
+     * выполняются сразу, под блокировками обоих счетов, а не через операционные очереди с последующей отменой.
+     * Поэтому получатель никогда не видит средств, зачисление которых потом отменяется.
+     * Блокировки берутся из набора полос по хешу номера счёта в глобальном порядке, что исключает
+     * взаимную блокировку. Атомарность гарантируется относительно других атомарных переводов, поэтому
+     * для одних и тех же счетов не следует смешивать этот режим с переводами через очереди.
+     * Результат возвращается после надёжного сохранения изменений в журнале счетов.
+     * Если журнал счёта получателя не принял зачисление, то списание отменяется под теми же блокировками
+     * и перевод завершается с {@link TransferOutcome#LOG_FAILURE}.
+     *
+     * @param sender   Счёт отправителя.
+     * @param receiver Счёт получателя.
+     * @param amount   Сумма перевода в копейках.
+     * @return Результат перевода.
+     */
+    public TransferResult transferFundsAtomic(BankAccount sender, BankAccount receiver, long amount) {
+        TransferOutcome outcome = admit(sender, receiver, amount);
+        if (outcome != null) {
+            metrics.rejected(outcome);
+            return new TransferResult(null, outcome);
+        }
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        int senderStripe = locks.stripeOf(sender);
+        int receiverStripe = locks.stripeOf(receiver);
+        locks.lock(senderStripe, receiverStripe);
+        try {
+            if (sender.isFraud() || receiver.isFraud()) {
+                outcome = TransferOutcome.FRAUD;
+            } else if (sender.isClosed() || receiver.isClosed()) {
+                outcome = TransferOutcome.CLOSED;
+            } else {
+                long epoch = sender.limitEpoch();
+                try {
+                    outcome = sender.withdraw(amount, epoch);
+                } catch (RuntimeException e) {
+                    // Журнал счёта отправителя не принял списание, баланс отправителя восстановлен.
+                    outcome = TransferOutcome.LOG_FAILURE;
+                }
+                if (outcome == null) {
+                    try {
+                        receiver.credit(amount);
+                        outcome = TransferOutcome.SUCCESS;
+                    } catch (RuntimeException e) {
+                        // Журнал счёта получателя не принял зачисление, баланс получателя не изменён.
+                        sender.refund(amount, epoch);
+                        outcome = TransferOutcome.LOG_FAILURE;
+                    }
+                }
+            }
+        } finally {
+            locks.unlock(senderStripe, receiverStripe);
+        }
+        long id = TransactionIds.next();
+        boolean successful = outcome == TransferOutcome.SUCCESS;
+        journal.record(id, sender.getAccountNumber(), receiver.getAccountNumber(), amount, successful);
+        awaitDurable(List.of(sender, receiver));
+        if (metrics.isEnabled()) {
+            if (!successful) {
+                metrics.rejected(outcome);
+            }
+            metrics.transferCompleted(System.nanoTime() - start, successful);
+        }
+        return new TransferResult(Long.toString(id), outcome);
+    }
+
+    /**
+     * Допуск перевода: проверка параметров и проверка на мошенничество.
+     *
+     * @param sender   Счёт отправителя.
+     * @param receiver Счёт получателя.
+     * @param amount   Сумма перевода в копейках.
+     * @return Код отказа или null, если перевод допущен.
+     */
+    private TransferOutcome admit(BankAccount sender, BankAccount receiver, long amount) {
+        TransferOutcome rejection = validate(sender, receiver, amount);
+        return rejection != null ? rejection : fraudScreen.screen(sender, receiver, amount);
+    }
+
+    /**
+     * Проверка параметров перевода.
+     *
+     * @param sender   Счёт отправителя.
+     * @param receiver Счёт получателя.
+     * @param amount   Сумма перевода в копейках.
+     * @return Код отказа или null, если перевод возможен.
+     */
+    static TransferOutcome validate(BankAccount sender, BankAccount receiver, long amount) {
+        if (sender.getAccountNumber().equals(receiver.getAccountNumber())) {
+            return TransferOutcome.SAME_ACCOUNT;
+        }
         if (amount <= 0) {
-            System.out.println("Перевод средств невозможен: сумма перевода должна быть больше 0!");
-            return;
+            return TransferOutcome.NON_POSITIVE_AMOUNT;
         }
+        return null;
+    }
+
+    /**
+     * Получение транзакции из пула или создание новой повторно используемой транзакции.
+     *
+     * @param sender   Счёт отправителя.
+     * @param receiver Счёт получателя.
+     * @param amount   Сумма перевода в копейках.
+     * @return Подготовленная транзакция.
+     */
+    private Transaction recycle(BankAccount sender, BankAccount receiver, long amount) {
+        Transaction transaction = transactions.acquire();
+        if (transaction == null) {
+            transaction = new Transaction(journal, metrics, transactions, inFlight);
+        }
+        return transaction.reset(sender, receiver, amount);
+    }
+
+    /**
+     * Постановка операций транзакции в очереди отправителя и получателя.
+     * Если очередь отправителя отклонила или уже вытеснила списание, то зачисление не ставится в очередь,
+     * а сразу отклоняется. Повторно используемая транзакция может вернуться в пул сразу после постановки
+     * зачисления, поэтому после вызова её можно использовать, только если она одноразовая.
+     *
+     * @param sender      Счёт отправителя.
+     * @param receiver    Счёт получателя.
+     * @param transaction Транзакция.
+     * @return false, если перевод отклонён из-за перегрузки очереди отправителя.
+     */
+    private boolean submit(BankAccount sender, BankAccount receiver, Transaction transaction) {
+        Withdrawal withdrawal = transaction.getWithdrawal();
+        sender.getTaskQueue().submit(withdrawal, metrics);
+        if (withdrawal.getFailure() == TransferOutcome.OVERLOADED) {
+            transaction.getReplenishment().reject(TransferOutcome.OVERLOADED);
+            return false;
+        }
+        if (receiver.isHot()) {
+            // Зачисления коммутативны, а горячий счёт принимает их без общей точки сериализации,
+            // поэтому зачисление выполняется сразу, минуя очередь счёта.
+            transaction.getReplenishment().execute();
+        } else {
+            receiver.getTaskQueue().submit(transaction.getReplenishment(), metrics);
+        }
+        return true;
+    }
+
+    /**
+     * Составной перевод: списания с нескольких счетов и зачисления на несколько счетов, которые
+     * выполняются или отменяются целиком, например выплата зарплаты с одного счёта на тысячи счетов.
+     * Перевод - одна транзакция с одним идентификатором, которая занимает одно разрешение на незавершённый
+     * перевод. В журнал она записывается частями "отправитель - получатель" через
+     * {@link TransactionJournal#recordLegs}, не больше частей, чем списаний и зачислений вместе. Реализация
+     * журнала по умолчанию пишет каждую часть отдельной записью, то есть выплата на 10 000 счетов - это
+     * 10 000 записей журнала; записать части вместе может только журнал, переопределивший этот метод.
+     * Списания ставятся в очереди отправителей, зачисления выполняются после всех
+     * списаний (см. {@link MultiLegTransaction}). Проверка на мошенничество через {@link FraudScreen}
+     * рассчитана на пары счетов и здесь не выполняется, признаки счетов проверяются при выполнении частей.
+     *
+     * @param debits  Списания.
+     * @param credits Зачисления, их общая сумма должна быть равна сумме списаний.
+     * @return Future с результатом перевода.
+     */
+    public CompletableFuture<TransferResult> transferFundsMultiLeg(List<TransferLeg> debits,
+                                                                   List<TransferLeg> credits) {
+        TransferOutcome rejection = MultiLegTransaction.validate(debits, credits);
+        if (rejection == null && !inFlight.tryAcquire()) {
+            rejection = TransferOutcome.OVERLOADED;
+        }
+        if (rejection != null) {
+            metrics.rejected(rejection);
+            return CompletableFuture.completedFuture(new TransferResult(null, rejection));
+        }
+        if (executor != null) {
+            return CompletableFuture.supplyAsync(() -> {
+                MultiLegTransaction transaction = new MultiLegTransaction(debits, credits, journal, metrics, inFlight);
+                transaction.submit();
+                return transaction;
+            }, executor).thenCompose(MultiLegTransaction::getResult);
+        }
+        MultiLegTransaction transaction = new MultiLegTransaction(debits, credits, journal, metrics, inFlight);
+        transaction.submit();
+        return transaction.getResult();
+    }
 
-        Transaction transaction = new Transaction(sender, receiver, amount);
-        sender.getTaskQueue().add(transaction.getWithdrawal());
-        sender.getTaskQueue().process();
-        receiver.getTaskQueue().add(transaction.getReplenishment());
-        receiver.getTaskQueue().process();
+    /**
+     * Пакетный перевод денежных средств. Заявки группируются по счетам: все списания одного отправителя
+     * выполняются одной операцией в его очереди, а все зачисления одному получателю объединяются
+     * в одно изменение баланса. Зачисления начинаются только после завершения всех списаний пакета,
+     * поэтому получатель не видит средств, которые потом пришлось бы отменять.
+     * Для заявок пакета не создаются отдельные транзакции и не пишется лог. Метод возвращает управление
+     * после надёжного сохранения изменений балансов в журнале счетов.
+     * Отказ журнала счёта не прерывает пакет: затронутые заявки получают {@link TransferOutcome#LOG_FAILURE},
+     * а списанные по ним средства возвращаются отправителям.
+     *
+     * @param requests Заявки на перевод.
+     * @return Результаты по заявкам в том же порядке: {@link TransferOutcome#SUCCESS} или код отказа.
+     */
+    public TransferOutcome[] transferFundsBatch(List<TransferRequest> requests) {
+        TransferOutcome[] outcomes = new TransferOutcome[requests.size()];
+
+        Map<BankAccount, List<Integer>> bySender = new HashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            TransferRequest request = requests.get(i);
+            TransferOutcome rejection = admit(request.sender(), request.receiver(), request.amount());
+            if (rejection != null) {
+                outcomes[i] = rejection;
+                continue;
+            }
+            bySender.computeIfAbsent(request.sender(), account -> new ArrayList<>()).add(i);
+        }
+
+        List<CompletableFuture<Void>> withdrawals = new ArrayList<>(bySender.size());
+        bySender.forEach((sender, indexes) -> withdrawals.add(
+                sender.getTaskQueue().submit(new BatchWithdrawal(sender, requests, indexes, outcomes), metrics)));
+        CompletableFuture.allOf(withdrawals.toArray(new CompletableFuture<?>[0])).join();
+
+        Map<BankAccount, List<Integer>> byReceiver = new HashMap<>();
+        Map<BankAccount, Long> totals = new HashMap<>();
+        for (int i = 0; i < outcomes.length; i++) {
+            if (outcomes[i] == TransferOutcome.SUCCESS) {
+                TransferRequest request = requests.get(i);
+                byReceiver.computeIfAbsent(request.receiver(), account -> new ArrayList<>()).add(i);
+                totals.merge(request.receiver(), request.amount(), Long::sum);
+            }
+        }
+
+        List<CompletableFuture<Void>> replenishments = new ArrayList<>(byReceiver.size());
+        byReceiver.forEach((receiver, indexes) -> replenishments.add(receiver.getTaskQueue().submit(
+                new BatchReplenishment(receiver, totals.get(receiver), requests, indexes, outcomes), metrics)));
+        CompletableFuture.allOf(replenishments.toArray(new CompletableFuture<?>[0])).join();
+
+        if (!bySender.isEmpty()) {
+            List<BankAccount> changed = new ArrayList<>(bySender.keySet());
+            changed.addAll(byReceiver.keySet());
+            awaitDurable(changed);
+        }
+        for (TransferOutcome outcome : outcomes) {
+            if (outcome.isRejected()) {
+                metrics.rejected(outcome);
+            }
+        }
+        return outcomes;
+    }
+
+    /**
+     * Ожидание надёжного сохранения изменений счетов в их журналах.
+     *
+     * @param accounts Счета, изменения которых нужно дождаться.
+     * @throws RuntimeException Если журнал не сохранил изменения.
+     */
+    private static void awaitDurable(Collection<? extends BankAccount> accounts) {
+        CompletableFuture<Throwable> durable = new CompletableFuture<>();
+        BankAccount.whenDurable(accounts, durable::complete);
+        Throwable failure = durable.join();
+        if (failure != null) {
+            throw failure instanceof RuntimeException e ? e : new IllegalStateException(failure);
+        }
+    }
+
+    /**
+     * Завершение работы сервиса. В режиме виртуальных потоков дожидается выполнения запущенных переводов.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.close();
+        }
     }
 }
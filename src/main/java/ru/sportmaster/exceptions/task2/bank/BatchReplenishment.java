@@ -0,0 +1,81 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import java.util.List;
+
+/**
+ * Класс реализует пакетное зачисление - все зачисления одному получателю из пакета переводов,
+ * объединённые в одно изменение баланса.
+ */
+class BatchReplenishment extends Operation {
+
+    /**
+     * Заявки пакета.
+     */
+    private final List<TransferRequest> requests;
+
+    /**
+     * Номера заявок пакета, относящихся к получателю и успешно списанных у отправителей.
+     */
+    private final List<Integer> indexes;
+
+    /**
+     * Результаты по заявкам пакета: {@link TransferOutcome#SUCCESS} - перевод выполнен, иначе код отказа.
+     */
+    private final TransferOutcome[] outcomes;
+
+    /**
+     * Создание пакетного зачисления.
+     *
+     * @param receiver Счёт получателя.
+     * @param amount   Общая сумма зачисления в копейках.
+     * @param requests Заявки пакета.
+     * @param indexes  Номера заявок получателя.
+     * @param outcomes Результаты по заявкам пакета.
+     */
+    BatchReplenishment(BankAccount receiver, long amount, List<TransferRequest> requests, List<Integer> indexes,
+                       TransferOutcome[] outcomes) {
+        super(receiver, amount, null);
+        this.requests = requests;
+        this.indexes = indexes;
+        this.outcomes = outcomes;
+    }
+
+    /**
+     * Обработка пакетного зачисления. Вся сумма зачисляется одной операцией.
+     * Если счёт получателя успел стать замороженным или закрытым, то отправителям
+     * возвращаются списанные суммы, а переводы отмечаются как невыполненные. Пакет выполняется
+     * сразу после списаний, поэтому возврат вычитается из лимита отправителя в текущем периоде.
+     * Если журнал счёта получателя не принял зачисление, то средства также возвращаются,
+     * а переводы отмечаются кодом {@link TransferOutcome#LOG_FAILURE}.
+     */
+    @Override
+    public void operate() {
+        TransferOutcome rejection;
+        if (account.isFraud()) {
+            rejection = TransferOutcome.FRAUD;
+        } else {
+            try {
+                rejection = account.tryCredit(amount) ? null : TransferOutcome.CLOSED;
+            } catch (RuntimeException e) {
+                // Журнал счёта получателя не принял зачисление, баланс получателя не изменён.
+                rejection = TransferOutcome.LOG_FAILURE;
+            }
+        }
+        if (rejection != null) {
+            for (int index : indexes) {
+                TransferRequest request = requests.get(index);
+                outcomes[index] = rejection;
+                try {
+                    request.sender().refund(request.amount(), request.sender().limitEpoch());
+                } catch (RuntimeException e) {
+                    // Журнал счёта отправителя не принял возврат: заявка отмечается отказом журнала,
+                    // возврат остальным отправителям продолжается.
+                    outcomes[index] = TransferOutcome.LOG_FAILURE;
+                }
+            }
+            isSuccessful = false;
+            return;
+        }
+        isSuccessful = true;
+    }
+}
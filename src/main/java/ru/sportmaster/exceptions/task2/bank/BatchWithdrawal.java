@@ -0,0 +1,97 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import java.util.List;
+
+/**
+ * Класс реализует пакетное списание - все списания одного отправителя из пакета переводов,
+ * выполняемые одной операцией в очереди отправителя.
+ */
+class BatchWithdrawal extends Operation {
+
+    /**
+     * Заявки пакета.
+     */
+    private final List<TransferRequest> requests;
+
+    /**
+     * Номера заявок пакета, относящихся к отправителю.
+     */
+    private final List<Integer> indexes;
+
+    /**
+     * Результаты по заявкам пакета: {@link TransferOutcome#SUCCESS} - средства списаны, иначе код отказа.
+     */
+    private final TransferOutcome[] outcomes;
+
+    /**
+     * Создание пакетного списания.
+     *
+     * @param sender   Счёт отправителя.
+     * @param requests Заявки пакета.
+     * @param indexes  Номера заявок отправителя.
+     * @param outcomes Результаты по заявкам пакета.
+     */
+    BatchWithdrawal(BankAccount sender, List<TransferRequest> requests, List<Integer> indexes,
+                    TransferOutcome[] outcomes) {
+        super(sender, 0, null);
+        this.requests = requests;
+        this.indexes = indexes;
+        this.outcomes = outcomes;
+    }
+
+    /**
+     * Обработка пакетного списания.
+     * 1. Если счёт отправителя заморожен или закрыт, то ни одно списание не выполняется.
+     * 2. Заявки на замороженные или закрытые счета получателей отклоняются сразу, без списания.
+     * 3. Сперва пробуем списать всю сумму пакета одним CAS. Если средств не хватает
+     * или у счёта есть лимит списаний, то списываем по одной заявке в порядке их следования в пакете.
+     * Каждая заявка тогда проверяется и учитывается в лимите отдельно, а отказ получает свой код.
+     * Если журнал счёта не принял списание по заявке, то заявка получает {@link TransferOutcome#LOG_FAILURE}.
+     */
+    @Override
+    public void operate() {
+        TransferOutcome rejection = account.isFraud() ? TransferOutcome.FRAUD
+                : account.isClosed() ? TransferOutcome.CLOSED : null;
+        if (rejection != null) {
+            for (int index : indexes) {
+                outcomes[index] = rejection;
+            }
+            isSuccessful = false;
+            return;
+        }
+        long total = 0;
+        for (int index : indexes) {
+            TransferRequest request = requests.get(index);
+            outcomes[index] = request.receiver().isFraud() ? TransferOutcome.FRAUD
+                    : request.receiver().isClosed() ? TransferOutcome.CLOSED : TransferOutcome.SUCCESS;
+            if (outcomes[index] == TransferOutcome.SUCCESS) {
+                total += request.amount();
+            }
+        }
+        boolean debited = false;
+        if (account.getVelocityLimit() == null) {
+            try {
+                debited = account.tryDebit(total);
+            } catch (RuntimeException e) {
+                // Журнал счёта не принял списание всей суммы, баланс восстановлен: списываем по одной заявке.
+            }
+        }
+        if (!debited) {
+            for (int index : indexes) {
+                if (outcomes[index] == TransferOutcome.SUCCESS) {
+                    TransferOutcome failure;
+                    try {
+                        failure = account.withdraw(requests.get(index).amount());
+                    } catch (RuntimeException e) {
+                        // Журнал счёта не принял списание по заявке, баланс восстановлен.
+                        failure = TransferOutcome.LOG_FAILURE;
+                    }
+                    if (failure != null) {
+                        outcomes[index] = failure;
+                    }
+                }
+            }
+        }
+        isSuccessful = true;
+    }
+}
@@ -0,0 +1,31 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+/**
+ * Режим выполнения переводов банковским сервисом.
+ */
+public enum ExecutionMode {
+
+    /**
+     * Операции ставятся в очереди и обрабатываются в потоке, вызвавшем перевод.
+     */
+    CALLER,
+
+    /**
+     * Каждый перевод выполняется в отдельном виртуальном потоке, вызывающий поток сразу освобождается.
+     */
+    VIRTUAL_THREADS;
+
+    /**
+     * Имя системного свойства, в котором задаётся режим выполнения по умолчанию.
+     */
+    public static final String PROPERTY = "bank.execution.mode";
+
+    /**
+     * Получение режима выполнения из конфигурации (системного свойства {@value #PROPERTY}).
+     *
+     * @return Режим из конфигурации, либо {@link #CALLER}, если режим не задан.
+     */
+    public static ExecutionMode fromConfiguration() {
+        return valueOf(System.getProperty(PROPERTY, CALLER.name()).trim().toUpperCase());
+    }
+}
@@ -0,0 +1,25 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+/**
+ * Проверка перевода на мошенничество перед постановкой в очереди счетов. Выполняется банковским сервисом
+ * до создания транзакции, поэтому отклонённый перевод не занимает очереди, не выделяет транзакцию
+ * и не требует отмены. Вызывается из многих потоков одновременно, поэтому реализация должна быть
+ * потокобезопасной и дешёвой.
+ */
+public interface FraudScreen {
+
+    /**
+     * Проверка, которая пропускает все переводы.
+     */
+    FraudScreen NONE = (sender, receiver, amount) -> null;
+
+    /**
+     * Проверка перевода.
+     *
+     * @param sender   Счёт отправителя.
+     * @param receiver Счёт получателя.
+     * @param amount   Сумма перевода в копейках.
+     * @return Код отказа или null, если перевод пропускается.
+     */
+    TransferOutcome screen(BankAccount sender, BankAccount receiver, long amount);
+}
@@ -0,0 +1,111 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import java.time.Duration;
+
+/**
+ * Проверка переводов перед постановкой в очереди:
+ * 1. Признаки мошеннического и закрытого счёта у отправителя и получателя.
+ * 2. Список замороженных счетов ({@link FrozenAccounts}).
+ * 3. Лимиты количества и суммы переводов отправителя за скользящее окно.
+ * <p>
+ * Лимиты считаются приближённо, по схеме count-min: отправитель по двум независимым хешам попадает
+ * в две строки общих счётчиков {@link WindowCounters}, а его оценка - меньшая из двух. Память не зависит
+ * от количества счетов, а оценка может быть только завышена, если оба хеша совпали с хешами активных
+ * отправителей, поэтому количество строк нужно выбирать больше числа активных отправителей за окно.
+ * Одновременные переводы одного отправителя могут немного превысить лимит: проверка и учёт
+ * не атомарны вместе. Точный лимит списаний отдельного счёта задаётся {@link VelocityLimit}.
+ */
+public class FraudScreening implements FraudScreen {
+
+    /**
+     * Количество корзин окна лимитов.
+     */
+    private static final int BUCKETS = 8;
+
+    /**
+     * Список замороженных счетов.
+     */
+    private final FrozenAccounts frozenAccounts;
+
+    /**
+     * Счётчики переводов отправителей, null - лимиты не проверяются.
+     */
+    private final WindowCounters velocity;
+
+    /**
+     * Маска номера строки счётчиков.
+     */
+    private final int rowMask;
+
+    /**
+     * Максимальное количество переводов отправителя за окно.
+     */
+    private final long maxTransfers;
+
+    /**
+     * Максимальная сумма переводов отправителя за окно в копейках.
+     */
+    private final long maxAmount;
+
+    /**
+     * Создание проверки признаков счетов и списка замороженных счетов без лимитов.
+     *
+     * @param frozenAccounts Список замороженных счетов.
+     */
+    public FraudScreening(FrozenAccounts frozenAccounts) {
+        this.frozenAccounts = frozenAccounts;
+        this.velocity = null;
+        this.rowMask = 0;
+        this.maxTransfers = Long.MAX_VALUE;
+        this.maxAmount = Long.MAX_VALUE;
+    }
+
+    /**
+     * Создание проверки с лимитами переводов отправителя.
+     *
+     * @param frozenAccounts Список замороженных счетов.
+     * @param rows           Количество строк счётчиков на каждый из двух хешей (степень двойки).
+     * @param window         Длительность окна.
+     * @param maxTransfers   Максимальное количество переводов отправителя за окно.
+     * @param maxAmount      Максимальная сумма переводов отправителя за окно в копейках.
+     */
+    public FraudScreening(FrozenAccounts frozenAccounts, int rows, Duration window, long maxTransfers,
+                          long maxAmount) {
+        if (rows <= 0 || Integer.bitCount(rows) != 1) {
+            throw new IllegalArgumentException("Количество строк должно быть степенью двойки: " + rows);
+        }
+        this.frozenAccounts = frozenAccounts;
+        this.velocity = new WindowCounters(2 * rows, window, BUCKETS);
+        this.rowMask = rows - 1;
+        this.maxTransfers = maxTransfers;
+        this.maxAmount = maxAmount;
+    }
+
+    @Override
+    public TransferOutcome screen(BankAccount sender, BankAccount receiver, long amount) {
+        if (sender.isFraud() || receiver.isFraud()) {
+            return TransferOutcome.FRAUD;
+        }
+        if (sender.isClosed() || receiver.isClosed()) {
+            return TransferOutcome.CLOSED;
+        }
+        if (frozenAccounts.isFrozen(sender.getAccountNumber())
+                || frozenAccounts.isFrozen(receiver.getAccountNumber())) {
+            return TransferOutcome.FRAUD;
+        }
+        if (velocity == null) {
+            return null;
+        }
+        long hash = sender.getAccountNumber().hashCode() * 0x9E3779B97F4A7C15L;
+        int first = (int) hash & rowMask;
+        int second = rowMask + 1 + ((int) (hash >>> 32) & rowMask);
+        long epoch = velocity.epoch(System.nanoTime());
+        if (Math.min(velocity.count(first, epoch), velocity.count(second, epoch)) >= maxTransfers
+                || Math.min(velocity.amount(first, epoch), velocity.amount(second, epoch)) > maxAmount - amount) {
+            return TransferOutcome.VELOCITY_LIMIT;
+        }
+        velocity.add(first, epoch, amount);
+        velocity.add(second, epoch, amount);
+        return null;
+    }
+}
@@ -0,0 +1,106 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Список замороженных счетов, например полученный из внешнего источника во время волны мошенничества.
+ * <p>
+ * Перед точным множеством стоит фильтр Блума на битовом массиве {@link AtomicLongArray}: для счёта,
+ * которого нет в списке (а это почти весь поток переводов), проверка - три чтения массива по кешу номера
+ * без блокировок и без выделения памяти. Только при срабатывании фильтра номер ищется в точном множестве,
+ * поэтому ложные срабатывания фильтра не приводят к отказам.
+ * Биты размороженного счёта в фильтре остаются, для него проверка просто доходит до точного множества.
+ */
+public class FrozenAccounts {
+
+    /**
+     * Количество бит фильтра на один ожидаемый счёт.
+     */
+    private static final int BITS_PER_ACCOUNT = 16;
+
+    /**
+     * Количество хеш-функций фильтра.
+     */
+    private static final int HASHES = 3;
+
+    /**
+     * Биты фильтра.
+     */
+    private final AtomicLongArray bits;
+
+    /**
+     * Маска номера бита.
+     */
+    private final int mask;
+
+    /**
+     * Номера замороженных счетов.
+     */
+    private final Set<String> accounts;
+
+    /**
+     * Создание пустого списка.
+     *
+     * @param expectedAccounts Ожидаемое количество замороженных счетов.
+     */
+    public FrozenAccounts(int expectedAccounts) {
+        int size = Integer.highestOneBit(Math.max(expectedAccounts * BITS_PER_ACCOUNT, Long.SIZE) * 2 - 1);
+        this.bits = new AtomicLongArray(size / Long.SIZE);
+        this.mask = size - 1;
+        this.accounts = ConcurrentHashMap.newKeySet(expectedAccounts);
+    }
+
+    /**
+     * Заморозка счёта.
+     *
+     * @param accountNumber Номер счёта.
+     */
+    public void freeze(String accountNumber) {
+        accounts.add(accountNumber);
+        long hash = hash(accountNumber);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = bit(hash, i);
+            long word = 1L << bit;
+            bits.getAndAccumulate(bit >>> 6, word, (current, value) -> current | value);
+        }
+    }
+
+    /**
+     * Разморозка счёта.
+     *
+     * @param accountNumber Номер счёта.
+     */
+    public void unfreeze(String accountNumber) {
+        accounts.remove(accountNumber);
+    }
+
+    /**
+     * Проверка, что счёт заморожен.
+     *
+     * @param accountNumber Номер счёта.
+     * @return true, если счёт в списке.
+     */
+    public boolean isFrozen(String accountNumber) {
+        long hash = hash(accountNumber);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = bit(hash, i);
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return accounts.contains(accountNumber);
+    }
+
+    /**
+     * Номер бита i-й хеш-функции (двойное хеширование).
+     */
+    private int bit(long hash, int i) {
+        return ((int) hash + i * ((int) (hash >>> 32) | 1)) & mask;
+    }
+
+    private static long hash(String accountNumber) {
+        return accountNumber.hashCode() * 0x9E3779B97F4A7C15L;
+    }
+}
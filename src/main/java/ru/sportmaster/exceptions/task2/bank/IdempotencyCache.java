@@ -0,0 +1,150 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Ограниченный кэш ключей идемпотентности: по ключу клиента хранится результат первого перевода,
+ * чтобы повторный запрос с тем же ключом не переводил средства второй раз.
+ * <p>
+ * Кэш разделён на сегменты по хешу ключа, у каждого сегмента своя блокировка и своя доля ёмкости,
+ * поэтому общей блокировки на пути перевода нет, а объём памяти ограничен сверху.
+ * Внутри сегмента ключи хранятся в порядке добавления: ключи старше времени жизни удаляются
+ * при добавлении и не находятся при поиске. Живой ключ до истечения времени жизни не вытесняется никогда,
+ * иначе повтор запроса с ним перевёл бы средства второй раз: если сегмент заполнен живыми ключами,
+ * то новый ключ не регистрируется, а перевод получает отказ {@link TransferOutcome#OVERLOADED}.
+ */
+public class IdempotencyCache {
+
+    /**
+     * Количество сегментов.
+     */
+    private static final int SEGMENTS = 64;
+
+    /**
+     * Признак заполненного сегмента, возвращается вместо результата первого перевода.
+     */
+    static final CompletableFuture<TransferResult> FULL = new CompletableFuture<>();
+
+    /**
+     * Запись кэша: результат первого перевода и время добавления.
+     */
+    private record Entry(CompletableFuture<TransferResult> result, long createdNanos) {
+    }
+
+    /**
+     * Сегменты кэша. Каждый сегмент используется только под своей блокировкой.
+     */
+    private final LinkedHashMap<String, Entry>[] segments;
+
+    /**
+     * Ёмкость одного сегмента.
+     */
+    private final int segmentCapacity;
+
+    /**
+     * Время жизни ключа в наносекундах.
+     */
+    private final long ttlNanos;
+
+    /**
+     * Создание кэша.
+     *
+     * @param capacity Максимальное количество ключей. Ёмкость делится между сегментами поровну.
+     * @param ttl      Время жизни ключа.
+     */
+    @SuppressWarnings("unchecked")
+    public IdempotencyCache(int capacity, Duration ttl) {
+        if (capacity < SEGMENTS) {
+            throw new IllegalArgumentException("Ёмкость кэша должна быть не меньше " + SEGMENTS + ": " + capacity);
+        }
+        segmentCapacity = capacity / SEGMENTS;
+        ttlNanos = ttl.toNanos();
+        segments = new LinkedHashMap[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new LinkedHashMap<>(segmentCapacity * 4 / 3 + 1);
+        }
+    }
+
+    /**
+     * Регистрация ключа. Если ключ уже есть и не устарел, то возвращается результат первого перевода,
+     * иначе ключ связывается с переданным результатом, если в сегменте ключа есть место.
+     *
+     * @param key    Ключ идемпотентности.
+     * @param result Результат нового перевода.
+     * @return Результат первого перевода с этим ключом, {@link #FULL}, если сегмент заполнен живыми ключами,
+     * или null, если ключ зарегистрирован.
+     */
+    CompletableFuture<TransferResult> putIfAbsent(String key, CompletableFuture<TransferResult> result) {
+        LinkedHashMap<String, Entry> segment = segmentOf(key);
+        long now = System.nanoTime();
+        synchronized (segment) {
+            Entry existing = segment.get(key);
+            if (existing != null) {
+                if (now - existing.createdNanos() < ttlNanos) {
+                    return existing.result();
+                }
+                segment.remove(key);
+            }
+            evict(segment, now);
+            if (segment.size() >= segmentCapacity) {
+                return FULL;
+            }
+            segment.put(key, new Entry(result, now));
+            return null;
+        }
+    }
+
+    /**
+     * Удаление ключа, если он всё ещё связан с указанным результатом. Используется, когда перевод
+     * не был выполнен по временной причине и повтор с тем же ключом должен выполнить его заново.
+     *
+     * @param key    Ключ идемпотентности.
+     * @param result Результат перевода, с которым был зарегистрирован ключ.
+     */
+    void remove(String key, CompletableFuture<TransferResult> result) {
+        LinkedHashMap<String, Entry> segment = segmentOf(key);
+        synchronized (segment) {
+            Entry existing = segment.get(key);
+            if (existing != null && existing.result() == result) {
+                segment.remove(key);
+            }
+        }
+    }
+
+    private LinkedHashMap<String, Entry> segmentOf(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Удаление устаревших ключей. Ключи лежат в порядке добавления, поэтому удаление
+     * останавливается на первом живом ключе.
+     *
+     * @param segment Сегмент, блокировка которого захвачена.
+     * @param now     Текущее время.
+     */
+    private void evict(LinkedHashMap<String, Entry> segment, long now) {
+        Iterator<Entry> oldest = segment.values().iterator();
+        while (oldest.hasNext() && now - oldest.next().createdNanos() >= ttlNanos) {
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Получение количества ключей, включая ещё не удалённые устаревшие.
+     *
+     * @return Количество ключей.
+     */
+    public int size() {
+        int size = 0;
+        for (LinkedHashMap<String, Entry> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,37 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Итоги загрузки файла переводов.
+ *
+ * @param lines       Количество непустых строк файла.
+ * @param transferred Количество выполненных переводов.
+ * @param rejected    Количество отклонённых и невыполненных переводов, в том числе с неизвестными счетами.
+ * @param malformed   Количество строк, которые не удалось разобрать.
+ * @param rejections  Количество отказов по кодам. Переводы с неизвестными счетами кода не имеют
+ *                    и учитываются только в rejected.
+ */
+public record ImportSummary(long lines, long transferred, long rejected, long malformed,
+                            Map<TransferOutcome, Long> rejections) {
+
+    /**
+     * Итоги пустого файла.
+     */
+    public static final ImportSummary EMPTY = new ImportSummary(0, 0, 0, 0, Map.of());
+
+    /**
+     * Сложение итогов двух частей файла.
+     *
+     * @param other Итоги другой части.
+     * @return Общие итоги.
+     */
+    public ImportSummary plus(ImportSummary other) {
+        Map<TransferOutcome, Long> merged = new EnumMap<>(TransferOutcome.class);
+        merged.putAll(rejections);
+        other.rejections.forEach((outcome, count) -> merged.merge(outcome, count, Long::sum));
+        return new ImportSummary(lines + other.lines, transferred + other.transferred,
+                rejected + other.rejected, malformed + other.malformed, merged);
+    }
+}
@@ -0,0 +1,53 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+/**
+ * Класс содержит вспомогательные методы для работы с денежными суммами.
+ * Все суммы в банке хранятся как long в минимальных единицах (копейках),
+ * что исключает ошибки округления double и не требует создания объектов на каждую операцию.
+ */
+public final class Money {
+
+    /**
+     * Количество копеек в одном рубле.
+     */
+    public static final long KOPECKS_PER_RUBLE = 100;
+
+    private Money() {
+    }
+
+    /**
+     * Перевод целого количества рублей в копейки.
+     *
+     * @param rubles Количество рублей.
+     * @return Сумма в копейках.
+     */
+    public static long of(long rubles) {
+        return Math.multiplyExact(rubles, KOPECKS_PER_RUBLE);
+    }
+
+    /**
+     * Перевод суммы, заданной рублями и копейками, в копейки.
+     *
+     * @param rubles  Количество рублей.
+     * @param kopecks Количество копеек (от 0 до 99).
+     * @return Сумма в копейках.
+     */
+    public static long of(long rubles, long kopecks) {
+        if (kopecks < 0 || kopecks >= KOPECKS_PER_RUBLE) {
+            throw new IllegalArgumentException("Количество копеек должно быть от 0 до 99: " + kopecks);
+        }
+        return Math.addExact(of(rubles), rubles < 0 ? -kopecks : kopecks);
+    }
+
+    /**
+     * Форматирование суммы с точностью до копеек, например 1234.05.
+     *
+     * @param amount Сумма в копейках.
+     * @return Строковое представление суммы.
+     */
+    public static String format(long amount) {
+        long abs = Math.abs(amount);
+        long kopecks = abs % KOPECKS_PER_RUBLE;
+        return (amount < 0 ? "-" : "") + abs / KOPECKS_PER_RUBLE + (kopecks < 10 ? ".0" : ".") + kopecks;
+    }
+}
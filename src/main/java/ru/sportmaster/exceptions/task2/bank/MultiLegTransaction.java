@@ -0,0 +1,413 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import ru.sportmaster.exceptions.task2.bank.journal.TransactionJournal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Составная транзакция - перевод с нескольких счетов на несколько счетов (например, выплата зарплаты
+ * с одного счёта на тысячи), который выполняется или отменяется целиком.
+ * <p>
+ * Сперва выполняются списания, каждое в очереди своего счёта. Завершение списаний считается
+ * обратным счётчиком: поток, завершивший последнее списание, подводит итог. Если хотя бы одно
+ * списание не удалось, выполненные списания отменяются. Иначе этот поток выполняет зачисления:
+ * зачисления коммутативны, поэтому, как и на горячий счёт, они выполняются сразу, минуя очереди счетов.
+ * Признаки всех получателей проверяются до первого зачисления: если счёт получателя заморожен или закрыт,
+ * списания отменяются, а зачисления не выполняются. Зачисление отменяется, только если счёт получателя
+ * закрывается одновременно с транзакцией, - тогда отменяются выполненные зачисления и все списания.
+ * Если журнал счёта получателя не принял зачисление, то выполненные части отменяются так же,
+ * а транзакция завершается с кодом {@link TransferOutcome#LOG_FAILURE}.
+ * <p>
+ * Вся транзакция - один идентификатор. В журнал она записывается частями "отправитель - получатель":
+ * списания распределяются по зачислениям по порядку, поэтому частей не больше, чем списаний и зачислений
+ * вместе, а каждый счёт транзакции попадает в журнал, например каждая выплата зарплаты.
+ */
+public class MultiLegTransaction {
+
+    /**
+     * Списание транзакции - операция в очереди счёта отправителя. Не создаёт признака завершения:
+     * о завершении списания узнаёт транзакция.
+     */
+    private static final class Leg extends Operation {
+
+        /**
+         * Транзакция, которой принадлежит часть.
+         */
+        private final MultiLegTransaction owner;
+
+        /**
+         * Номер периода лимита списаний, в котором выполнено списание.
+         */
+        private long limitEpoch;
+
+        Leg(MultiLegTransaction owner, TransferLeg leg) {
+            super((Transaction) null);
+            this.owner = owner;
+            reset(leg.account(), leg.amount());
+        }
+
+        /**
+         * Списание средств со счёта и сообщение транзакции о завершении.
+         */
+        @Override
+        public void operate() {
+            if (account.isFraud()) {
+                fail(TransferOutcome.FRAUD);
+            } else if (account.isClosed()) {
+                fail(TransferOutcome.CLOSED);
+            } else {
+                limitEpoch = account.limitEpoch();
+                TransferOutcome outcome = account.withdraw(amount, limitEpoch);
+                if (outcome != null) {
+                    fail(outcome);
+                } else {
+                    isSuccessful = true;
+                }
+            }
+            owner.debitCompleted(this);
+        }
+
+        @Override
+        boolean isRejectable() {
+            return true;
+        }
+
+        @Override
+        boolean reject(TransferOutcome outcome) {
+            fail(outcome);
+            owner.debitCompleted(this);
+            return true;
+        }
+    }
+
+    /**
+     * Уникальный идентификатор транзакции.
+     */
+    private final long id;
+
+    /**
+     * Списания.
+     */
+    private final Leg[] debits;
+
+    /**
+     * Зачисления. Выполняются после выполнения всех списаний.
+     */
+    private final List<TransferLeg> credits;
+
+    /**
+     * Количество незавершённых списаний.
+     */
+    private final AtomicInteger pendingDebits;
+
+    /**
+     * Код первой неудачи списания, null - если списания выполнены.
+     */
+    private final AtomicReference<TransferOutcome> failure;
+
+    /**
+     * Первая ошибка отмены части (журнал счёта не принял возврат), передаётся в результат.
+     * Пишется и читается только потоком, подводящим итог.
+     */
+    private RuntimeException rollbackFailure;
+
+    /**
+     * Результат транзакции, завершается после выполнения всех частей и отмен.
+     */
+    private final CompletableFuture<TransferResult> result;
+
+    /**
+     * Журнал, в который записываются данные о транзакции.
+     */
+    private final TransactionJournal journal;
+
+    /**
+     * Получатель измерений.
+     */
+    private final TransferMetrics metrics;
+
+    /**
+     * Время создания транзакции для измерения времени перевода, 0 - если измерения выключены.
+     */
+    private final long startNanos;
+
+    /**
+     * Разрешения на незавершённые переводы сервиса, одно из которых занимает транзакция,
+     * null - транзакция создана без ограничения.
+     */
+    private final Semaphore inFlight;
+
+    /**
+     * Создание составной транзакции. Параметры должны быть проверены через {@link #validate}.
+     *
+     * @param debits   Списания.
+     * @param credits  Зачисления.
+     * @param journal  Журнал транзакций.
+     * @param metrics  Получатель измерений.
+     * @param inFlight Разрешения на незавершённые переводы, освобождаемые по завершении, или null.
+     */
+    MultiLegTransaction(List<TransferLeg> debits, List<TransferLeg> credits, TransactionJournal journal,
+                        TransferMetrics metrics, Semaphore inFlight) {
+        this.id = TransactionIds.next();
+        this.debits = new Leg[debits.size()];
+        for (int i = 0; i < this.debits.length; i++) {
+            this.debits[i] = new Leg(this, debits.get(i));
+        }
+        this.credits = credits;
+        this.pendingDebits = new AtomicInteger(this.debits.length);
+        this.failure = new AtomicReference<>();
+        this.result = new CompletableFuture<>();
+        this.journal = journal;
+        this.metrics = metrics;
+        this.startNanos = metrics.isEnabled() ? System.nanoTime() : 0;
+        this.inFlight = inFlight;
+    }
+
+    /**
+     * Проверка параметров составного перевода: есть списания и зачисления, суммы частей больше нуля,
+     * сумма списаний равна сумме зачислений и помещается в long, ни один счёт не является одновременно
+     * отправителем и получателем.
+     *
+     * @param debits  Списания.
+     * @param credits Зачисления.
+     * @return Код отказа или null, если перевод возможен.
+     */
+    static TransferOutcome validate(List<TransferLeg> debits, List<TransferLeg> credits) {
+        if (debits.isEmpty() || credits.isEmpty()) {
+            return TransferOutcome.NO_LEGS;
+        }
+        Set<String> senders = new HashSet<>();
+        long debited = 0;
+        long credited = 0;
+        boolean overflow = false;
+        for (TransferLeg debit : debits) {
+            if (debit.amount() <= 0) {
+                return TransferOutcome.NON_POSITIVE_AMOUNT;
+            }
+            senders.add(debit.account().getAccountNumber());
+            try {
+                debited = Math.addExact(debited, debit.amount());
+            } catch (ArithmeticException e) {
+                overflow = true;
+            }
+        }
+        for (TransferLeg credit : credits) {
+            if (credit.amount() <= 0) {
+                return TransferOutcome.NON_POSITIVE_AMOUNT;
+            }
+            if (senders.contains(credit.account().getAccountNumber())) {
+                return TransferOutcome.SAME_ACCOUNT;
+            }
+            try {
+                credited = Math.addExact(credited, credit.amount());
+            } catch (ArithmeticException e) {
+                overflow = true;
+            }
+        }
+        return !overflow && debited == credited ? null : TransferOutcome.UNBALANCED;
+    }
+
+    /**
+     * Постановка списаний в очереди счетов отправителей.
+     */
+    void submit() {
+        for (Leg debit : debits) {
+            debit.account.getTaskQueue().submit(debit, metrics);
+        }
+    }
+
+    /**
+     * Получение результата транзакции.
+     *
+     * @return Future, который завершается после выполнения всех частей и, при необходимости, отмен.
+     */
+    public CompletableFuture<TransferResult> getResult() {
+        return result;
+    }
+
+    /**
+     * Учёт завершения списания. Итог подводит только поток, завершивший последнее списание,
+     * поэтому зачисления и отмены выполняются ровно один раз.
+     *
+     * @param debit Завершённое списание.
+     */
+    private void debitCompleted(Leg debit) {
+        if (debit.getFailure() != null) {
+            failure.compareAndSet(null, debit.getFailure());
+        }
+        if (pendingDebits.decrementAndGet() != 0) {
+            return;
+        }
+        TransferOutcome outcome = failure.get();
+        if (outcome == null) {
+            outcome = credit();
+        } else {
+            rollbackDebits();
+        }
+        complete(outcome);
+    }
+
+    /**
+     * Выполнение зачислений после проверки признаков всех получателей. Если счёт получателя заморожен
+     * или закрыт, списания отменяются до первого зачисления. Если счёт закрылся во время зачислений
+     * или его журнал не принял зачисление, выполненные зачисления и все списания отменяются.
+     *
+     * @return Код результата.
+     */
+    private TransferOutcome credit() {
+        for (TransferLeg credit : credits) {
+            BankAccount receiver = credit.account();
+            TransferOutcome outcome = receiver.isFraud() ? TransferOutcome.FRAUD
+                    : receiver.isClosed() ? TransferOutcome.CLOSED
+                    : null;
+            if (outcome != null) {
+                rollbackDebits();
+                return outcome;
+            }
+        }
+        for (int i = 0; i < credits.size(); i++) {
+            TransferOutcome outcome;
+            try {
+                outcome = credits.get(i).account().tryCredit(credits.get(i).amount()) ? null : TransferOutcome.CLOSED;
+            } catch (RuntimeException e) {
+                // Журнал счёта получателя не принял зачисление, баланс получателя не изменён.
+                outcome = TransferOutcome.LOG_FAILURE;
+            }
+            if (outcome != null) {
+                for (int j = 0; j < i; j++) {
+                    rollbackCredit(credits.get(j));
+                }
+                rollbackDebits();
+                return outcome;
+            }
+        }
+        return TransferOutcome.SUCCESS;
+    }
+
+    /**
+     * Отмена выполненных списаний: на счета отправителей возвращаются списанные суммы, а списания
+     * вычитаются из их лимитов. Ошибка возврата на один счёт не прерывает возврат на остальные.
+     */
+    private void rollbackDebits() {
+        for (Leg debit : debits) {
+            if (Boolean.TRUE.equals(debit.getSuccessful())) {
+                try {
+                    debit.account.refund(debit.amount, debit.limitEpoch);
+                } catch (RuntimeException e) {
+                    rolledBackWith(e);
+                }
+                metrics.withdrawalRolledBack();
+            }
+        }
+    }
+
+    /**
+     * Отмена зачисления. Если получатель уже успел распорядиться средствами, то отмена выполняется безусловно.
+     *
+     * @param credit Выполненное зачисление.
+     */
+    private void rollbackCredit(TransferLeg credit) {
+        try {
+            if (!credit.account().tryDebit(credit.amount())) {
+                credit.account().credit(-credit.amount());
+            }
+        } catch (RuntimeException e) {
+            rolledBackWith(e);
+        }
+        metrics.replenishmentRolledBack();
+    }
+
+    private void rolledBackWith(RuntimeException e) {
+        if (rollbackFailure == null) {
+            rollbackFailure = e;
+        }
+    }
+
+    /**
+     * Завершение транзакции: запись частей в журнал, измерения, а после надёжного сохранения изменений
+     * всех счетов - освобождение разрешения и результат. Ошибка журнала или отмены не прерывает завершение,
+     * а передаётся в результат.
+     *
+     * @param outcome Код результата.
+     */
+    private void complete(TransferOutcome outcome) {
+        boolean successful = outcome == TransferOutcome.SUCCESS;
+        RuntimeException completionFailure = rollbackFailure;
+        try {
+            recordLegs(successful);
+        } catch (RuntimeException e) {
+            if (completionFailure == null) {
+                completionFailure = e;
+            }
+        }
+        if (metrics.isEnabled()) {
+            if (outcome.isRejected()) {
+                metrics.rejected(outcome);
+            }
+            metrics.transferCompleted(System.nanoTime() - startNanos, successful);
+        }
+        List<BankAccount> accounts = new ArrayList<>(debits.length + credits.size());
+        for (Leg debit : debits) {
+            accounts.add(debit.account);
+        }
+        for (TransferLeg credit : credits) {
+            accounts.add(credit.account());
+        }
+        RuntimeException recordFailure = completionFailure;
+        BankAccount.whenDurable(accounts, durabilityFailure -> {
+            if (inFlight != null) {
+                inFlight.release();
+            }
+            Throwable error = recordFailure != null ? recordFailure : durabilityFailure;
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(new TransferResult(Long.toString(id), outcome));
+            }
+        });
+    }
+
+    /**
+     * Запись транзакции в журнал частями: списания по порядку распределяются по зачислениям,
+     * каждая часть - сумма, переведённая с одного счёта отправителя на один счёт получателя.
+     *
+     * @param successful Признак успешной транзакции.
+     */
+    private void recordLegs(boolean successful) {
+        int size = debits.length + credits.size() - 1;
+        String[] senders = new String[size];
+        String[] receivers = new String[size];
+        long[] amounts = new long[size];
+        int count = 0;
+        int debit = 0;
+        long debitLeft = debits[0].amount;
+        for (TransferLeg credit : credits) {
+            long creditLeft = credit.amount();
+            while (creditLeft > 0) {
+                long part = Math.min(debitLeft, creditLeft);
+                senders[count] = debits[debit].account.getAccountNumber();
+                receivers[count] = credit.account().getAccountNumber();
+                amounts[count++] = part;
+                creditLeft -= part;
+                debitLeft -= part;
+                if (debitLeft == 0 && debit + 1 < debits.length) {
+                    debitLeft = debits[++debit].amount;
+                }
+            }
+        }
+        if (count < size) {
+            senders = Arrays.copyOf(senders, count);
+            receivers = Arrays.copyOf(receivers, count);
+            amounts = Arrays.copyOf(amounts, count);
+        }
+        journal.recordLegs(id, senders, receivers, amounts, successful);
+    }
+}
@@ -1,6 +1,6 @@
 package ru.sportmaster.exceptions.task2.bank;
 
-import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Класс реализует операцию - действие с денежными средствами на отдельном счёте.
@@ -18,15 +18,26 @@ public class Operation {
     protected BankAccount account;
 
     /**
-     * Сумма перевода
+     * Сумма перевода в копейках.
      */
-    protected double amount;
+    protected long amount;
 
     /**
      * Статус операции. Возможные значения: null - состояние неизвестно (т.е. операция не завершена),
      * true - операция успешно выполнена, false - операцию выполнить не удалось.
      */
-    protected Boolean isSuccessful;
+    protected volatile Boolean isSuccessful;
+
+    /**
+     * Код неудачи операции, null - если операция не завершена или выполнена успешно.
+     */
+    protected volatile TransferOutcome failure;
+
+    /**
+     * Признак завершения операции, выдаётся очередью операций при постановке в неё операции.
+     * null - у повторно используемой операции, завершение которой никто не ждёт.
+     */
+    private final CompletableFuture<Void> completion;
 
     /**
      * Получение статуса операции.
@@ -37,18 +48,124 @@ public class Operation {
         return isSuccessful;
     }
 
+    /**
+     * Получение причины неудачи операции.
+     *
+     * @return Причина неудачи или null.
+     */
+    public String getFailureReason() {
+        TransferOutcome outcome = failure;
+        return outcome == null ? null : outcome.getReason();
+    }
+
+    /**
+     * Получение кода неудачи операции.
+     *
+     * @return Код неудачи или null.
+     */
+    public TransferOutcome getFailure() {
+        return failure;
+    }
+
     /**
      * Создание операции. Статус по умолчанию не определён.
      *
      * @param account     Счёт, на которым производится операция.
-     * @param amount      Сумма перевода.
+     * @param amount      Сумма перевода в копейках.
      * @param transaction Связанная транзакция.
      */
-    public Operation(BankAccount account, double amount, Transaction transaction) {
+    public Operation(BankAccount account, long amount, Transaction transaction) {
         this.account = account;
         this.amount = amount;
         this.isSuccessful = null;
         this.transaction = transaction;
+        this.completion = new CompletableFuture<>();
+    }
+
+    /**
+     * Создание повторно используемой операции транзакции без признака завершения.
+     * Счёт и сумма задаются перед каждым использованием через {@link #reset}.
+     *
+     * @param transaction Связанная транзакция.
+     */
+    Operation(Transaction transaction) {
+        this.transaction = transaction;
+        this.completion = null;
+    }
+
+    /**
+     * Подготовка повторно используемой операции к новому выполнению.
+     *
+     * @param account Счёт, на котором производится операция.
+     * @param amount  Сумма перевода в копейках.
+     */
+    void reset(BankAccount account, long amount) {
+        this.account = account;
+        this.amount = amount;
+        this.isSuccessful = null;
+        this.failure = null;
+    }
+
+    /**
+     * Получение признака завершения операции.
+     *
+     * @return Future, который завершается после выполнения операции.
+     */
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * Выполнение операции обработчиком очереди. Ошибка одной операции не должна
+     * останавливать разбор очереди, поэтому она передаётся в признак завершения.
+     * Если операция прервана ошибкой до завершения (журнал счёта не принял изменение, баланс не изменён),
+     * то она отклоняется с кодом {@link TransferOutcome#LOG_FAILURE}, чтобы транзакция завершилась.
+     * Повторно используемая операция может быть выдана заново сразу после проверки
+     * статуса транзакции, поэтому после {@link #operate()} читается только неизменяемый признак завершения.
+     */
+    void execute() {
+        try {
+            operate();
+            if (completion != null) {
+                completion.complete(null);
+            }
+        } catch (RuntimeException e) {
+            if (isSuccessful == null && reject(TransferOutcome.LOG_FAILURE)) {
+                return;
+            }
+            if (completion != null) {
+                completion.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Проверка, что операцию можно отклонить через {@link #reject}.
+     *
+     * @return true для операции транзакции.
+     */
+    boolean isRejectable() {
+        return transaction != null;
+    }
+
+    /**
+     * Завершение операции отказом без выполнения, например, когда очередь счёта переполнена.
+     * Транзакция получает отказ как неудачу операции и при необходимости отменяет другую операцию.
+     * Операцию без транзакции (пакетную) отклонить нельзя: её результат ждут другие операции пакета.
+     *
+     * @param outcome Код отказа.
+     * @return true - операция отклонена, false - операцию нужно выполнить.
+     */
+    boolean reject(TransferOutcome outcome) {
+        if (!isRejectable()) {
+            return false;
+        }
+        fail(outcome);
+        transaction.checkStatus();
+        if (completion != null) {
+            completion.complete(null);
+        }
+        return true;
     }
 
     /**
@@ -57,28 +174,48 @@ public class Operation {
      * то отмечаем операцию как неудачную, запускаем проверку транзакции и выходим.
      * 2. Затем проверяем, чтобы счёт не был закрыт. Если проверка не пройдена,
      * то отмечаем операцию как неудачную, запускаем проверку транзакции и выходим.
-     * 3. Если всё хорошо, то прибавляем к балансу счёта сумму перевода (для списания
-     * она будет отрицательной, для зачисления - положительной). Отмечаем операцию
-     * как успешную и запускаем проверку транзакции.
+     * 3. Если всё хорошо, то применяем операцию к балансу счёта. Отмечаем операцию
+     * как успешную или неуспешную (в зависимости от результата) и запускаем проверку транзакции.
      */
     public void operate() {
         if (account.isFraud()) {
-            System.out.println("Операция не выполнена: счёт заморожен за подозрение в мошенничестве.");
-            isSuccessful = false;
+            fail(TransferOutcome.FRAUD);
             transaction.checkStatus();
             return;
         }
         if (account.isClosed()) {
-            System.out.println("Операция не выполнена: лицевой счёт закрыт.");
-            isSuccessful = false;
+            fail(TransferOutcome.CLOSED);
             transaction.checkStatus();
             return;
         }
-        DoubleAdder adder = new DoubleAdder();
-        adder.add(account.getBalance());
-        adder.add(amount);
-        account.setBalance(adder.sum());
-        isSuccessful = true;
+        if (apply()) {
+            isSuccessful = true;
+        }
         transaction.checkStatus();
     }
+
+    /**
+     * Отметка операции как неудачной с указанием причины. Итог перевода сообщает транзакция,
+     * поэтому здесь ничего не выводится и не создаётся.
+     *
+     * @param outcome Код неудачи.
+     */
+    protected void fail(TransferOutcome outcome) {
+        failure = outcome;
+        isSuccessful = false;
+    }
+
+    /**
+     * Изменение баланса счёта. По умолчанию сумма перевода зачисляется на счёт, если он не закрыт
+     * (закрытие могло произойти после проверки признаков в {@link #operate()}).
+     *
+     * @return true - баланс изменён, false - операцию выполнить не удалось (и она отмечена как неудачная).
+     */
+    protected boolean apply() {
+        if (!account.tryCredit(amount)) {
+            fail(TransferOutcome.CLOSED);
+            return false;
+        }
+        return true;
+    }
 }
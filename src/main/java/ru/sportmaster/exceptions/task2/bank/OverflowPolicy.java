@@ -0,0 +1,41 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+/**
+ * Поведение очереди операций счёта, когда она заполнена.
+ * Отклоняются и вытесняются только операции переводов: их транзакция завершается
+ * с кодом {@link TransferOutcome#OVERLOADED} и отменяет уже выполненную часть перевода.
+ * Операции пакетных переводов всегда ждут места в очереди.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Вызывающий поток разбирает очередь сам или, если её уже разбирает обработчик,
+     * засыпает до освобождения места в очереди.
+     */
+    BLOCK,
+
+    /**
+     * Новая операция не ставится в очередь и сразу завершается отказом.
+     */
+    REJECT,
+
+    /**
+     * Самая старая операция очереди завершается отказом, новая занимает её место.
+     * Если самую старую операцию отклонить нельзя, то вызывающий поток ждёт места, как при {@link #BLOCK}.
+     */
+    SHED_OLDEST;
+
+    /**
+     * Имя системного свойства, в котором задаётся поведение очередей по умолчанию.
+     */
+    public static final String PROPERTY = "bank.queue.overflow";
+
+    /**
+     * Получение поведения из конфигурации (системного свойства {@value #PROPERTY}).
+     *
+     * @return Поведение из конфигурации, либо {@link #BLOCK}, если поведение не задано.
+     */
+    public static OverflowPolicy fromConfiguration() {
+        return valueOf(System.getProperty(PROPERTY, BLOCK.name()).trim().toUpperCase());
+    }
+}
@@ -0,0 +1,104 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ограниченный пул объектов для повторного использования, без блокировок и без выделения памяти.
+ * Объекты берут и возвращают любые потоки: это кольцевой буфер с номером круга в каждой ячейке,
+ * поэтому ячейку нельзя спутать с той же ячейкой на другом круге.
+ *
+ * @param <T> Тип объектов.
+ */
+final class RecyclingPool<T> {
+
+    /**
+     * Ячейки пула.
+     */
+    private final Object[] elements;
+
+    /**
+     * Номер круга ячейки: равен номеру записи - ячейка свободна для возврата,
+     * номеру записи + 1 - в ячейке лежит объект.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * Маска для получения номера ячейки.
+     */
+    private final int mask;
+
+    /**
+     * Номер следующего объекта, который будет выдан.
+     */
+    private final AtomicLong head;
+
+    /**
+     * Номер следующего возвращаемого объекта.
+     */
+    private final AtomicLong tail;
+
+    /**
+     * Создание пустого пула.
+     *
+     * @param capacity Ёмкость (степень двойки).
+     */
+    RecyclingPool(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ёмкость пула должна быть степенью двойки: " + capacity);
+        }
+        elements = new Object[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+        head = new AtomicLong();
+        tail = new AtomicLong();
+    }
+
+    /**
+     * Получение объекта из пула.
+     *
+     * @return Объект или null, если пул пуст.
+     */
+    @SuppressWarnings("unchecked")
+    T acquire() {
+        while (true) {
+            long current = head.get();
+            int index = (int) (current & mask);
+            long difference = sequences.getAcquire(index) - (current + 1);
+            if (difference < 0) {
+                return null;
+            }
+            if (difference == 0 && head.compareAndSet(current, current + 1)) {
+                T element = (T) elements[index];
+                elements[index] = null;
+                sequences.setRelease(index, current + elements.length);
+                return element;
+            }
+        }
+    }
+
+    /**
+     * Возврат объекта в пул.
+     *
+     * @param element Объект.
+     * @return false, если пул заполнен и объект не принят.
+     */
+    boolean release(T element) {
+        while (true) {
+            long current = tail.get();
+            int index = (int) (current & mask);
+            long difference = sequences.getAcquire(index) - current;
+            if (difference < 0) {
+                return false;
+            }
+            if (difference == 0 && tail.compareAndSet(current, current + 1)) {
+                elements[index] = element;
+                sequences.setRelease(index, current + 1);
+                return true;
+            }
+        }
+    }
+}
@@ -9,10 +9,19 @@ public class Replenishment extends Operation {
      * Конструктор класса, который по сути ничем не отличатся от родительского.
      *
      * @param receiver    Счёт отправителя.
-     * @param amount      Сумма перевода.
+     * @param amount      Сумма перевода в копейках.
      * @param transaction Связанная транзакция.
      */
-    public Replenishment(BankAccount receiver, double amount, Transaction transaction) {
+    public Replenishment(BankAccount receiver, long amount, Transaction transaction) {
         super(receiver, amount, transaction);
     }
+
+    /**
+     * Создание повторно используемого зачисления.
+     *
+     * @param transaction Связанная транзакция.
+     */
+    Replenishment(Transaction transaction) {
+        super(transaction);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,430 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import ru.sportmaster.exceptions.task2.bank.journal.TransactionJournal;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Движок переводов, в котором каждый счёт принадлежит одному потоку-исполнителю (шарду)
+ * по хешу номера счёта. Баланс и признаки счёта меняет только его владелец, поэтому
+ * данные горячего счёта не переходят между ядрами.
+ * <p>
+ * Перевод между шардами - это обмен сообщениями, а не общая память: шард отправителя
+ * списывает средства и передаёт сообщение о зачислении шарду получателя, тот зачисляет
+ * и завершает перевод, а если зачислить нельзя - возвращает сообщение о возврате средств.
+ * Ошибка журнала счёта обрабатывается внутри сообщения: списание, не принятое журналом, не выполняется,
+ * зачисление, не принятое журналом, превращается в возврат средств, а перевод завершается с кодом
+ * {@link TransferOutcome#LOG_FAILURE}. Поэтому ошибка одного перевода не останавливает шард.
+ * Шарды обмениваются сообщениями через очереди для одного производителя и одного потребителя
+ * (по очереди на каждую пару шардов). Новые переводы от внешних потоков поступают
+ * в отдельную входящую очередь шарда.
+ * <p>
+ * Привязать поток к ядру средствами JVM нельзя, поэтому каждый шард - это выделенный
+ * платформенный поток, который планировщик ОС держит на одном ядре, пока тот занят.
+ */
+public class ShardedEngine implements AutoCloseable {
+
+    /**
+     * Ёмкость очереди сообщений между двумя шардами.
+     */
+    private static final int CHANNEL_CAPACITY = 1024;
+
+    /**
+     * Максимальное время сна шарда без сообщений.
+     */
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Количество пустых проходов шарда перед сном.
+     */
+    private static final int SPINS = 100;
+
+    /**
+     * Вид сообщения.
+     */
+    private enum Kind {
+        /**
+         * Новый перевод, обрабатывается шардом отправителя.
+         */
+        TRANSFER,
+        /**
+         * Зачисление, обрабатывается шардом получателя.
+         */
+        CREDIT,
+        /**
+         * Возврат списанных средств, обрабатывается шардом отправителя.
+         */
+        REFUND
+    }
+
+    /**
+     * Сообщение о переводе. Один объект переходит между шардами на всех этапах перевода.
+     */
+    private static final class Message {
+        final String transactionId;
+        final BankAccount sender;
+        final BankAccount receiver;
+        final long amount;
+        final CompletableFuture<TransferResult> result;
+        Kind kind;
+        TransferOutcome failure;
+        long limitEpoch;
+
+        Message(BankAccount sender, BankAccount receiver, long amount) {
+            this.transactionId = Long.toString(TransactionIds.next());
+            this.sender = sender;
+            this.receiver = receiver;
+            this.amount = amount;
+            this.result = new CompletableFuture<>();
+            this.kind = Kind.TRANSFER;
+        }
+    }
+
+    /**
+     * Поток-исполнитель шарда.
+     */
+    private final class Shard extends Thread {
+
+        /**
+         * Номер шарда.
+         */
+        private final int number;
+
+        /**
+         * Новые переводы от внешних потоков.
+         */
+        private final ConcurrentLinkedQueue<Message> inbox;
+
+        /**
+         * Входящие сообщения от других шардов, по номеру шарда-отправителя.
+         */
+        private final SpscQueue<Message>[] channels;
+
+        /**
+         * Сообщения, которые не поместились в очередь шарда-получателя, по его номеру.
+         */
+        private final ArrayDeque<Message>[] overflow;
+
+        /**
+         * Признак, что шард спит и его нужно разбудить.
+         */
+        private volatile boolean sleeping;
+
+        @SuppressWarnings("unchecked")
+        Shard(int number, int count) {
+            super("bank-shard-" + number);
+            this.number = number;
+            this.inbox = new ConcurrentLinkedQueue<>();
+            this.channels = (SpscQueue<Message>[]) new SpscQueue<?>[count];
+            this.overflow = (ArrayDeque<Message>[]) new ArrayDeque<?>[count];
+            for (int i = 0; i < count; i++) {
+                channels[i] = new SpscQueue<>(CHANNEL_CAPACITY);
+                overflow[i] = new ArrayDeque<>();
+            }
+            setDaemon(true);
+        }
+
+        /**
+         * Цикл шарда: досылает отложенные сообщения, разбирает сообщения других шардов
+         * и новые переводы. Без сообщений шард некоторое время крутится, а затем засыпает.
+         * Завершается после закрытия движка, когда все принятые переводы завершены.
+         */
+        @Override
+        public void run() {
+            int idle = 0;
+            while (true) {
+                boolean worked = flushOverflow();
+                for (SpscQueue<Message> channel : channels) {
+                    Message message;
+                    while ((message = channel.poll()) != null) {
+                        handle(message);
+                        worked = true;
+                    }
+                }
+                Message message;
+                while ((message = inbox.poll()) != null) {
+                    handle(message);
+                    worked = true;
+                }
+                if (worked) {
+                    idle = 0;
+                } else if (closed && pending.sum() == 0) {
+                    return;
+                } else if (++idle > SPINS) {
+                    sleeping = true;
+                    if (isEmpty()) {
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                    }
+                    sleeping = false;
+                }
+            }
+        }
+
+        /**
+         * Обработка сообщения шардом - владельцем счёта, к которому оно относится.
+         *
+         * @param message Сообщение.
+         */
+        private void handle(Message message) {
+            switch (message.kind) {
+                case TRANSFER -> {
+                    BankAccount sender = message.sender;
+                    if (sender.isFraud()) {
+                        complete(message, TransferOutcome.FRAUD, null);
+                    } else if (sender.isClosed()) {
+                        complete(message, TransferOutcome.CLOSED, null);
+                    } else {
+                        message.limitEpoch = sender.limitEpoch();
+                        TransferOutcome failure;
+                        try {
+                            failure = sender.withdraw(message.amount, message.limitEpoch);
+                        } catch (RuntimeException e) {
+                            // Журнал счёта отправителя не принял списание, баланс не изменён.
+                            failure = TransferOutcome.LOG_FAILURE;
+                        }
+                        if (failure != null) {
+                            complete(message, failure, null);
+                        } else {
+                            message.kind = Kind.CREDIT;
+                            send(shardOf(message.receiver), message);
+                        }
+                    }
+                }
+                case CREDIT -> {
+                    BankAccount receiver = message.receiver;
+                    if (receiver.isFraud() || receiver.isClosed()) {
+                        refund(message, receiver.isFraud() ? TransferOutcome.FRAUD : TransferOutcome.CLOSED);
+                    } else {
+                        TransferOutcome failure = null;
+                        try {
+                            receiver.credit(message.amount);
+                        } catch (RuntimeException e) {
+                            // Журнал счёта получателя не принял зачисление, баланс не изменён.
+                            failure = TransferOutcome.LOG_FAILURE;
+                        }
+                        if (failure != null) {
+                            refund(message, failure);
+                        } else {
+                            complete(message, TransferOutcome.SUCCESS, null);
+                        }
+                    }
+                }
+                case REFUND -> {
+                    RuntimeException error = null;
+                    try {
+                        message.sender.refund(message.amount, message.limitEpoch);
+                    } catch (RuntimeException e) {
+                        error = e;
+                    }
+                    complete(message, message.failure, error);
+                }
+            }
+        }
+
+        /**
+         * Передача сообщения о возврате списанных средств шарду отправителя.
+         *
+         * @param message Сообщение.
+         * @param failure Код неудачи зачисления.
+         */
+        private void refund(Message message, TransferOutcome failure) {
+            message.failure = failure;
+            message.kind = Kind.REFUND;
+            send(shardOf(message.sender), message);
+        }
+
+        /**
+         * Передача сообщения шарду. Сообщение своему шарду обрабатывается сразу.
+         * Если очередь получателя заполнена, сообщение откладывается, а не ждёт:
+         * ожидание двух шардов друг друга привело бы к взаимной блокировке.
+         *
+         * @param target  Шард-получатель.
+         * @param message Сообщение.
+         */
+        private void send(Shard target, Message message) {
+            if (target == this) {
+                handle(message);
+            } else if (!overflow[target.number].isEmpty() || !target.channels[number].offer(message)) {
+                overflow[target.number].add(message);
+            } else {
+                target.wakeUp();
+            }
+        }
+
+        /**
+         * Повторная отправка отложенных сообщений с сохранением порядка.
+         *
+         * @return true, если что-то было отправлено.
+         */
+        private boolean flushOverflow() {
+            boolean sent = false;
+            for (int i = 0; i < overflow.length; i++) {
+                ArrayDeque<Message> messages = overflow[i];
+                while (!messages.isEmpty() && shards[i].channels[number].offer(messages.peek())) {
+                    messages.poll();
+                    sent = true;
+                }
+                if (sent) {
+                    shards[i].wakeUp();
+                }
+            }
+            return sent;
+        }
+
+        /**
+         * Проверка, что у шарда нет входящих сообщений.
+         *
+         * @return true, если все очереди шарда пусты.
+         */
+        private boolean isEmpty() {
+            for (SpscQueue<Message> channel : channels) {
+                if (!channel.isEmpty()) {
+                    return false;
+                }
+            }
+            return inbox.isEmpty();
+        }
+
+        private void wakeUp() {
+            if (sleeping) {
+                LockSupport.unpark(this);
+            }
+        }
+    }
+
+    /**
+     * Шарды.
+     */
+    private final Shard[] shards;
+
+    /**
+     * Журнал транзакций.
+     */
+    private final TransactionJournal journal;
+
+    /**
+     * Количество принятых, но не завершённых переводов.
+     */
+    private final LongAdder pending;
+
+    /**
+     * Признак закрытия движка.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Создание и запуск движка.
+     *
+     * @param shardCount Количество шардов.
+     * @param journal    Журнал транзакций.
+     */
+    public ShardedEngine(int shardCount, TransactionJournal journal) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("Количество шардов должно быть больше 0: " + shardCount);
+        }
+        this.journal = journal;
+        this.pending = new LongAdder();
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, shardCount);
+        }
+        for (Shard shard : shards) {
+            shard.start();
+        }
+    }
+
+    /**
+     * Перевод денежных средств. Вызывающий поток только передаёт перевод шарду отправителя.
+     *
+     * @param sender   Счёт отправителя.
+     * @param receiver Счёт получателя.
+     * @param amount   Сумма перевода в копейках.
+     * @return Future с результатом перевода.
+     */
+    public CompletableFuture<TransferResult> transfer(BankAccount sender, BankAccount receiver, long amount) {
+        TransferOutcome rejection = BankService.validate(sender, receiver, amount);
+        if (rejection != null) {
+            return CompletableFuture.completedFuture(new TransferResult(null, rejection));
+        }
+        pending.increment();
+        if (closed) {
+            pending.decrement();
+            throw new IllegalStateException("Движок переводов закрыт");
+        }
+        Message message = new Message(sender, receiver, amount);
+        Shard shard = shardOf(sender);
+        shard.inbox.add(message);
+        shard.wakeUp();
+        return message.result;
+    }
+
+    /**
+     * Получение шарда - владельца счёта.
+     *
+     * @param account Счёт.
+     * @return Шард.
+     */
+    private Shard shardOf(BankAccount account) {
+        int h = account.getAccountNumber().hashCode();
+        return shards[Math.floorMod(h ^ (h >>> 16), shards.length)];
+    }
+
+    /**
+     * Завершение перевода: запись в журнал и завершение future после надёжного сохранения
+     * изменений счетов в журнале счетов. Ошибка журнала транзакций не прерывает завершение,
+     * а передаётся в результат, поэтому шард продолжает работу.
+     *
+     * @param message Сообщение о переводе.
+     * @param outcome Код результата перевода.
+     * @param error   Ошибка, с которой нужно завершить перевод, или null.
+     */
+    private void complete(Message message, TransferOutcome outcome, RuntimeException error) {
+        RuntimeException recordFailure = error;
+        try {
+            journal.record(message.transactionId, message.sender.getAccountNumber(),
+                    message.receiver.getAccountNumber(), message.amount, !outcome.isRejected());
+        } catch (RuntimeException e) {
+            if (recordFailure == null) {
+                recordFailure = e;
+            }
+        }
+        RuntimeException failure = recordFailure;
+        BankAccount.whenDurable(message.sender, message.receiver, durabilityFailure -> {
+            pending.decrement();
+            Throwable cause = failure != null ? failure : durabilityFailure;
+            if (cause != null) {
+                message.result.completeExceptionally(cause);
+            } else {
+                message.result.complete(new TransferResult(message.transactionId, outcome));
+            }
+        });
+    }
+
+    /**
+     * Закрытие движка: новые переводы не принимаются, шарды завершаются после завершения
+     * всех принятых переводов.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        boolean interrupted = false;
+        for (Shard shard : shards) {
+            LockSupport.unpark(shard);
+            while (shard.isAlive()) {
+                try {
+                    shard.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ограниченная очередь для одного производителя и одного потребителя на кольцевом буфере.
+ * Производитель меняет только хвост, потребитель - только голову, поэтому обмен
+ * не требует CAS: достаточно упорядоченной публикации индексов.
+ *
+ * @param <E> Тип элементов.
+ */
+class SpscQueue<E> {
+
+    /**
+     * Ячейки кольцевого буфера.
+     */
+    private final AtomicReferenceArray<E> elements;
+
+    /**
+     * Маска для получения номера ячейки.
+     */
+    private final int mask;
+
+    /**
+     * Номер следующего элемента, который прочитает потребитель.
+     */
+    private final AtomicLong head;
+
+    /**
+     * Номер следующего элемента, который запишет производитель.
+     */
+    private final AtomicLong tail;
+
+    /**
+     * Создание очереди.
+     *
+     * @param capacity Ёмкость (степень двойки).
+     */
+    SpscQueue(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ёмкость очереди должна быть степенью двойки: " + capacity);
+        }
+        elements = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+        head = new AtomicLong();
+        tail = new AtomicLong();
+    }
+
+    /**
+     * Добавление элемента. Вызывается только производителем.
+     *
+     * @param element Элемент.
+     * @return false, если очередь заполнена.
+     */
+    boolean offer(E element) {
+        long current = tail.getPlain();
+        if (current - head.getAcquire() == elements.length()) {
+            return false;
+        }
+        elements.setPlain((int) (current & mask), element);
+        tail.setRelease(current + 1);
+        return true;
+    }
+
+    /**
+     * Извлечение элемента. Вызывается только потребителем.
+     *
+     * @return Элемент или null, если очередь пуста.
+     */
+    E poll() {
+        long current = head.getPlain();
+        if (current == tail.getAcquire()) {
+            return null;
+        }
+        int index = (int) (current & mask);
+        E element = elements.getPlain(index);
+        elements.setPlain(index, null);
+        head.setRelease(current + 1);
+        return element;
+    }
+
+    /**
+     * Проверка, что очередь пуста.
+     *
+     * @return true, если элементов нет.
+     */
+    boolean isEmpty() {
+        return head.getAcquire() == tail.getAcquire();
+    }
+}
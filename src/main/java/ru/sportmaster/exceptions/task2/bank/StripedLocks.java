@@ -0,0 +1,76 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Набор блокировок, поделённых между счетами по хешу номера счёта (полосы).
+ * Две полосы всегда захватываются в порядке возрастания их номеров, поэтому
+ * одновременные переводы в противоположных направлениях не могут взаимно заблокироваться.
+ */
+class StripedLocks {
+
+    /**
+     * Блокировки полос.
+     */
+    private final ReentrantLock[] stripes;
+
+    /**
+     * Маска для получения номера полосы по хешу.
+     */
+    private final int mask;
+
+    /**
+     * Создание набора блокировок.
+     *
+     * @param count Количество полос (степень двойки).
+     */
+    StripedLocks(int count) {
+        if (count <= 0 || Integer.bitCount(count) != 1) {
+            throw new IllegalArgumentException("Количество полос должно быть степенью двойки: " + count);
+        }
+        stripes = new ReentrantLock[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        mask = count - 1;
+    }
+
+    /**
+     * Получение номера полосы счёта.
+     *
+     * @param account Счёт.
+     * @return Номер полосы.
+     */
+    int stripeOf(BankAccount account) {
+        int h = account.getAccountNumber().hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Захват полос двух счетов в глобальном порядке.
+     *
+     * @param first  Номер первой полосы.
+     * @param second Номер второй полосы.
+     */
+    void lock(int first, int second) {
+        int low = Math.min(first, second);
+        int high = Math.max(first, second);
+        stripes[low].lock();
+        if (high != low) {
+            stripes[high].lock();
+        }
+    }
+
+    /**
+     * Освобождение полос двух счетов.
+     *
+     * @param first  Номер первой полосы.
+     * @param second Номер второй полосы.
+     */
+    void unlock(int first, int second) {
+        stripes[first].unlock();
+        if (second != first) {
+            stripes[second].unlock();
+        }
+    }
+}
@@ -1,40 +1,361 @@
 package ru.sportmaster.exceptions.task2.bank;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Класс реализует очередь операций для отдельного счёта.
- * Наследуется от класса ConcurrentLinkedQueue, чтобы использовать
- * некоторые его методы.
+ * Очередь - это кольцевой буфер ограниченной ёмкости: операции ставят в неё многие потоки,
+ * а разбирает один, поэтому постановка и разбор не выделяют память, в отличие от узлов связного списка.
+ * Очередь работает как последовательный исполнитель: в каждый момент времени
+ * операции счёта обрабатывает не более одного потока, поэтому каждая операция
+ * выполняется ровно один раз и в порядке поступления.
+ * <p>
+ * Ёмкость очереди ограничена, поэтому поток переводов на один счёт не может занять всю память.
+ * Что делать с операцией, когда очередь заполнена, определяет {@link OverflowPolicy}.
  */
-public class TaskQueue extends ConcurrentLinkedQueue<Operation> {
+public class TaskQueue {
 
     /**
-     * Признак, что очередь находится в состоянии обработки.
+     * Ёмкость очереди по умолчанию.
      */
-    private boolean isProcessed;
+    static final int DEFAULT_CAPACITY = 256;
 
     /**
-     * По умолчанию операционная очередь создаётся с признаком, что обработка не производится.
+     * Ячейки кольцевого буфера.
+     */
+    private final Operation[] operations;
+
+    /**
+     * Номер круга ячейки: равен номеру записи - ячейка свободна для постановки,
+     * номеру записи + 1 - операция опубликована и доступна обработчику.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * Маска для получения номера ячейки.
+     */
+    private final int mask;
+
+    /**
+     * Номер следующей записи, которую займёт поставщик операции.
+     */
+    private final AtomicLong tail;
+
+    /**
+     * Номер следующей записи, которую разберёт обработчик.
+     */
+    private final AtomicLong head;
+
+    /**
+     * Признак, что очередь находится в состоянии обработки. Захватывается через CAS,
+     * поэтому разбирать очередь может только один поток.
+     */
+    private final AtomicBoolean isProcessed;
+
+    /**
+     * Поведение при заполненной очереди.
+     */
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * Блокировка ожидания места в очереди. Берётся только поставщиками, которые ждут места,
+     * и обработчиком, если такие поставщики есть.
+     */
+    private final ReentrantLock waitLock;
+
+    /**
+     * Условие освобождения места в очереди или освобождения обработки.
+     */
+    private final Condition notFull;
+
+    /**
+     * Количество поставщиков, ждущих места в очереди. Обработчик читает его после каждой
+     * извлечённой операции и будит поставщика только если тот ждёт.
+     */
+    private final AtomicInteger waiters;
+
+    /**
+     * По умолчанию операционная очередь создаётся с признаком, что обработка не производится,
+     * и с поведением при заполнении из конфигурации.
      */
     public TaskQueue() {
-        isProcessed = false;
+        this(DEFAULT_CAPACITY, OverflowPolicy.fromConfiguration());
+    }
+
+    /**
+     * Создание очереди указанной ёмкости, которая при заполнении ждёт освобождения места.
+     *
+     * @param capacity Ёмкость (степень двойки).
+     */
+    public TaskQueue(int capacity) {
+        this(capacity, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Создание очереди указанной ёмкости и поведения при заполнении.
+     *
+     * @param capacity       Ёмкость (степень двойки).
+     * @param overflowPolicy Поведение при заполненной очереди.
+     */
+    public TaskQueue(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ёмкость очереди должна быть степенью двойки: " + capacity);
+        }
+        operations = new Operation[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+        tail = new AtomicLong();
+        head = new AtomicLong();
+        isProcessed = new AtomicBoolean(false);
+        this.overflowPolicy = overflowPolicy;
+        waitLock = new ReentrantLock();
+        notFull = waitLock.newCondition();
+        waiters = new AtomicInteger();
+    }
+
+    /**
+     * Получение поведения при заполненной очереди.
+     *
+     * @return Поведение при заполнении.
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Постановка операции в очередь с последующим запуском обработки.
+     * Если очередь уже разбирается другим потоком, то вызывающий поток не ждёт:
+     * операцию выполнит текущий обработчик, а о её завершении сообщит возвращаемый future.
+     * Если очередь заполнена, то операция обрабатывается согласно {@link OverflowPolicy}.
+     *
+     * @param operation Операция над счётом.
+     * @return Future, который завершается после выполнения операции, или null для операции без признака завершения.
+     */
+    CompletableFuture<Void> submit(Operation operation) {
+        return submit(operation, TransferMetrics.NONE);
+    }
+
+    /**
+     * Постановка операции в очередь с передачей измерений глубины очереди и длительности разбора.
+     *
+     * @param operation Операция над счётом.
+     * @param metrics   Получатель измерений.
+     * @return Future, который завершается после выполнения операции, или null для операции без признака завершения.
+     */
+    CompletableFuture<Void> submit(Operation operation, TransferMetrics metrics) {
+        // После публикации операцию может разобрать и переиспользовать обработчик, поэтому счёт читается заранее.
+        BankAccount account = operation.account;
+        while (!offer(operation)) {
+            if (overflowPolicy == OverflowPolicy.REJECT && operation.reject(TransferOutcome.OVERLOADED)) {
+                return operation.getCompletion();
+            }
+            if (overflowPolicy == OverflowPolicy.SHED_OLDEST && shedOldest()) {
+                continue;
+            }
+            process(metrics);
+            awaitSpace();
+        }
+        if (metrics.isEnabled()) {
+            metrics.queued(account, size());
+        }
+        process(metrics);
+        return operation.getCompletion();
     }
 
     /**
-     * Процессинг очереди операций. Сперва проверяет, что обработка
-     * ещё не запущена. Далее проставляется признак, что запущена обработка.
+     * Постановка операции в очередь без запуска обработки.
+     *
+     * @param operation Операция над счётом.
+     * @return false, если очередь заполнена.
+     */
+    boolean offer(Operation operation) {
+        while (true) {
+            long current = tail.get();
+            int index = (int) (current & mask);
+            long difference = sequences.getAcquire(index) - current;
+            if (difference < 0) {
+                return false;
+            }
+            if (difference == 0 && tail.compareAndSet(current, current + 1)) {
+                operations[index] = operation;
+                sequences.setRelease(index, current + 1);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Ожидание места в очереди, когда её разбирает другой поток. Поставщик засыпает на условии
+     * и просыпается, когда обработчик извлекает операцию или снимает признак обработки.
+     * Признаки проверяются после регистрации ожидающего, а обработчик читает количество ожидающих
+     * после извлечения операции, поэтому пробуждение не теряется.
+     */
+    private void awaitSpace() {
+        waitLock.lock();
+        try {
+            waiters.incrementAndGet();
+            try {
+                while (remainingCapacity() == 0 && isProcessed.get()) {
+                    notFull.awaitUninterruptibly();
+                }
+            } finally {
+                waiters.decrementAndGet();
+            }
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    /**
+     * Пробуждение поставщиков, ждущих места в очереди, если они есть.
+     */
+    private void signalWaiters() {
+        if (waiters.get() > 0) {
+            waitLock.lock();
+            try {
+                notFull.signalAll();
+            } finally {
+                waitLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Вытеснение самой старой операции: она извлекается из очереди и завершается отказом.
+     * Вытесняющий поток не владеет обработкой очереди, поэтому операции не выполняет:
+     * если самую старую операцию отклонить нельзя, то она остаётся в очереди.
+     *
+     * @return true, если место в очереди освободилось.
+     */
+    private boolean shedOldest() {
+        while (true) {
+            long current = head.get();
+            int index = (int) (current & mask);
+            if (sequences.getAcquire(index) != current + 1) {
+                return false;
+            }
+            Operation oldest = operations[index];
+            if (!oldest.isRejectable()) {
+                return false;
+            }
+            if (head.compareAndSet(current, current + 1)) {
+                operations[index] = null;
+                sequences.setRelease(index, current + operations.length);
+                oldest.reject(TransferOutcome.OVERLOADED);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Извлечение следующей опубликованной операции. Голова очереди сдвигается через CAS,
+     * потому что её сдвигает и поставщик, вытесняющий самую старую операцию.
+     *
+     * @return Операция или null, если опубликованных операций нет.
+     */
+    private Operation poll() {
+        while (true) {
+            long current = head.get();
+            int index = (int) (current & mask);
+            long difference = sequences.getAcquire(index) - (current + 1);
+            if (difference < 0) {
+                return null;
+            }
+            if (difference == 0 && head.compareAndSet(current, current + 1)) {
+                Operation operation = operations[index];
+                operations[index] = null;
+                sequences.setRelease(index, current + operations.length);
+                return operation;
+            }
+        }
+    }
+
+    /**
+     * Проверка, что следующая операция опубликована.
+     *
+     * @return true, если обработчику есть что разбирать.
+     */
+    private boolean hasPublished() {
+        long current = head.getAcquire();
+        return sequences.getAcquire((int) (current & mask)) == current + 1;
+    }
+
+    /**
+     * Проверка, что в очереди нет операций.
+     *
+     * @return true, если очередь пуста.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Получение количества операций в очереди, включая те, что ещё публикуются.
+     *
+     * @return Количество операций.
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.getAcquire());
+    }
+
+    /**
+     * Получение количества свободных мест в очереди. Позволяет вызывающему снизить нагрузку
+     * на счёт до того, как очередь начнёт отклонять или вытеснять операции.
+     *
+     * @return Количество свободных мест.
+     */
+    public int remainingCapacity() {
+        return Math.max(0, operations.length - size());
+    }
+
+    /**
+     * Процессинг очереди операций. Сперва через CAS захватывается признак обработки,
+     * если он уже захвачен - выходим, операции выполнит владелец обработки.
      * В цикле из очереди извлекается самая первая операция и запускается
-     * её выполнение и так, пока очередь не опустеет. После чего проставляется
-     * признак, что обработка очереди остановлена.
+     * её выполнение и так, пока очередь не опустеет. После чего признак обработки снимается
+     * и очередь проверяется повторно: операция могла быть добавлена уже после того, как
+     * обработчик увидел пустую очередь, но до того, как он снял признак. Операцию, которая
+     * ещё публикуется, повторно не ждём: поставщик сам запустит обработку после публикации.
      */
     void process() {
-        if (!isProcessed) {
-            isProcessed = true;
-            while (!isEmpty()) {
-                poll().operate();
+        process(TransferMetrics.NONE);
+    }
+
+    /**
+     * Процессинг очереди операций с передачей количества операций и длительности каждого разбора.
+     *
+     * @param metrics Получатель измерений.
+     */
+    void process(TransferMetrics metrics) {
+        do {
+            if (!isProcessed.compareAndSet(false, true)) {
+                return;
             }
-            isProcessed = false;
-        }
+            long start = metrics.isEnabled() ? System.nanoTime() : 0;
+            int executed = 0;
+            try {
+                Operation operation;
+                while ((operation = poll()) != null) {
+                    signalWaiters();
+                    operation.execute();
+                    executed++;
+                }
+            } finally {
+                isProcessed.set(false);
+                signalWaiters();
+            }
+            if (executed > 0 && metrics.isEnabled()) {
+                metrics.drained(executed, System.nanoTime() - start);
+            }
+        } while (hasPublished());
     }
 }
@@ -1,37 +1,41 @@
 package ru.sportmaster.exceptions.task2.bank;
 
-import java.text.DecimalFormat;
-import java.util.UUID;
-import java.util.concurrent.atomic.DoubleAdder;
+import ru.sportmaster.exceptions.task2.bank.journal.ConsoleJournal;
+import ru.sportmaster.exceptions.task2.bank.journal.TransactionJournal;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * Класс реализует транзакцию - перевод денежных средств с одного счёта на другой.
  */
 public class Transaction {
     /**
-     * Формат вывода суммы перевода с точностью до сотых (т.е. до копеек)
+     * Журнал транзакций по умолчанию - вывод в консоль.
      */
-    private static final DecimalFormat FORMATTER = new DecimalFormat("#.##");
+    private static final TransactionJournal CONSOLE_JOURNAL = new ConsoleJournal();
 
     /**
      * Уникальный идентификатор транзакции.
      */
-    private final String id;
+    private long id;
 
     /**
      * Счёт отправителя средств
      */
-    private final BankAccount sender;
+    private BankAccount sender;
 
     /**
      * Счёт получателя средств
      */
-    private final BankAccount receiver;
+    private BankAccount receiver;
 
     /**
-     * Сумма перевода
+     * Сумма перевода в копейках.
      */
-    private final double amount;
+    private long amount;
 
     /**
      * Операция списания средств со счёта отправителя.
@@ -49,6 +53,61 @@ public class Transaction {
      */
     private Boolean isSuccessful;
 
+    /**
+     * Количество незавершённых операций транзакции. Операции могут завершаться в разных потоках,
+     * итоговую проверку статуса выполняет тот, кто завершил последнюю из них.
+     */
+    private final AtomicInteger pendingOperations;
+
+    /**
+     * Результат транзакции, завершается после выполнения всех операций и отмен.
+     * null - у повторно используемой транзакции.
+     */
+    private final CompletableFuture<TransferResult> result;
+
+    /**
+     * Журнал, в который записываются данные о транзакции.
+     */
+    private final TransactionJournal journal;
+
+    /**
+     * Получатель измерений.
+     */
+    private final TransferMetrics metrics;
+
+    /**
+     * Ошибка журнала транзакций или журнала счетов при подведении итога. Ошибка не прерывает
+     * завершение транзакции, а передаётся в её результат.
+     */
+    private Throwable failure;
+
+    /**
+     * Код результата транзакции, вычисляется при подведении итога.
+     */
+    private TransferOutcome outcome;
+
+    /**
+     * Завершение транзакции после надёжного сохранения её изменений. Создаётся один раз,
+     * чтобы повторно используемая транзакция не выделяла память на каждый перевод.
+     */
+    private final Consumer<Throwable> finisher;
+
+    /**
+     * Время создания транзакции для измерения времени перевода, 0 - если измерения выключены.
+     */
+    private long startNanos;
+
+    /**
+     * Пул, в который транзакция возвращается после завершения, null - транзакция одноразовая.
+     */
+    private final RecyclingPool<Transaction> pool;
+
+    /**
+     * Разрешения на незавершённые переводы сервиса, одно из которых занимает транзакция,
+     * null - транзакция создана без ограничения.
+     */
+    private final Semaphore inFlight;
+
     /**
      * Получение операции списания средств, связанной с транзакцией.
      *
@@ -67,6 +126,16 @@ public class Transaction {
         return replenishment;
     }
 
+    /**
+     * Получение результата транзакции.
+     *
+     * @return Future, который завершается после выполнения списания, зачисления и, при необходимости, отмены,
+     * или null у повторно используемой транзакции.
+     */
+    public CompletableFuture<TransferResult> getResult() {
+        return result;
+    }
+
     /**
      * Создание транзакции с указанием отправителя, получателя и суммы перевода.
      * Автоматически генерируется её идентификатор. Создаются связанные операции
@@ -74,20 +143,102 @@ public class Transaction {
      *
      * @param sender   Отправитель средств.
      * @param receiver Получатель средств.
-     * @param amount   Сумма перевода.
+     * @param amount   Сумма перевода в копейках.
      */
-    public Transaction(BankAccount sender, BankAccount receiver, double amount) {
-        this.id = UUID.randomUUID().toString();
+    public Transaction(BankAccount sender, BankAccount receiver, long amount) {
+        this(sender, receiver, amount, CONSOLE_JOURNAL);
+    }
+
+    /**
+     * Создание транзакции с записью в указанный журнал.
+     *
+     * @param sender   Отправитель средств.
+     * @param receiver Получатель средств.
+     * @param amount   Сумма перевода в копейках.
+     * @param journal  Журнал транзакций.
+     */
+    public Transaction(BankAccount sender, BankAccount receiver, long amount, TransactionJournal journal) {
+        this(sender, receiver, amount, journal, TransferMetrics.NONE, null);
+    }
+
+    /**
+     * Создание транзакции с записью в указанный журнал и передачей измерений.
+     *
+     * @param sender   Отправитель средств.
+     * @param receiver Получатель средств.
+     * @param amount   Сумма перевода в копейках.
+     * @param journal  Журнал транзакций.
+     * @param metrics  Получатель измерений.
+     * @param inFlight Разрешения на незавершённые переводы, освобождаемые по завершении, или null.
+     */
+    Transaction(BankAccount sender, BankAccount receiver, long amount, TransactionJournal journal,
+                TransferMetrics metrics, Semaphore inFlight) {
+        this.id = TransactionIds.next();
         this.sender = sender;
         this.receiver = receiver;
         this.amount = amount;
         this.withdrawal = new Withdrawal(sender, amount, this);
         this.replenishment = new Replenishment(receiver, amount, this);
         this.isSuccessful = null;
+        this.pendingOperations = new AtomicInteger(2);
+        this.result = new CompletableFuture<>();
+        this.journal = journal;
+        this.metrics = metrics;
+        this.startNanos = metrics.isEnabled() ? System.nanoTime() : 0;
+        this.pool = null;
+        this.inFlight = inFlight;
+        this.finisher = this::finish;
+    }
+
+    /**
+     * Создание повторно используемой транзакции: без future результата и с операциями без признаков
+     * завершения. После завершения транзакция возвращается в пул, поэтому в установившемся режиме
+     * перевод не выделяет память. Перед использованием транзакцию нужно подготовить через {@link #reset}.
+     *
+     * @param journal  Журнал транзакций.
+     * @param metrics  Получатель измерений.
+     * @param pool     Пул транзакций.
+     * @param inFlight Разрешения на незавершённые переводы, освобождаемые по завершении, или null.
+     */
+    Transaction(TransactionJournal journal, TransferMetrics metrics, RecyclingPool<Transaction> pool,
+                Semaphore inFlight) {
+        this.withdrawal = new Withdrawal(this);
+        this.replenishment = new Replenishment(this);
+        this.pendingOperations = new AtomicInteger();
+        this.result = null;
+        this.journal = journal;
+        this.metrics = metrics;
+        this.pool = pool;
+        this.inFlight = inFlight;
+        this.finisher = this::finish;
+    }
+
+    /**
+     * Подготовка повторно используемой транзакции к новому переводу.
+     *
+     * @param sender   Отправитель средств.
+     * @param receiver Получатель средств.
+     * @param amount   Сумма перевода в копейках.
+     * @return Эта транзакция.
+     */
+    Transaction reset(BankAccount sender, BankAccount receiver, long amount) {
+        this.id = TransactionIds.next();
+        this.sender = sender;
+        this.receiver = receiver;
+        this.amount = amount;
+        this.isSuccessful = null;
+        this.failure = null;
+        this.startNanos = metrics.isEnabled() ? System.nanoTime() : 0;
+        withdrawal.reset(sender, amount);
+        replenishment.reset(receiver, amount);
+        pendingOperations.set(2);
+        return this;
     }
 
     /**
      * Проверка статуса транзакции. Полностью зависит от статуса связанных операций списания и зачисления.
+     * Вызывается каждой операцией по её завершении, но сама проверка выполняется только один раз,
+     * после завершения обеих операций, поэтому отмена не может выполниться дважды.
      * 1. Если списание не удалось, а зачисление было успешным, то транзакция помечается как невыполненная
      * и выполняется отмена зачисления.
      * 2. Если списание было успешным, а зачисление неудачным, то транзакция помечается как невыполненная
@@ -96,56 +247,105 @@ public class Transaction {
      * её данные записывается в лог.
      * 4. Если и списание, и зачисление были неудачными, то транзакция помечается как невыполненная и
      * её данные записывается в лог.
+     * После проверки завершается результат транзакции, освобождается разрешение на незавершённый перевод,
+     * а повторно используемая транзакция возвращается в пул.
      */
     public void checkStatus() {
-        if (Boolean.TRUE.equals(replenishment.getSuccessful()) && Boolean.TRUE.equals(withdrawal.getSuccessful())) {
-            isSuccessful = true;
-            writeToLog();
+        if (pendingOperations.decrementAndGet() != 0) {
+            return;
         }
-        if (Boolean.FALSE.equals(withdrawal.getSuccessful()) && Boolean.TRUE.equals(replenishment.getSuccessful())) {
-            isSuccessful = false;
-            rollbackReplenishment();
+        Boolean withdrawn = withdrawal.getSuccessful();
+        Boolean replenished = replenishment.getSuccessful();
+        try {
+            if (Boolean.TRUE.equals(replenished) && Boolean.TRUE.equals(withdrawn)) {
+                isSuccessful = true;
+                writeToLog();
+            }
+            if (Boolean.FALSE.equals(withdrawn) && Boolean.TRUE.equals(replenished)) {
+                isSuccessful = false;
+                rollbackReplenishment();
+            }
+            if (Boolean.FALSE.equals(replenished) && Boolean.TRUE.equals(withdrawn)) {
+                isSuccessful = false;
+                rollbackWithdrawal();
+            }
+            if (Boolean.FALSE.equals(replenished) && Boolean.FALSE.equals(withdrawn)) {
+                isSuccessful = false;
+                writeToLog();
+            }
+        } catch (RuntimeException e) {
+            failure = e;
         }
-        if (Boolean.FALSE.equals(replenishment.getSuccessful()) && Boolean.TRUE.equals(withdrawal.getSuccessful())) {
-            isSuccessful = false;
-            rollbackWithdrawal();
+        outcome = withdrawal.getFailure() != null ? withdrawal.getFailure()
+                : replenishment.getFailure() != null ? replenishment.getFailure()
+                : TransferOutcome.SUCCESS;
+        BankAccount.whenDurable(sender, receiver, finisher);
+    }
+
+    /**
+     * Завершение транзакции после того, как журнал счетов надёжно сохранил её изменения:
+     * освобождается разрешение на незавершённый перевод (до завершения результата, чтобы ожидающий
+     * результата видел освободившееся место), завершается результат,
+     * а повторно используемая транзакция возвращается в пул.
+     *
+     * @param durabilityFailure Ошибка журнала счетов или null.
+     */
+    private void finish(Throwable durabilityFailure) {
+        if (failure == null) {
+            failure = durabilityFailure;
         }
-        if (Boolean.FALSE.equals(replenishment.getSuccessful()) && Boolean.FALSE.equals(withdrawal.getSuccessful())) {
-            isSuccessful = false;
-            writeToLog();
+        if (metrics.isEnabled()) {
+            if (outcome.isRejected()) {
+                metrics.rejected(outcome);
+            }
+            metrics.transferCompleted(System.nanoTime() - startNanos, isSuccessful);
+        }
+        if (inFlight != null) {
+            inFlight.release();
+        }
+        if (result != null) {
+            if (failure != null) {
+                result.completeExceptionally(failure);
+            } else {
+                result.complete(new TransferResult(Long.toString(id), outcome));
+            }
+        }
+        if (pool != null) {
+            sender = null;
+            receiver = null;
+            outcome = null;
+            withdrawal.reset(null, 0);
+            replenishment.reset(null, 0);
+            pool.release(this);
         }
     }
 
     /**
-     * Отмена списания. На счёт отправителя возвращается списанная сумма и данные транзакции записываются в лог.
+     * Отмена списания. На счёт отправителя возвращается списанная сумма, списание вычитается из его лимита
+     * и данные транзакции записываются в лог.
      */
     private void rollbackWithdrawal() {
-        DoubleAdder adder = new DoubleAdder();
-        adder.add(sender.getBalance());
-        adder.add(amount);
-        sender.setBalance(adder.sum());
+        sender.refund(amount, withdrawal.getLimitEpoch());
+        metrics.withdrawalRolledBack();
         writeToLog();
     }
 
     /**
      * Отмена зачисления. Со счёта получателя списывается зачисленная сумма и данные транзакции записываются в лог.
+     * Если получатель уже успел распорядиться средствами, то отмена выполняется безусловно, как и раньше.
      */
     private void rollbackReplenishment() {
-        DoubleAdder adder = new DoubleAdder();
-        adder.add(receiver.getBalance());
-        adder.add(-amount);
-        receiver.setBalance(adder.sum());
+        if (!receiver.tryDebit(amount)) {
+            receiver.credit(-amount);
+        }
+        metrics.replenishmentRolledBack();
         writeToLog();
     }
 
     /**
-     * Запись данных о транзакции в лог (на самом деле вывод в консоль).
+     * Запись данных о транзакции в журнал.
      */
     private void writeToLog() {
-        String string = """
-                Транзакция: %s, счёт отправителя: %s, счёт получателя: %s, сумма: %s, успех: %b.
-                """;
-        System.out.printf((string), id, sender.getAccountNumber(), receiver.getAccountNumber(),
-                FORMATTER.format(amount), isSuccessful);
+        journal.record(id, sender.getAccountNumber(), receiver.getAccountNumber(), amount, isSuccessful);
     }
 }
@@ -0,0 +1,51 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Генератор идентификаторов транзакций - монотонно возрастающих чисел, вместо случайных UUID,
+ * которые требуют обращения к общему SecureRandom и выделения памяти.
+ * <p>
+ * Счётчик начинается со времени запуска в миллисекундах, сдвинутого на 20 бит, поэтому идентификаторы
+ * не повторяются и после перезапуска, если в среднем выдаётся не больше миллиона идентификаторов
+ * в миллисекунду. Платформенные потоки забирают идентификаторы из счётчика блоками
+ * и не конкурируют за него на каждой транзакции.
+ */
+final class TransactionIds {
+
+    /**
+     * Количество идентификаторов, которое платформенный поток забирает за один раз.
+     */
+    private static final int BLOCK_SIZE = 1024;
+
+    /**
+     * Следующий незанятый идентификатор.
+     */
+    private static final AtomicLong NEXT = new AtomicLong(System.currentTimeMillis() << 20);
+
+    /**
+     * Блок идентификаторов потока: следующий идентификатор и граница блока.
+     */
+    private static final ThreadLocal<long[]> BLOCK = ThreadLocal.withInitial(() -> new long[2]);
+
+    private TransactionIds() {
+    }
+
+    /**
+     * Получение нового идентификатора транзакции. Виртуальные потоки короткоживущие,
+     * поэтому берут идентификаторы из счётчика по одному, не занимая блоки.
+     *
+     * @return Идентификатор.
+     */
+    static long next() {
+        if (Thread.currentThread().isVirtual()) {
+            return NEXT.getAndIncrement();
+        }
+        long[] block = BLOCK.get();
+        if (block[0] == block[1]) {
+            block[0] = NEXT.getAndAdd(BLOCK_SIZE);
+            block[1] = block[0] + BLOCK_SIZE;
+        }
+        return block[0]++;
+    }
+}
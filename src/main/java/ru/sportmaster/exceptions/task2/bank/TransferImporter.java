@@ -0,0 +1,381 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Потоковая загрузка файла пакетных переводов в формате CSV: в каждой строке номер счёта отправителя,
+ * номер счёта получателя из реестра и сумма в рублях с копейками через точку, например {@code 1001,2002,150.50}.
+ * <p>
+ * Файл отображается в память окнами постоянного размера, окно делится по границам строк на части,
+ * которые разбираются параллельно в общем пуле fork/join, не больше нескольких частей на процессор вперёд.
+ * Строки разбираются прямо из байтов окна, без создания строк; пустые строки и символ \r в конце строки
+ * пропускаются. Параметры перевода проверяются при разборе.
+ * <p>
+ * Вызывающий поток ищет счета допущенных переводов в реестре и передаёт переводы
+ * в {@link BankService#transferFundsBatch(List)} пакетами ограниченного размера по порядку строк файла,
+ * поэтому переводы одного счёта попадают в его очередь в порядке файла и результат загрузки не зависит
+ * от порядка разбора частей. Пока выполняются переводы части, следующие части, в том числе следующего окна,
+ * уже разбираются. Поэтому расход памяти не зависит от размера файла: окно файла и разобранные переводы
+ * ограниченного количества частей.
+ */
+public class TransferImporter {
+
+    /**
+     * Размер окна отображения файла по умолчанию.
+     */
+    private static final int DEFAULT_WINDOW_SIZE = 64 << 20;
+
+    /**
+     * Размер пакета переводов по умолчанию.
+     */
+    private static final int DEFAULT_BATCH_SIZE = 4096;
+
+    /**
+     * Размер части окна, разбираемой одной задачей.
+     */
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    /**
+     * Количество частей, разбираемых впрок, на процессор.
+     */
+    private static final int CHUNKS_PER_PROCESSOR = 2;
+
+    /**
+     * Количество представлений счетов, запоминаемых при загрузке файла. Степень двойки.
+     */
+    private static final int ACCOUNT_CACHE_SIZE = 1024;
+
+    /**
+     * Разобранная часть окна: номера счетов и суммы допущенных переводов по порядку строк и счётчики строк.
+     * Переводы хранятся в массивах чисел, а не объектами, чтобы разобранные впрок части не удерживали
+     * объекты переводов и представления счетов.
+     */
+    private static final class Chunk {
+        final long[] rejections = new long[TransferOutcome.values().length];
+        long[] senders = new long[64];
+        long[] receivers = new long[64];
+        long[] amounts = new long[64];
+        int size;
+        long lines;
+        long malformed;
+
+        void add(long sender, long receiver, long amount) {
+            if (size == amounts.length) {
+                senders = Arrays.copyOf(senders, size * 2);
+                receivers = Arrays.copyOf(receivers, size * 2);
+                amounts = Arrays.copyOf(amounts, size * 2);
+            }
+            senders[size] = sender;
+            receivers[size] = receiver;
+            amounts[size] = amount;
+            size++;
+        }
+    }
+
+    /**
+     * Сервис, выполняющий переводы.
+     */
+    private final BankService bankService;
+
+    /**
+     * Реестр, в котором ищутся счета по номерам.
+     */
+    private final AccountRegistry registry;
+
+    /**
+     * Размер окна отображения файла.
+     */
+    private final int windowSize;
+
+    /**
+     * Размер пакета переводов.
+     */
+    private final int batchSize;
+
+    /**
+     * Создание загрузчика с размерами окна и пакета по умолчанию.
+     *
+     * @param bankService Сервис, выполняющий переводы.
+     * @param registry    Реестр счетов.
+     */
+    public TransferImporter(BankService bankService, AccountRegistry registry) {
+        this(bankService, registry, DEFAULT_WINDOW_SIZE, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Создание загрузчика.
+     *
+     * @param bankService Сервис, выполняющий переводы.
+     * @param registry    Реестр счетов.
+     * @param windowSize  Размер окна отображения файла в байтах, должен быть больше длины любой строки.
+     * @param batchSize   Максимальное количество переводов в пакете.
+     */
+    public TransferImporter(BankService bankService, AccountRegistry registry, int windowSize, int batchSize) {
+        if (windowSize <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("Размеры окна и пакета должны быть больше 0: "
+                    + windowSize + ", " + batchSize);
+        }
+        this.bankService = bankService;
+        this.registry = registry;
+        this.windowSize = windowSize;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Загрузка файла переводов. Возвращает управление, когда все переводы файла выполнены.
+     * Если в файле есть строка длиннее окна, то переводы до этого окна выполняются.
+     *
+     * @param file Файл переводов.
+     * @return Итоги загрузки.
+     * @throws IOException Если файл не удалось прочитать или в нём есть строка длиннее окна.
+     */
+    public ImportSummary importFile(Path file) throws IOException {
+        ImportSummary summary = ImportSummary.EMPTY;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            int ahead = Math.max(2, Runtime.getRuntime().availableProcessors() * CHUNKS_PER_PROCESSOR);
+            Deque<CompletableFuture<Chunk>> parsed = new ArrayDeque<>(ahead);
+            long[] numbers = new long[ACCOUNT_CACHE_SIZE];
+            BankAccount[] accounts = new BankAccount[ACCOUNT_CACHE_SIZE];
+            while (position < size) {
+                int length = (int) Math.min(windowSize, size - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                if (position + length < size) {
+                    length = lastLineEnd(window, length);
+                    if (length == 0) {
+                        while (!parsed.isEmpty()) {
+                            summary = summary.plus(apply(parsed.poll(), numbers, accounts));
+                        }
+                        throw new IOException("Строка файла переводов длиннее окна чтения: позиция " + position);
+                    }
+                }
+                for (int from = 0; from < length; ) {
+                    int to = length - from <= CHUNK_SIZE ? length : nextLineStart(window, from + CHUNK_SIZE, length);
+                    int start = from;
+                    if (parsed.size() == ahead) {
+                        summary = summary.plus(apply(parsed.poll(), numbers, accounts));
+                    }
+                    parsed.add(CompletableFuture.supplyAsync(() -> parseChunk(window, start, to)));
+                    from = to;
+                }
+                position += length;
+            }
+            while (!parsed.isEmpty()) {
+                summary = summary.plus(apply(parsed.poll(), numbers, accounts));
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Поиск счетов и выполнение переводов части пакетами по порядку строк файла, как только часть разобрана.
+     *
+     * @param parsed   Разбираемая часть.
+     * @param numbers  Номера запомненных счетов.
+     * @param accounts Запомненные представления счетов.
+     * @return Итоги загрузки части.
+     */
+    private ImportSummary apply(CompletableFuture<Chunk> parsed, long[] numbers, BankAccount[] accounts) {
+        Chunk chunk = parsed.join();
+        List<TransferRequest> batch = new ArrayList<>(Math.min(batchSize, chunk.size));
+        long transferred = 0;
+        for (int i = 0; i < chunk.size; i++) {
+            BankAccount sender = resolve(chunk.senders[i], numbers, accounts);
+            BankAccount receiver = resolve(chunk.receivers[i], numbers, accounts);
+            if (sender != null && receiver != null) {
+                batch.add(new TransferRequest(sender, receiver, chunk.amounts[i]));
+            }
+            if (batch.size() == batchSize || i == chunk.size - 1 && !batch.isEmpty()) {
+                transferred += transfer(batch, chunk.rejections);
+            }
+        }
+        Map<TransferOutcome, Long> counts = new EnumMap<>(TransferOutcome.class);
+        for (TransferOutcome outcome : TransferOutcome.values()) {
+            if (chunk.rejections[outcome.ordinal()] != 0) {
+                counts.put(outcome, chunk.rejections[outcome.ordinal()]);
+            }
+        }
+        return new ImportSummary(chunk.lines, transferred, chunk.lines - transferred - chunk.malformed,
+                chunk.malformed, counts);
+    }
+
+    /**
+     * Разбор и проверка строк части окна.
+     *
+     * @param window Окно файла.
+     * @param from   Начало первой строки части.
+     * @param to     Позиция после конца последней строки части.
+     * @return Разобранная часть.
+     */
+    private static Chunk parseChunk(MappedByteBuffer window, int from, int to) {
+        Chunk chunk = new Chunk();
+        long[] fields = new long[3];
+        int position = from;
+        while (position < to) {
+            int end = position;
+            while (end < to && window.get(end) != '\n') {
+                end++;
+            }
+            int lineEnd = end > position && window.get(end - 1) == '\r' ? end - 1 : end;
+            if (lineEnd > position) {
+                chunk.lines++;
+                if (!parse(window, position, lineEnd, fields)) {
+                    chunk.malformed++;
+                } else if (fields[0] == fields[1]) {
+                    chunk.rejections[TransferOutcome.SAME_ACCOUNT.ordinal()]++;
+                } else if (fields[2] <= 0) {
+                    chunk.rejections[TransferOutcome.NON_POSITIVE_AMOUNT.ordinal()]++;
+                } else {
+                    // Те же проверки, что и в BankService, но по номерам счетов, до поиска счетов в реестре.
+                    chunk.add(fields[0], fields[1], fields[2]);
+                }
+            }
+            position = end + 1;
+        }
+        return chunk;
+    }
+
+    /**
+     * Выполнение пакета переводов и очистка пакета.
+     *
+     * @param batch      Пакет переводов.
+     * @param rejections Счётчики отказов по порядковому номеру кода, в них добавляются отказы пакета.
+     * @return Количество выполненных переводов.
+     */
+    private long transfer(List<TransferRequest> batch, long[] rejections) {
+        long transferred = 0;
+        for (TransferOutcome outcome : bankService.transferFundsBatch(batch)) {
+            if (outcome == TransferOutcome.SUCCESS) {
+                transferred++;
+            } else {
+                rejections[outcome.ordinal()]++;
+            }
+        }
+        batch.clear();
+        return transferred;
+    }
+
+    /**
+     * Поиск счёта в реестре с запоминанием представления: повторяющиеся в файле счета
+     * не ищутся в реестре заново и не создают новых представлений.
+     *
+     * @param number   Номер счёта.
+     * @param numbers  Номера запомненных счетов.
+     * @param accounts Запомненные представления счетов.
+     * @return Представление счёта или null, если счёта нет.
+     */
+    private BankAccount resolve(long number, long[] numbers, BankAccount[] accounts) {
+        int h = Long.hashCode(number * 0x9E3779B97F4A7C15L);
+        int cell = (h ^ (h >>> 16)) & (ACCOUNT_CACHE_SIZE - 1);
+        BankAccount account = accounts[cell];
+        if (account == null || numbers[cell] != number) {
+            account = registry.get(number);
+            if (account != null) {
+                numbers[cell] = number;
+                accounts[cell] = account;
+            }
+        }
+        return account;
+    }
+
+    /**
+     * Разбор строки: два неотрицательных номера счетов и сумма со знаком и не более чем двумя знаками копеек.
+     *
+     * @param window Окно файла.
+     * @param from   Начало строки.
+     * @param to     Конец строки без перевода строки.
+     * @param fields Номер отправителя, номер получателя и сумма в копейках.
+     * @return false, если строку не удалось разобрать.
+     */
+    private static boolean parse(MappedByteBuffer window, int from, int to, long[] fields) {
+        int position = from;
+        for (int field = 0; field < 2; field++) {
+            long number = 0;
+            int start = position;
+            while (position < to && window.get(position) >= '0' && window.get(position) <= '9') {
+                if (number > (Long.MAX_VALUE - 9) / 10) {
+                    return false;
+                }
+                number = number * 10 + window.get(position++) - '0';
+            }
+            if (position == start || position == to || window.get(position++) != ',') {
+                return false;
+            }
+            fields[field] = number;
+        }
+        boolean negative = position < to && window.get(position) == '-';
+        if (negative) {
+            position++;
+        }
+        long rubles = 0;
+        int start = position;
+        while (position < to && window.get(position) >= '0' && window.get(position) <= '9') {
+            if (rubles > Long.MAX_VALUE / (10 * Money.KOPECKS_PER_RUBLE)) {
+                return false;
+            }
+            rubles = rubles * 10 + window.get(position++) - '0';
+        }
+        if (position == start) {
+            return false;
+        }
+        long kopecks = 0;
+        if (position < to && window.get(position) == '.') {
+            position++;
+            for (int digit = 0; digit < 2; digit++) {
+                kopecks *= 10;
+                if (position < to) {
+                    byte b = window.get(position++);
+                    if (b < '0' || b > '9') {
+                        return false;
+                    }
+                    kopecks += b - '0';
+                }
+            }
+        }
+        if (position != to) {
+            return false;
+        }
+        long amount = rubles * Money.KOPECKS_PER_RUBLE + kopecks;
+        fields[2] = negative ? -amount : amount;
+        return true;
+    }
+
+    /**
+     * Поиск конца последней полной строки окна.
+     *
+     * @return Позиция после последнего перевода строки или 0, если его нет.
+     */
+    private static int lastLineEnd(MappedByteBuffer window, int length) {
+        for (int position = length - 1; position >= 0; position--) {
+            if (window.get(position) == '\n') {
+                return position + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Поиск начала строки, следующей за строкой, в которой находится позиция.
+     *
+     * @return Позиция после ближайшего перевода строки или длина, если его нет.
+     */
+    private static int nextLineStart(MappedByteBuffer window, int position, int length) {
+        while (position < length && window.get(position - 1) != '\n') {
+            position++;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,10 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+/**
+ * Часть составного перевода: списание со счёта или зачисление на счёт.
+ *
+ * @param account Счёт.
+ * @param amount  Сумма в копейках.
+ */
+public record TransferLeg(BankAccount account, long amount) {
+}
@@ -0,0 +1,72 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+/**
+ * Получатель измерений банковского сервиса: завершённые переводы и их время, отмены,
+ * отказы по причинам, глубина и разбор очередей операций.
+ * Вызывается на пути выполнения переводов, поэтому реализация должна быть потокобезопасной
+ * и не должна блокироваться. По умолчанию все методы ничего не делают.
+ */
+public interface TransferMetrics {
+
+    /**
+     * Измерения выключены.
+     */
+    TransferMetrics NONE = new TransferMetrics() {
+    };
+
+    /**
+     * Признак включённых измерений. Если измерения выключены, то время не замеряется вовсе.
+     *
+     * @return true, если измерения нужно передавать.
+     */
+    default boolean isEnabled() {
+        return false;
+    }
+
+    /**
+     * Завершение перевода.
+     *
+     * @param latencyNanos Время от создания транзакции до её завершения в наносекундах.
+     * @param successful   Признак успешного перевода.
+     */
+    default void transferCompleted(long latencyNanos, boolean successful) {
+    }
+
+    /**
+     * Отмена списания: средства возвращены отправителю.
+     */
+    default void withdrawalRolledBack() {
+    }
+
+    /**
+     * Отмена зачисления: средства списаны у получателя.
+     */
+    default void replenishmentRolledBack() {
+    }
+
+    /**
+     * Отказ в переводе.
+     *
+     * @param outcome Код отказа.
+     */
+    default void rejected(TransferOutcome outcome) {
+    }
+
+    /**
+     * Постановка операции в очередь счёта.
+     *
+     * @param account Счёт, в очередь которого поставлена операция.
+     * @param depth   Количество операций в очереди после постановки.
+     */
+    default void queued(BankAccount account, int depth) {
+    }
+
+    /**
+     * Разбор очереди счёта одним обработчиком.
+     *
+     * @param operations Количество выполненных операций.
+     * @param nanos      Длительность разбора в наносекундах.
+     */
+    default void drained(int operations, long nanos) {
+    }
+}
@@ -0,0 +1,96 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+/**
+ * Код результата перевода. Отказ возвращается значением, а не исключением или сообщением в консоль,
+ * поэтому отклонённый перевод не выделяет память и не форматирует строк.
+ */
+public enum TransferOutcome {
+
+    /**
+     * Перевод выполнен.
+     */
+    SUCCESS(null),
+
+    /**
+     * Перевод принят к выполнению, итог будет записан в журнал транзакций.
+     */
+    ACCEPTED(null),
+
+    /**
+     * Счёт получателя совпадает со счётом отправителя.
+     */
+    SAME_ACCOUNT("счёт получателя совпадает со счётом отправителя"),
+
+    /**
+     * Сумма перевода не больше нуля.
+     */
+    NON_POSITIVE_AMOUNT("сумма перевода должна быть больше 0"),
+
+    /**
+     * Счёт отправителя или получателя заморожен за подозрение в мошенничестве.
+     */
+    FRAUD("счёт заморожен за подозрение в мошенничестве"),
+
+    /**
+     * Счёт отправителя или получателя закрыт.
+     */
+    CLOSED("лицевой счёт закрыт"),
+
+    /**
+     * На счёте отправителя недостаточно средств.
+     */
+    INSUFFICIENT_FUNDS("недостаточно средств на счёте"),
+
+    /**
+     * Сервис перегружен: превышен предел незавершённых переводов или очередь счёта заполнена.
+     * Перевод можно повторить позже.
+     */
+    OVERLOADED("сервис перегружен, повторите перевод позже"),
+
+    /**
+     * Превышен лимит количества или суммы переводов со счёта за период.
+     */
+    VELOCITY_LIMIT("превышен лимит переводов по счёту за период"),
+
+    /**
+     * В составном переводе сумма списаний не равна сумме зачислений.
+     */
+    UNBALANCED("сумма списаний не равна сумме зачислений"),
+
+    /**
+     * В составном переводе нет ни одного списания или ни одного зачисления.
+     */
+    NO_LEGS("в составном переводе нет списаний или зачислений"),
+
+    /**
+     * Журнал счёта не принял изменение баланса, поэтому баланс не изменён.
+     */
+    LOG_FAILURE("изменение счёта не записано в журнал");
+
+    /**
+     * Причина отказа, null - если это не отказ.
+     */
+    private final String reason;
+
+    TransferOutcome(String reason) {
+        this.reason = reason;
+    }
+
+    /**
+     * Получение причины отказа для вывода пользователю.
+     *
+     * @return Причина отказа или null.
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Признак отказа в переводе.
+     *
+     * @return true, если перевод отклонён.
+     */
+    public boolean isRejected() {
+        return reason != null;
+    }
+}
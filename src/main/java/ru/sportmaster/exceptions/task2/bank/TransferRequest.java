@@ -0,0 +1,11 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+/**
+ * Заявка на перевод денежных средств, используется для пакетных переводов.
+ *
+ * @param sender   Счёт отправителя.
+ * @param receiver Счёт получателя.
+ * @param amount   Сумма перевода в копейках.
+ */
+public record TransferRequest(BankAccount sender, BankAccount receiver, long amount) {
+}
@@ -0,0 +1,28 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+/**
+ * Результат перевода денежных средств.
+ *
+ * @param transactionId Идентификатор транзакции, null - если перевод отклонён до создания транзакции.
+ * @param outcome       Код результата перевода.
+ */
+public record TransferResult(String transactionId, TransferOutcome outcome) {
+
+    /**
+     * Признак успешного перевода.
+     *
+     * @return true, если перевод выполнен.
+     */
+    public boolean successful() {
+        return outcome == TransferOutcome.SUCCESS;
+    }
+
+    /**
+     * Получение причины неудачи.
+     *
+     * @return Причина неудачи, null - если перевод выполнен.
+     */
+    public String failureReason() {
+        return outcome.getReason();
+    }
+}
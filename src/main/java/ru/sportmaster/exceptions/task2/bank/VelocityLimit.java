@@ -0,0 +1,139 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import java.time.Duration;
+
+/**
+ * Лимит списаний со счёта за скользящее окно: не больше заданного количества списаний
+ * и не больше заданной суммы, например "не больше 10 списаний и 50 000 рублей в минуту".
+ * <p>
+ * Списания учитываются кольцом корзин времени ({@link WindowCounters}), обновляемым через CAS:
+ * без блокировок и без хранения отметки времени каждого списания. Лимит проверяется при списании
+ * в очереди счёта (или под блокировкой счёта), где списания одного счёта выполняются последовательно,
+ * поэтому проверка и учёт вместе атомарны и лимит соблюдается точно.
+ * <p>
+ * В пределах одного периода корзины меняется только текущая корзина, поэтому суммы остальных корзин окна
+ * считаются один раз за период, а каждая проверка читает только текущую корзину.
+ * <p>
+ * Если перевод отменяется после списания (например, счёт получателя закрыт), то списание
+ * вычитается из лимита ({@link #release}), и отменённый перевод не расходует лимит.
+ */
+public class VelocityLimit {
+
+    /**
+     * Количество корзин окна.
+     */
+    private static final int BUCKETS = 16;
+
+    /**
+     * Суммы корзин окна, кроме корзины текущего периода.
+     *
+     * @param epoch  Номер периода, для которого посчитаны суммы.
+     * @param count  Количество списаний.
+     * @param amount Сумма списаний в копейках.
+     */
+    private record Previous(long epoch, long count, long amount) {
+    }
+
+    /**
+     * Счётчики списаний.
+     */
+    private final WindowCounters counters;
+
+    /**
+     * Максимальное количество списаний за окно.
+     */
+    private final long maxWithdrawals;
+
+    /**
+     * Максимальная сумма списаний за окно в копейках.
+     */
+    private final long maxAmount;
+
+    /**
+     * Суммы прошлых корзин окна для последнего периода, в котором проверялся лимит.
+     */
+    private volatile Previous previous;
+
+    /**
+     * Создание лимита.
+     *
+     * @param window         Длительность окна.
+     * @param maxWithdrawals Максимальное количество списаний за окно.
+     * @param maxAmount      Максимальная сумма списаний за окно в копейках.
+     */
+    public VelocityLimit(Duration window, long maxWithdrawals, long maxAmount) {
+        this.counters = new WindowCounters(1, window, BUCKETS);
+        this.maxWithdrawals = maxWithdrawals;
+        this.maxAmount = maxAmount;
+        this.previous = new Previous(Long.MIN_VALUE, 0, 0);
+    }
+
+    /**
+     * Получение максимального количества списаний за окно.
+     *
+     * @return Максимальное количество списаний.
+     */
+    public long getMaxWithdrawals() {
+        return maxWithdrawals;
+    }
+
+    /**
+     * Получение максимальной суммы списаний за окно.
+     *
+     * @return Максимальная сумма списаний в копейках.
+     */
+    public long getMaxAmount() {
+        return maxAmount;
+    }
+
+    /**
+     * Получение номера текущего периода окна.
+     *
+     * @return Номер периода.
+     */
+    long epoch() {
+        return counters.epoch(System.nanoTime());
+    }
+
+    /**
+     * Проверка, что списание укладывается в лимит.
+     *
+     * @param epoch  Номер текущего периода ({@link #epoch()}).
+     * @param amount Сумма списания в копейках.
+     * @return true, если списание допустимо.
+     */
+    boolean allows(long epoch, long amount) {
+        Previous sums = previous;
+        if (sums.epoch() != epoch) {
+            sums = new Previous(epoch, counters.count(0, epoch) - counters.bucketCount(0, epoch),
+                    counters.amount(0, epoch) - counters.bucketAmount(0, epoch));
+            previous = sums;
+        }
+        return sums.count() + counters.bucketCount(0, epoch) < maxWithdrawals
+                && sums.amount() + counters.bucketAmount(0, epoch) <= maxAmount - amount;
+    }
+
+    /**
+     * Учёт выполненного списания.
+     *
+     * @param epoch  Номер текущего периода ({@link #epoch()}).
+     * @param amount Сумма списания в копейках.
+     */
+    void record(long epoch, long amount) {
+        counters.add(0, epoch, amount);
+    }
+
+    /**
+     * Отмена учёта списания, возвращённого на счёт. Если списание учтено не в текущем периоде,
+     * то суммы прошлых корзин пересчитываются при следующей проверке.
+     *
+     * @param epoch  Номер периода, в котором списание было учтено.
+     * @param amount Сумма списания в копейках.
+     */
+    void release(long epoch, long amount) {
+        counters.subtract(0, epoch, amount);
+        if (previous.epoch() != epoch) {
+            previous = new Previous(Long.MIN_VALUE, 0, 0);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package ru.sportmaster.exceptions.task2.bank;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Счётчики количества и суммы событий в скользящем окне времени, например переводов со счёта за минуту.
+ * <p>
+ * Окно делится на корзины равной длительности, счётчики хранятся кольцом корзин в одном массиве
+ * {@link AtomicLongArray} для нескольких строк (например, счетов или полос хеша). В каждом значении
+ * вместе со счётчиком хранится номер периода корзины, поэтому устаревшая корзина сбрасывается тем же CAS,
+ * которым добавляется событие: без блокировок и без выделения памяти на событие.
+ * Окно сдвигается с шагом в одну корзину, поэтому учитываются события за время от окна
+ * без одной корзины до полного окна.
+ * <p>
+ * Счётчик корзины занимает 40 бит: сумма событий одной корзины больше 2^40 - 1 копеек не растёт.
+ */
+public class WindowCounters {
+
+    /**
+     * Количество бит значения счётчика.
+     */
+    private static final int VALUE_BITS = 40;
+
+    /**
+     * Маска значения счётчика.
+     */
+    private static final long VALUE_MASK = (1L << VALUE_BITS) - 1;
+
+    /**
+     * Маска номера периода корзины, хранимого в старших битах.
+     */
+    private static final long EPOCH_MASK = (1L << (Long.SIZE - VALUE_BITS)) - 1;
+
+    /**
+     * Счётчики: по строкам, внутри строки по корзинам, в корзине количество и сумма.
+     */
+    private final AtomicLongArray counters;
+
+    /**
+     * Количество корзин в окне (степень двойки).
+     */
+    private final int buckets;
+
+    /**
+     * Длительность корзины в наносекундах.
+     */
+    private final long bucketNanos;
+
+    /**
+     * Создание счётчиков.
+     *
+     * @param rows    Количество строк.
+     * @param window  Длительность окна.
+     * @param buckets Количество корзин в окне (степень двойки).
+     */
+    public WindowCounters(int rows, Duration window, int buckets) {
+        if (buckets <= 0 || Integer.bitCount(buckets) != 1) {
+            throw new IllegalArgumentException("Количество корзин должно быть степенью двойки: " + buckets);
+        }
+        this.counters = new AtomicLongArray(rows * buckets * 2);
+        this.buckets = buckets;
+        this.bucketNanos = Math.max(1, window.toNanos() / buckets);
+    }
+
+    /**
+     * Получение номера периода корзины для момента времени. Номер вычисляется один раз
+     * и передаётся в остальные методы, чтобы не делить время на длительность корзины при каждом вызове.
+     *
+     * @param now Время {@link System#nanoTime()}.
+     * @return Номер периода.
+     */
+    public long epoch(long now) {
+        return now / bucketNanos;
+    }
+
+    /**
+     * Учёт события.
+     *
+     * @param row    Строка.
+     * @param epoch  Номер текущего периода ({@link #epoch}).
+     * @param amount Сумма события.
+     */
+    public void add(int row, long epoch, long amount) {
+        int index = (row * buckets + (int) (epoch & (buckets - 1))) * 2;
+        increment(index, epoch, 1);
+        increment(index + 1, epoch, amount);
+    }
+
+    /**
+     * Отмена учтённого события. Событие вычитается из корзины своего периода, только если корзину
+     * ещё не занял более новый период: иначе событие уже не учитывается в окне.
+     *
+     * @param row    Строка.
+     * @param epoch  Номер периода, в котором событие было учтено.
+     * @param amount Сумма события.
+     */
+    public void subtract(int row, long epoch, long amount) {
+        int index = (row * buckets + (int) (epoch & (buckets - 1))) * 2;
+        decrement(index, epoch, 1);
+        decrement(index + 1, epoch, amount);
+    }
+
+    /**
+     * Получение количества событий в окне.
+     *
+     * @param row   Строка.
+     * @param epoch Номер текущего периода ({@link #epoch}).
+     * @return Количество событий.
+     */
+    public long count(int row, long epoch) {
+        return sum(row, epoch, 0);
+    }
+
+    /**
+     * Получение суммы событий в окне.
+     *
+     * @param row   Строка.
+     * @param epoch Номер текущего периода ({@link #epoch}).
+     * @return Сумма событий.
+     */
+    public long amount(int row, long epoch) {
+        return sum(row, epoch, 1);
+    }
+
+    /**
+     * Получение количества событий в корзине текущего периода.
+     *
+     * @param row   Строка.
+     * @param epoch Номер текущего периода ({@link #epoch}).
+     * @return Количество событий.
+     */
+    public long bucketCount(int row, long epoch) {
+        return bucket(row, epoch, 0);
+    }
+
+    /**
+     * Получение суммы событий в корзине текущего периода.
+     *
+     * @param row   Строка.
+     * @param epoch Номер текущего периода ({@link #epoch}).
+     * @return Сумма событий.
+     */
+    public long bucketAmount(int row, long epoch) {
+        return bucket(row, epoch, 1);
+    }
+
+    /**
+     * Увеличение счётчика корзины. Счётчик прошлого периода заменяется новым, а если корзину
+     * уже занял более новый период (вызывающий поток отстал), то событие не учитывается.
+     */
+    private void increment(int index, long epoch, long delta) {
+        long tag = (epoch & EPOCH_MASK) << VALUE_BITS;
+        while (true) {
+            long current = counters.get(index);
+            long age = (epoch - (current >>> VALUE_BITS)) & EPOCH_MASK;
+            long updated;
+            if (age == 0) {
+                updated = tag | Math.min(VALUE_MASK, (current & VALUE_MASK) + delta);
+            } else if (age < EPOCH_MASK / 2) {
+                updated = tag | Math.min(VALUE_MASK, delta);
+            } else {
+                return;
+            }
+            if (counters.compareAndSet(index, current, updated)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Уменьшение счётчика корзины, если корзина всё ещё принадлежит указанному периоду. Счётчик не уходит ниже 0.
+     */
+    private void decrement(int index, long epoch, long delta) {
+        while (true) {
+            long current = counters.get(index);
+            if ((current >>> VALUE_BITS) != (epoch & EPOCH_MASK)) {
+                return;
+            }
+            long updated = (current & ~VALUE_MASK) | Math.max(0, (current & VALUE_MASK) - delta);
+            if (counters.compareAndSet(index, current, updated)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Счётчик корзины текущего периода, 0 - если корзину ещё не занял текущий период.
+     */
+    private long bucket(int row, long epoch, int field) {
+        long current = counters.get((row * buckets + (int) (epoch & (buckets - 1))) * 2 + field);
+        return (current >>> VALUE_BITS) == (epoch & EPOCH_MASK) ? current & VALUE_MASK : 0;
+    }
+
+    /**
+     * Сумма счётчиков корзин строки, период которых попадает в окно.
+     */
+    private long sum(int row, long epoch, int field) {
+        int start = row * buckets * 2 + field;
+        long sum = 0;
+        for (int i = 0; i < buckets; i++) {
+            long current = counters.get(start + i * 2);
+            if (((epoch - (current >>> VALUE_BITS)) & EPOCH_MASK) < buckets) {
+                sum += current & VALUE_MASK;
+            }
+        }
+        return sum;
+    }
+}
@@ -6,33 +6,58 @@ package ru.sportmaster.exceptions.task2.bank;
 public class Withdrawal extends Operation {
 
     /**
-     * Создание списание. Внимание: у суммы перевода меняется знак и она превращается в сумму
-     * списания, т.к. при переводе средства у отправителя списываются.
+     * Номер периода лимита списаний, в котором выполнено списание, для отмены его учёта при отмене перевода.
+     */
+    private long limitEpoch;
+
+    /**
+     * Создание списания.
      *
      * @param sender      Счёт отправителя.
-     * @param amount      Сумма перевода.
+     * @param amount      Сумма перевода в копейках.
+     * @param transaction Связная транзакция.
+     */
+    public Withdrawal(BankAccount sender, long amount, Transaction transaction) {
+        super(sender, amount, transaction);
+    }
+
+    /**
+     * Создание повторно используемого списания.
+     *
      * @param transaction Связная транзакция.
      */
-    public Withdrawal(BankAccount sender, double amount, Transaction transaction) {
-        super(sender, -amount, transaction);
+    Withdrawal(Transaction transaction) {
+        super(transaction);
     }
 
     /**
-     * Переопределённый метод родительского класса. Обрабатывает списание. Здесь
-     * производится дополнительная проверка, что текущая сумма средств на счёте
-     * больше, либо равна сумме перевода.
-     * Если данная проверка, то отмечает операцию списания как неуспешную и
-     * запускает проверку статуса транзакции.
+     * Переопределённый метод родительского класса. Списывает средства со счёта.
+     * Если у счёта есть лимит списаний за период ({@link VelocityLimit}) и списание в него не укладывается,
+     * то средства не списываются.
+     * Проверка, что текущая сумма средств на счёте больше, либо равна сумме перевода,
+     * выполняется атомарно вместе со списанием.
+     * Если какая-либо проверка не пройдена, то операция списания отмечается как неуспешная.
+     *
+     * @return true - средства списаны, false - превышен лимит или недостаточно средств на счёте.
      */
     @Override
-    public void operate() {
-        if (account.getBalance() >= -amount) {
-            super.operate();
-        } else {
-            System.out.println("Операция не выполнена: недостаточно средств на счёте.");
-            isSuccessful = false;
-            transaction.checkStatus();
+    protected boolean apply() {
+        limitEpoch = account.limitEpoch();
+        TransferOutcome outcome = account.withdraw(amount, limitEpoch);
+        if (outcome != null) {
+            fail(outcome);
+            return false;
         }
+        return true;
+    }
+
+    /**
+     * Получение номера периода лимита списаний, в котором выполнено списание.
+     *
+     * @return Номер периода.
+     */
+    long getLimitEpoch() {
+        return limitEpoch;
     }
 
     /**
@@ -49,12 +74,12 @@ public class Withdrawal extends Operation {
      * Успешное списание средств у отправителя.
      */
     private static void test1() {
-        BankAccount sender = new BankAccount("1", 1000);
+        BankAccount sender = new BankAccount("1", Money.of(1000));
         BankAccount receiver = new BankAccount("2", 0);
         Transaction transaction = new Transaction(sender, receiver, 0);
-        Withdrawal withdrawal = new Withdrawal(sender, 500, transaction);
+        Withdrawal withdrawal = new Withdrawal(sender, Money.of(500), transaction);
         withdrawal.operate();
-        if (sender.getBalance() == 500 && withdrawal.isSuccessful) {
+        if (sender.getBalance() == Money.of(500) && withdrawal.isSuccessful) {
             System.out.println("Тест1 пройден");
         } else {
             System.out.println("Тест1 провален");
@@ -65,12 +90,12 @@ public class Withdrawal extends Operation {
      * Запрет на списание средств у отправителя - недостаточно средств.
      */
     private static void test2() {
-        BankAccount sender = new BankAccount("1", 100);
+        BankAccount sender = new BankAccount("1", Money.of(100));
         BankAccount receiver = new BankAccount("2", 0);
         Transaction transaction = new Transaction(sender, receiver, 0);
-        Withdrawal withdrawal = new Withdrawal(sender, 101, transaction);
+        Withdrawal withdrawal = new Withdrawal(sender, Money.of(101), transaction);
         withdrawal.operate();
-        if (sender.getBalance() == 100 && !withdrawal.isSuccessful) {
+        if (sender.getBalance() == Money.of(100) && !withdrawal.isSuccessful) {
             System.out.println("Тест2 пройден");
         } else {
             System.out.println("Тест2 провален" + sender.getBalance());
@@ -6,7 +6,12 @@ package ru.sportmaster.exceptions.task2.bank.exceptions;
 public class AlreadyIsClosedException extends RuntimeException {
     private static final String MESSAGE = "Операция не выполнена: счёт уже закрыт!";
 
+    /**
+     * Заранее созданный экземпляр без стека вызовов.
+     */
+    public static final AlreadyIsClosedException INSTANCE = new AlreadyIsClosedException();
+
     public AlreadyIsClosedException() {
-        super(MESSAGE);
+        super(MESSAGE, null, false, false);
     }
 }
@@ -6,7 +6,12 @@ package ru.sportmaster.exceptions.task2.bank.exceptions;
 public class AlreadyMarkedAsFraudException extends RuntimeException {
     private static final String MESSAGE = "Операция не выполнена: счёт уже подозревается в мошенничестве!";
 
+    /**
+     * Заранее созданный экземпляр без стека вызовов.
+     */
+    public static final AlreadyMarkedAsFraudException INSTANCE = new AlreadyMarkedAsFraudException();
+
     public AlreadyMarkedAsFraudException() {
-        super(MESSAGE);
+        super(MESSAGE, null, false, false);
     }
 }
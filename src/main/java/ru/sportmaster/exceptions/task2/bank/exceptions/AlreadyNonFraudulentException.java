@@ -6,7 +6,12 @@ package ru.sportmaster.exceptions.task2.bank.exceptions;
 public class AlreadyNonFraudulentException extends RuntimeException {
     private static final String MESSAGE = "Операция не выполнена: счёт уже не считается мошенническим!";
 
+    /**
+     * Заранее созданный экземпляр без стека вызовов.
+     */
+    public static final AlreadyNonFraudulentException INSTANCE = new AlreadyNonFraudulentException();
+
     public AlreadyNonFraudulentException() {
-        super(MESSAGE);
+        super(MESSAGE, null, false, false);
     }
 }
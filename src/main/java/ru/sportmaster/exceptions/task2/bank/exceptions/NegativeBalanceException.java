@@ -6,7 +6,12 @@ package ru.sportmaster.exceptions.task2.bank.exceptions;
 public class NegativeBalanceException extends RuntimeException {
     private static final String MESSAGE = "Создание счёта с отрицательным балансом запрещено!";
 
+    /**
+     * Заранее созданный экземпляр без стека вызовов.
+     */
+    public static final NegativeBalanceException INSTANCE = new NegativeBalanceException();
+
     public NegativeBalanceException() {
-        super(MESSAGE);
+        super(MESSAGE, null, false, false);
     }
 }
@@ -6,7 +6,12 @@ package ru.sportmaster.exceptions.task2.bank.exceptions;
 public class NonZeroBalanceException extends RuntimeException {
     private static final String MESSAGE = "Невозможно закрыть счёт при ненулевом балансе. Выведите средства и повторите попытку!";
 
+    /**
+     * Заранее созданный экземпляр без стека вызовов.
+     */
+    public static final NonZeroBalanceException INSTANCE = new NonZeroBalanceException();
+
     public NonZeroBalanceException() {
-        super(MESSAGE);
+        super(MESSAGE, null, false, false);
     }
 }
@@ -6,7 +6,12 @@ package ru.sportmaster.exceptions.task2.bank.exceptions;
 public class TryToMarkAsFraudClosedAccountException extends RuntimeException {
     private static final String MESSAGE = "Операция не выполнена: лицевой счёт закрыт!";
 
+    /**
+     * Заранее созданный экземпляр без стека вызовов.
+     */
+    public static final TryToMarkAsFraudClosedAccountException INSTANCE = new TryToMarkAsFraudClosedAccountException();
+
     public TryToMarkAsFraudClosedAccountException() {
-        super(MESSAGE);
+        super(MESSAGE, null, false, false);
     }
 }
@@ -0,0 +1,18 @@
+package ru.sportmaster.exceptions.task2.bank.journal;
+
+import ru.sportmaster.exceptions.task2.bank.Money;
+
+/**
+ * Журнал транзакций, выводящий записи в консоль. Используется по умолчанию.
+ */
+public class ConsoleJournal implements TransactionJournal {
+
+    @Override
+    public void record(String transactionId, String senderAccount, String receiverAccount, long amount,
+                       boolean successful) {
+        String string = """
+                Транзакция: %s, счёт отправителя: %s, счёт получателя: %s, сумма: %s, успех: %b.
+                """;
+        System.out.printf(string, transactionId, senderAccount, receiverAccount, Money.format(amount), successful);
+    }
+}
@@ -0,0 +1,331 @@
+package ru.sportmaster.exceptions.task2.bank.journal;
+
+import ru.sportmaster.exceptions.task2.bank.Money;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Асинхронный журнал транзакций в файле.
+ * Потоки переводов только копируют данные записи в заранее созданную ячейку кольцевого буфера
+ * (без блокировок и без выделения памяти), а фоновый поток-писатель разбирает буфер и пишет
+ * записи в файл построчно, в формате "id;отправитель;получатель;сумма;успех".
+ * Записи накапливаются и пишутся в файл группами (group commit) согласно политике сброса:
+ * не реже, чем раз в заданный интервал, и, если требуется, с принудительным сбросом на диск.
+ */
+public class FileJournal implements TransactionJournal, AutoCloseable {
+
+    /**
+     * Размер буфера, в котором накапливается группа записей перед записью в файл.
+     */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Время сна производителя, когда буфер переполнен.
+     */
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * Признак закрытия журнала в номере следующей записи. Занятие записи и закрытие журнала изменяют
+     * один и тот же счётчик через CAS, поэтому запись либо занята до закрытия и будет записана в файл,
+     * либо отклонена.
+     */
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    /**
+     * Ячейка кольцевого буфера. Ячейки создаются один раз и переиспользуются.
+     */
+    private static final class Entry {
+        long numericId;
+        String transactionId;
+        String senderAccount;
+        String receiverAccount;
+        long amount;
+        boolean successful;
+    }
+
+    /**
+     * Ячейки кольцевого буфера.
+     */
+    private final Entry[] entries;
+
+    /**
+     * Номер записи, опубликованной в ячейке. Запись доступна писателю, когда номер совпадает с ожидаемым.
+     */
+    private final AtomicLongArray published;
+
+    /**
+     * Маска для получения номера ячейки по номеру записи.
+     */
+    private final int mask;
+
+    /**
+     * Номер следующей записи, которую займёт производитель, со старшим битом {@link #CLOSED} после закрытия.
+     */
+    private final AtomicLong tail;
+
+    /**
+     * Номер следующей записи, которую прочитает писатель. Все записи до него освобождены.
+     */
+    private volatile long head;
+
+    /**
+     * Файл журнала.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Буфер группы записей.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * Максимальное время, которое записи могут находиться в буфере группы, 0 - писать сразу после разбора.
+     */
+    private final long flushIntervalNanos;
+
+    /**
+     * Признак принудительного сброса на диск (fsync) после записи каждой группы.
+     */
+    private final boolean fsync;
+
+    /**
+     * Фоновый поток-писатель.
+     */
+    private final Thread writer;
+
+    /**
+     * Признак, что писатель уснул без ограничения времени и его нужно разбудить после публикации записи.
+     */
+    private volatile boolean sleeping;
+
+    /**
+     * Ошибка записи в файл, после неё журнал перестаёт принимать записи.
+     */
+    private volatile IOException failure;
+
+    /**
+     * Открытие журнала. Записи дописываются в конец файла.
+     *
+     * @param file                Файл журнала.
+     * @param capacity            Ёмкость кольцевого буфера (степень двойки).
+     * @param flushIntervalMillis Максимальная задержка записи группы в файл в миллисекундах, 0 - без задержки.
+     * @param fsync               Сбрасывать ли файл на диск после записи каждой группы.
+     * @throws IOException Если файл не удалось открыть.
+     */
+    public FileJournal(Path file, int capacity, long flushIntervalMillis, boolean fsync) throws IOException {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ёмкость журнала должна быть степенью двойки: " + capacity);
+        }
+        this.entries = new Entry[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            entries[i] = new Entry();
+            published.set(i, -1);
+        }
+        this.mask = capacity - 1;
+        this.tail = new AtomicLong();
+        this.head = 0;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.fsync = fsync;
+        this.writer = new Thread(this::drain, "transaction-journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Публикация записи в кольцевом буфере. Если буфер заполнен, производитель ждёт, пока писатель
+     * освободит ячейку.
+     *
+     * @throws IllegalStateException Если журнал закрыт.
+     * @throws UncheckedIOException  Если при записи журнала произошла ошибка.
+     */
+    @Override
+    public void record(String transactionId, String senderAccount, String receiverAccount, long amount,
+                       boolean successful) {
+        publish(0, transactionId, senderAccount, receiverAccount, amount, successful);
+    }
+
+    /**
+     * Публикация записи с числовым идентификатором без преобразования идентификатора в строку:
+     * строка записи формируется писателем.
+     */
+    @Override
+    public void record(long transactionId, String senderAccount, String receiverAccount, long amount,
+                       boolean successful) {
+        publish(transactionId, null, senderAccount, receiverAccount, amount, successful);
+    }
+
+    /**
+     * Занятие записи, копирование данных в её ячейку и публикация.
+     *
+     * @param numericId     Числовой идентификатор транзакции, используется, если строкового нет.
+     * @param transactionId Строковый идентификатор транзакции или null.
+     */
+    private void publish(long numericId, String transactionId, String senderAccount, String receiverAccount,
+                         long amount, boolean successful) {
+        IOException error = failure;
+        if (error != null) {
+            throw new UncheckedIOException(error);
+        }
+        long sequence;
+        do {
+            sequence = tail.get();
+            if ((sequence & CLOSED) != 0) {
+                throw new IllegalStateException("Журнал транзакций закрыт");
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+        while (sequence - head >= entries.length) {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        int index = (int) (sequence & mask);
+        Entry entry = entries[index];
+        entry.numericId = numericId;
+        entry.transactionId = transactionId;
+        entry.senderAccount = senderAccount;
+        entry.receiverAccount = receiverAccount;
+        entry.amount = amount;
+        entry.successful = successful;
+        // Публикация и чтение признака сна - volatile, поэтому писатель, уснувший после проверки буфера,
+        // не пропустит запись: либо он увидит запись, либо производитель увидит признак сна.
+        published.set(index, sequence);
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Цикл потока-писателя: разбирает опубликованные записи по порядку, накапливает их в буфере группы
+     * и пишет группу в файл согласно политике сброса. Если разбирать нечего, писатель спит до публикации
+     * следующей записи или до срока записи группы. Завершается после закрытия журнала,
+     * когда все занятые до закрытия записи разобраны.
+     */
+    private void drain() {
+        long next = head;
+        long lastWrite = System.nanoTime();
+        while (true) {
+            int index = (int) (next & mask);
+            while (published.getAcquire(index) == next) {
+                Entry entry = entries[index];
+                encode(entry);
+                entry.transactionId = null;
+                entry.senderAccount = null;
+                entry.receiverAccount = null;
+                head = ++next;
+                index = (int) (next & mask);
+            }
+            long now = System.nanoTime();
+            if (buffer.position() > 0 && now - lastWrite >= flushIntervalNanos) {
+                writeBuffer();
+                lastWrite = now;
+            }
+            long current = tail.get();
+            if ((current & CLOSED) != 0 && next == (current & ~CLOSED)) {
+                break;
+            }
+            sleeping = true;
+            if (published.get(index) != next) {
+                if ((current & CLOSED) != 0) {
+                    // Журнал закрыт, ждём публикации записей, занятых до закрытия.
+                    LockSupport.parkNanos(PARK_NANOS);
+                } else if (buffer.position() > 0) {
+                    LockSupport.parkNanos(flushIntervalNanos - (now - lastWrite));
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+            sleeping = false;
+        }
+        writeBuffer();
+    }
+
+    /**
+     * Добавление записи в буфер группы. Если места не хватает, то группа сперва пишется в файл.
+     *
+     * @param entry Запись журнала.
+     */
+    private void encode(Entry entry) {
+        String id = entry.transactionId != null ? entry.transactionId : Long.toString(entry.numericId);
+        String line = id + ';' + entry.senderAccount + ';' + entry.receiverAccount + ';'
+                + Money.format(entry.amount) + ';' + entry.successful + '\n';
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > buffer.remaining()) {
+            writeBuffer();
+        }
+        if (bytes.length > buffer.remaining()) {
+            write(ByteBuffer.wrap(bytes));
+        } else {
+            buffer.put(bytes);
+        }
+    }
+
+    /**
+     * Запись накопленной группы в файл.
+     */
+    private void writeBuffer() {
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Запись данных в файл и, если требуется, сброс на диск. После ошибки данные отбрасываются,
+     * чтобы производители не ждали освобождения буфера бесконечно.
+     *
+     * @param data Данные для записи.
+     */
+    private void write(ByteBuffer data) {
+        if (failure != null || !data.hasRemaining()) {
+            return;
+        }
+        try {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            if (fsync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Закрытие журнала: дожидается записи всех принятых записей и закрывает файл.
+     * После закрытия записи не принимаются.
+     *
+     * @throws IOException Если при записи журнала произошла ошибка.
+     */
+    @Override
+    public void close() throws IOException {
+        tail.getAndUpdate(sequence -> sequence | CLOSED);
+        LockSupport.unpark(writer);
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
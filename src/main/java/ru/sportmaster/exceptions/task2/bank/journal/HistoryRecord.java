@@ -0,0 +1,17 @@
+package ru.sportmaster.exceptions.task2.bank.journal;
+
+import java.time.Instant;
+
+/**
+ * Запись истории транзакций.
+ *
+ * @param transactionId   Идентификатор транзакции.
+ * @param time            Время записи транзакции в историю.
+ * @param senderAccount   Номер счёта отправителя.
+ * @param receiverAccount Номер счёта получателя.
+ * @param amount          Сумма перевода в копейках.
+ * @param successful      Признак успешной транзакции.
+ */
+public record HistoryRecord(long transactionId, Instant time, String senderAccount, String receiverAccount,
+                            long amount, boolean successful) {
+}
@@ -0,0 +1,924 @@
+package ru.sportmaster.exceptions.task2.bank.journal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Хранилище истории транзакций для выписок: журнал транзакций, который сохраняет записи, а не выводит их.
+ * <p>
+ * Записи фиксированной длины нумеруются по порядку поступления и дописываются в сегменты history-N.dat
+ * (N - номер первой записи сегмента) с постоянным количеством записей в сегменте, поэтому запись с любым
+ * номером читается с диска одним позиционным чтением без поиска. Последние записи хранятся в памяти (хвост)
+ * и пишутся в сегмент, когда хвост заполнится, при {@link #flush()} и при закрытии. Надёжность хвоста
+ * при сбое не гарантируется - для этого есть журнал упреждающей записи.
+ * <p>
+ * Время записей не убывает, поэтому записи за период находятся двоичным поиском по времени записей на диске.
+ * Индекс счетов в памяти хранится только для открытого (последнего, ещё не заполненного) сегмента.
+ * Когда сегмент заполняется, его индекс пишется в файл history-N.idx - элементы (хеш номера счёта,
+ * номер записи, время) по возрастанию хеша и номера записи, - и записи счёта в сегменте находятся
+ * двоичным поиском в этом файле. Поэтому память не зависит от размера истории, а при открытии хранилища
+ * читается только открытый сегмент. Индекс сегмента, который не успели записать, строится при первом поиске.
+ * Совпадение хешей разных номеров счетов отсеивается сравнением номеров в прочитанных записях.
+ */
+public class TransactionHistory implements TransactionJournal, AutoCloseable {
+
+    /**
+     * Количество записей хвоста по умолчанию.
+     */
+    private static final int DEFAULT_TAIL_RECORDS = 4096;
+
+    /**
+     * Количество записей в сегменте по умолчанию.
+     */
+    private static final int DEFAULT_SEGMENT_RECORDS = 1 << 20;
+
+    /**
+     * Количество записей сегмента или элементов индекса, читаемых или записываемых за одну операцию.
+     */
+    private static final int LOAD_RECORDS = 4096;
+
+    /**
+     * Максимальная длина номера счёта в байтах UTF-8.
+     */
+    private static final int MAX_NUMBER_LENGTH = 62;
+
+    /**
+     * Размер записи: идентификатор, время, сумма (long), признак успеха (byte), длины (short) и номера счетов.
+     */
+    private static final int RECORD_SIZE = 3 * Long.BYTES + 1 + 2 * (Short.BYTES + MAX_NUMBER_LENGTH);
+
+    /**
+     * Смещение времени в записи.
+     */
+    private static final int TIME_OFFSET = Long.BYTES;
+
+    /**
+     * Размер элемента индекса сегмента: хеш номера счёта, номер записи и время записи.
+     */
+    private static final int ENTRY_SIZE = 3 * Long.BYTES;
+
+    /**
+     * Смещения полей в элементе индекса сегмента.
+     */
+    private static final int ENTRY_HASH = 0;
+    private static final int ENTRY_SEQUENCE = Long.BYTES;
+    private static final int ENTRY_TIME = 2 * Long.BYTES;
+
+    /**
+     * Индекс записей одного счёта в открытом сегменте: номера и время записей по возрастанию.
+     */
+    private static final class AccountIndex {
+        long[] sequences = new long[4];
+        long[] times = new long[4];
+        int size;
+
+        void add(long sequence, long time) {
+            if (size == sequences.length) {
+                sequences = Arrays.copyOf(sequences, size * 2);
+                times = Arrays.copyOf(times, size * 2);
+            }
+            sequences[size] = sequence;
+            times[size] = time;
+            size++;
+        }
+    }
+
+    /**
+     * Каталог хранилища.
+     */
+    private final Path directory;
+
+    /**
+     * Количество записей в сегменте.
+     */
+    private final int segmentRecords;
+
+    /**
+     * Блокировка хвоста, индекса открытого сегмента и списков сегментов.
+     */
+    private final ReentrantLock lock;
+
+    /**
+     * Блокировка построения индексов сегментов при поиске, чтобы индекс не строился дважды.
+     */
+    private final ReentrantLock indexLock;
+
+    /**
+     * Хвост - записи, ещё не записанные в сегменты.
+     */
+    private final ByteBuffer tail;
+
+    /**
+     * Открытые сегменты по порядку. Заменяется целиком при добавлении сегмента.
+     */
+    private volatile FileChannel[] segments;
+
+    /**
+     * Индексы заполненных сегментов по порядку, null - индекс сегмента ещё не построен.
+     * Заменяется целиком при заполнении сегмента и при построении индекса.
+     */
+    private volatile FileChannel[] indexes;
+
+    /**
+     * Время первой и последней записи заполненных сегментов, по два значения на сегмент.
+     * Позволяет не искать в сегментах вне периода.
+     */
+    private volatile long[] segmentTimes;
+
+    /**
+     * Количество записей, записанных в сегменты. Записи с меньшими номерами читаются с диска.
+     */
+    private volatile long flushed;
+
+    /**
+     * Общее количество записей.
+     */
+    private long count;
+
+    /**
+     * Время последней записи, время следующих записей не меньше его.
+     */
+    private long lastTime;
+
+    /**
+     * Время первой записи открытого сегмента.
+     */
+    private long openFirstTime;
+
+    /**
+     * Индексы записей открытого сегмента по номерам счетов.
+     */
+    private final Map<String, AccountIndex> accounts;
+
+    /**
+     * Открытие хранилища с размерами хвоста и сегмента по умолчанию.
+     *
+     * @param directory Каталог хранилища. Создаётся, если его нет.
+     * @throws IOException Если сегменты не удалось прочитать.
+     */
+    public TransactionHistory(Path directory) throws IOException {
+        this(directory, DEFAULT_TAIL_RECORDS, DEFAULT_SEGMENT_RECORDS);
+    }
+
+    /**
+     * Открытие хранилища. Заполненные сегменты только открываются, по открытому сегменту строится
+     * индекс счетов в памяти.
+     *
+     * @param directory      Каталог хранилища. Создаётся, если его нет.
+     * @param tailRecords    Количество записей хвоста в памяти.
+     * @param segmentRecords Количество записей в сегменте.
+     * @throws IOException Если сегменты не удалось прочитать.
+     */
+    public TransactionHistory(Path directory, int tailRecords, int segmentRecords) throws IOException {
+        if (tailRecords <= 0 || segmentRecords <= 0) {
+            throw new IllegalArgumentException("Размеры хвоста и сегмента должны быть больше 0: "
+                    + tailRecords + ", " + segmentRecords);
+        }
+        this.directory = Files.createDirectories(directory);
+        this.segmentRecords = segmentRecords;
+        this.lock = new ReentrantLock();
+        this.indexLock = new ReentrantLock();
+        this.tail = ByteBuffer.allocate(tailRecords * RECORD_SIZE);
+        this.segments = new FileChannel[0];
+        this.indexes = new FileChannel[0];
+        this.segmentTimes = new long[0];
+        this.accounts = new HashMap<>();
+        load();
+    }
+
+    /**
+     * Запись транзакции в историю. Идентификатор должен быть числом.
+     */
+    @Override
+    public void record(String transactionId, String senderAccount, String receiverAccount, long amount,
+                       boolean successful) {
+        record(Long.parseLong(transactionId), senderAccount, receiverAccount, amount, successful);
+    }
+
+    @Override
+    public void record(long transactionId, String senderAccount, String receiverAccount, long amount,
+                       boolean successful) {
+        byte[] sender = bytes(senderAccount);
+        byte[] receiver = bytes(receiverAccount);
+        lock.lock();
+        try {
+            append(transactionId, senderAccount, sender, receiverAccount, receiver, amount, successful);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Запись составной транзакции: каждая часть - отдельная запись с идентификатором транзакции,
+     * поэтому транзакция попадает в выписки всех её счетов. Части пишутся подряд под одной блокировкой.
+     */
+    @Override
+    public void recordLegs(long transactionId, String[] senderAccounts, String[] receiverAccounts, long[] amounts,
+                           boolean successful) {
+        byte[][] senders = new byte[amounts.length][];
+        byte[][] receivers = new byte[amounts.length][];
+        for (int i = 0; i < amounts.length; i++) {
+            senders[i] = bytes(senderAccounts[i]);
+            receivers[i] = bytes(receiverAccounts[i]);
+        }
+        lock.lock();
+        try {
+            for (int i = 0; i < amounts.length; i++) {
+                append(transactionId, senderAccounts[i], senders[i], receiverAccounts[i], receivers[i], amounts[i],
+                        successful);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Получение количества записей в истории.
+     *
+     * @return Количество записей.
+     */
+    public long size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Получение последних записей счёта - страница выписки от новых записей к старым.
+     * Сперва просматривается индекс открытого сегмента, затем индексы заполненных сегментов от новых к старым.
+     *
+     * @param accountNumber Номер счёта.
+     * @param offset        Количество пропускаемых самых новых записей.
+     * @param limit         Максимальное количество записей страницы.
+     * @return Записи от новых к старым.
+     */
+    public List<HistoryRecord> last(String accountNumber, int offset, int limit) {
+        long hash = hash(bytes(accountNumber));
+        long[] open;
+        long skip;
+        FileChannel[] sealed;
+        lock.lock();
+        try {
+            AccountIndex index = accounts.get(accountNumber);
+            int size = index != null ? index.size : 0;
+            int to = Math.max(0, size - offset);
+            int from = Math.max(0, to - limit);
+            open = index != null ? Arrays.copyOfRange(index.sequences, from, to) : new long[0];
+            skip = Math.max(0, offset - size);
+            sealed = indexes;
+        } finally {
+            lock.unlock();
+        }
+        List<HistoryRecord> records = new ArrayList<>(Math.min(limit, 1024));
+        for (int i = open.length - 1; i >= 0; i--) {
+            records.add(read(open[i]));
+        }
+        for (int segment = sealed.length - 1; segment >= 0 && records.size() < limit; segment--) {
+            FileChannel index = segmentIndex(segment);
+            long entries = entries(index);
+            long low = search(index, 0, entries, ENTRY_HASH, hash, false);
+            long high = search(index, low, entries, ENTRY_HASH, hash, true);
+            if (skip >= high - low) {
+                skip -= high - low;
+                continue;
+            }
+            long end = high - skip;
+            skip = 0;
+            long[] page = sequences(index, Math.max(low, end - (limit - records.size())), end);
+            for (int i = page.length - 1; i >= 0; i--) {
+                addIfOwned(records, read(page[i]), accountNumber);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Получение записей счёта за период - страница выписки от старых записей к новым.
+     * Заполненные сегменты вне периода пропускаются по времени их первой и последней записи.
+     *
+     * @param accountNumber Номер счёта.
+     * @param from          Начало периода включительно.
+     * @param to            Конец периода не включительно.
+     * @param offset        Количество пропускаемых первых записей периода.
+     * @param limit         Максимальное количество записей страницы.
+     * @return Записи от старых к новым.
+     */
+    public List<HistoryRecord> between(String accountNumber, Instant from, Instant to, int offset, int limit) {
+        long hash = hash(bytes(accountNumber));
+        long fromMillis = millis(from);
+        long toMillis = millis(to);
+        long[] open;
+        FileChannel[] sealed;
+        long[] times;
+        lock.lock();
+        try {
+            AccountIndex index = accounts.get(accountNumber);
+            if (index != null) {
+                int first = lowerBound(index.times, index.size, fromMillis);
+                int end = lowerBound(index.times, index.size, toMillis);
+                open = Arrays.copyOfRange(index.sequences, first, (int) Math.min(end, (long) first + offset + limit));
+            } else {
+                open = new long[0];
+            }
+            sealed = indexes;
+            times = segmentTimes;
+        } finally {
+            lock.unlock();
+        }
+        List<HistoryRecord> records = new ArrayList<>(Math.min(limit, 1024));
+        long skip = offset;
+        for (int segment = 0; segment < sealed.length && records.size() < limit; segment++) {
+            if (times[2 * segment + 1] < fromMillis || times[2 * segment] >= toMillis) {
+                continue;
+            }
+            FileChannel index = segmentIndex(segment);
+            long entries = entries(index);
+            long low = search(index, 0, entries, ENTRY_HASH, hash, false);
+            long high = search(index, low, entries, ENTRY_HASH, hash, true);
+            long first = search(index, low, high, ENTRY_TIME, fromMillis, false);
+            long end = search(index, first, high, ENTRY_TIME, toMillis, false);
+            if (skip >= end - first) {
+                skip -= end - first;
+                continue;
+            }
+            long start = first + skip;
+            skip = 0;
+            for (long sequence : sequences(index, start, Math.min(end, start + limit - records.size()))) {
+                addIfOwned(records, read(sequence), accountNumber);
+            }
+        }
+        for (int i = (int) Math.min(skip, open.length); i < open.length && records.size() < limit; i++) {
+            records.add(read(open[i]));
+        }
+        return records;
+    }
+
+    /**
+     * Получение записей всех счетов за период от старых записей к новым.
+     * Границы периода находятся двоичным поиском по времени записей в сегментах и в хвосте.
+     *
+     * @param from   Начало периода включительно.
+     * @param to     Конец периода не включительно.
+     * @param offset Количество пропускаемых первых записей периода.
+     * @param limit  Максимальное количество записей страницы.
+     * @return Записи от старых к новым.
+     */
+    public List<HistoryRecord> between(Instant from, Instant to, int offset, int limit) {
+        long size = size();
+        long first = lowerBound(0, size, millis(from));
+        long end = lowerBound(first, size, millis(to));
+        long start = Math.min(end, first + offset);
+        long stop = Math.min(end, start + limit);
+        List<HistoryRecord> records = new ArrayList<>((int) (stop - start));
+        for (long sequence = start; sequence < stop; sequence++) {
+            records.add(read(sequence));
+        }
+        return records;
+    }
+
+    /**
+     * Запись хвоста в сегмент.
+     *
+     * @throws UncheckedIOException Если хвост не удалось записать.
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            writeTail();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Закрытие хранилища: хвост пишется в сегмент, сегменты и их индексы закрываются.
+     *
+     * @throws IOException Если хвост не удалось записать или сегмент не удалось закрыть.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            writeTail();
+            for (FileChannel segment : segments) {
+                segment.force(false);
+                segment.close();
+            }
+            for (FileChannel index : indexes) {
+                if (index != null) {
+                    index.close();
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Добавление записи в хвост и в индекс открытого сегмента. Вызывается под блокировкой.
+     */
+    private void append(long transactionId, String senderAccount, byte[] sender, String receiverAccount,
+                        byte[] receiver, long amount, boolean successful) {
+        long time = Math.max(lastTime, System.currentTimeMillis());
+        lastTime = time;
+        if (count % segmentRecords == 0) {
+            openFirstTime = time;
+        }
+        int start = tail.position();
+        tail.putLong(transactionId).putLong(time).putLong(amount).put((byte) (successful ? 1 : 0));
+        putString(tail, sender);
+        putString(tail, receiver);
+        tail.position(start + RECORD_SIZE);
+        index(accounts, count, time, senderAccount, receiverAccount);
+        count++;
+        if (!tail.hasRemaining() || count % segmentRecords == 0) {
+            writeTail();
+        }
+    }
+
+    /**
+     * Добавление прочитанной из заполненного сегмента записи, если она относится к счёту,
+     * а не к другому счёту с тем же хешем номера.
+     */
+    private static void addIfOwned(List<HistoryRecord> records, HistoryRecord record, String accountNumber) {
+        if (record.senderAccount().equals(accountNumber) || record.receiverAccount().equals(accountNumber)) {
+            records.add(record);
+        }
+    }
+
+    /**
+     * Время в миллисекундах, ограниченное диапазоном long - чтобы можно было передать Instant.MIN и Instant.MAX.
+     */
+    private static long millis(Instant time) {
+        if (time.isBefore(Instant.ofEpochMilli(Long.MIN_VALUE))) {
+            return Long.MIN_VALUE;
+        }
+        if (time.isAfter(Instant.ofEpochMilli(Long.MAX_VALUE))) {
+            return Long.MAX_VALUE;
+        }
+        return time.toEpochMilli();
+    }
+
+    private static int lowerBound(long[] times, int size, long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Двоичный поиск первой записи истории не раньше указанного времени.
+     *
+     * @param low  Начало диапазона номеров записей.
+     * @param high Конец диапазона номеров записей.
+     * @param time Время в миллисекундах.
+     * @return Номер записи или high, если таких записей нет.
+     */
+    private long lowerBound(long low, long high, long time) {
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (timeOf(middle) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Двоичный поиск в индексе сегмента по полю элемента, значения которого не убывают в диапазоне.
+     *
+     * @param index Индекс сегмента.
+     * @param low   Начало диапазона элементов.
+     * @param high  Конец диапазона элементов.
+     * @param field Смещение поля в элементе.
+     * @param value Искомое значение.
+     * @param after true - найти первый элемент больше значения, false - не меньше значения.
+     * @return Номер элемента или high, если таких элементов нет.
+     */
+    private static long search(FileChannel index, long low, long high, int field, long value, boolean after) {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            long current = readFully(index, buffer.clear(), middle * ENTRY_SIZE + field).getLong(0);
+            if (current < value || after && current == value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Чтение номеров записей из диапазона элементов индекса сегмента.
+     */
+    private static long[] sequences(FileChannel index, long from, long to) {
+        ByteBuffer buffer = readFully(index, ByteBuffer.allocate((int) (to - from) * ENTRY_SIZE), from * ENTRY_SIZE);
+        long[] sequences = new long[(int) (to - from)];
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = buffer.getLong(i * ENTRY_SIZE + ENTRY_SEQUENCE);
+        }
+        return sequences;
+    }
+
+    private static long entries(FileChannel index) {
+        try {
+            return index.size() / ENTRY_SIZE;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Позиционное чтение до заполнения буфера.
+     *
+     * @return Буфер, подготовленный к чтению.
+     * @throws UncheckedIOException Если данные не удалось прочитать или файл короче.
+     */
+    private static ByteBuffer readFully(FileChannel channel, ByteBuffer buffer, long position) {
+        try {
+            int start = buffer.position();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                    throw new IOException("История транзакций повреждена: файл короче ожидаемого");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Получение времени записи по номеру: из сегмента, если запись уже записана, иначе из хвоста.
+     *
+     * @param sequence Номер записи.
+     * @return Время записи в миллисекундах.
+     */
+    private long timeOf(long sequence) {
+        if (sequence >= flushed) {
+            lock.lock();
+            try {
+                if (sequence >= flushed) {
+                    return tail.getLong((int) (sequence - flushed) * RECORD_SIZE + TIME_OFFSET);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return readFully(segments[(int) (sequence / segmentRecords)], ByteBuffer.allocate(Long.BYTES),
+                (sequence % segmentRecords) * RECORD_SIZE + TIME_OFFSET).getLong();
+    }
+
+    /**
+     * Чтение записи по номеру: из сегмента, если запись уже записана, иначе из хвоста.
+     *
+     * @param sequence Номер записи.
+     * @return Запись.
+     */
+    private HistoryRecord read(long sequence) {
+        if (sequence >= flushed) {
+            lock.lock();
+            try {
+                if (sequence >= flushed) {
+                    return decode(tail.duplicate().position((int) (sequence - flushed) * RECORD_SIZE));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return decode(readFully(segments[(int) (sequence / segmentRecords)], ByteBuffer.allocate(RECORD_SIZE),
+                (sequence % segmentRecords) * RECORD_SIZE));
+    }
+
+    /**
+     * Запись хвоста в конец текущего сегмента, при необходимости создаётся новый сегмент.
+     * Хвост пишется и при заполнении сегмента, поэтому записи хвоста всегда попадают в один сегмент.
+     * Заполненный сегмент закрывается для записи: пишется его индекс. Вызывается под блокировкой.
+     */
+    private void writeTail() {
+        if (tail.position() == 0) {
+            return;
+        }
+        try {
+            if (flushed / segmentRecords == segments.length) {
+                FileChannel[] grown = Arrays.copyOf(segments, segments.length + 1);
+                grown[segments.length] = FileChannel.open(segmentFile(flushed), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                segments = grown;
+            }
+            FileChannel segment = segments[segments.length - 1];
+            ByteBuffer data = tail.flip();
+            long position = (flushed % segmentRecords) * RECORD_SIZE;
+            while (data.hasRemaining()) {
+                position += segment.write(data, position);
+            }
+        } catch (IOException e) {
+            tail.position(tail.limit()).limit(tail.capacity());
+            throw new UncheckedIOException(e);
+        }
+        flushed += tail.limit() / RECORD_SIZE;
+        tail.clear();
+        if (flushed % segmentRecords == 0) {
+            seal();
+        }
+    }
+
+    /**
+     * Закрытие заполненного сегмента: индекс открытого сегмента пишется в файл и очищается.
+     * Если индекс не удалось записать, то он будет построен по сегменту при первом поиске,
+     * а запись в историю не прерывается. Вызывается под блокировкой.
+     */
+    private void seal() {
+        int segment = indexes.length;
+        FileChannel index;
+        try {
+            index = writeIndex(segment, accounts);
+        } catch (IOException e) {
+            index = null;
+        }
+        FileChannel[] grown = Arrays.copyOf(indexes, segment + 1);
+        grown[segment] = index;
+        long[] times = Arrays.copyOf(segmentTimes, 2 * (segment + 1));
+        times[2 * segment] = openFirstTime;
+        times[2 * segment + 1] = lastTime;
+        segmentTimes = times;
+        indexes = grown;
+        accounts.clear();
+    }
+
+    /**
+     * Получение индекса заполненного сегмента. Если индекс не был записан, то он строится чтением сегмента.
+     *
+     * @param segment Номер сегмента.
+     * @return Индекс сегмента.
+     * @throws UncheckedIOException Если индекс не удалось построить.
+     */
+    private FileChannel segmentIndex(int segment) {
+        FileChannel index = indexes[segment];
+        if (index != null) {
+            return index;
+        }
+        indexLock.lock();
+        try {
+            index = indexes[segment];
+            if (index == null) {
+                index = writeIndex(segment, scan(segment));
+                lock.lock();
+                try {
+                    FileChannel[] updated = indexes.clone();
+                    updated[segment] = index;
+                    indexes = updated;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return index;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    /**
+     * Запись индекса сегмента: элементы по возрастанию хеша номера счёта, при равных хешах - номера записи.
+     * Индекс пишется во временный файл и атомарно переименовывается, поэтому файл индекса всегда полный.
+     *
+     * @param segment  Номер сегмента.
+     * @param accounts Индексы записей сегмента по номерам счетов.
+     * @return Индекс, открытый для чтения.
+     * @throws IOException Если индекс не удалось записать.
+     */
+    private FileChannel writeIndex(int segment, Map<String, AccountIndex> accounts) throws IOException {
+        long[] hashes = new long[accounts.size()];
+        AccountIndex[] groups = new AccountIndex[accounts.size()];
+        Integer[] order = new Integer[accounts.size()];
+        int i = 0;
+        for (Map.Entry<String, AccountIndex> entry : accounts.entrySet()) {
+            hashes[i] = hash(bytes(entry.getKey()));
+            groups[i] = entry.getValue();
+            order[i] = i;
+            i++;
+        }
+        Arrays.sort(order, Comparator.comparingLong(account -> hashes[account]));
+        Path file = indexFile((long) segment * segmentRecords);
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(LOAD_RECORDS * ENTRY_SIZE);
+            for (int first = 0; first < order.length; ) {
+                int end = first + 1;
+                while (end < order.length && hashes[order[end]] == hashes[order[first]]) {
+                    end++;
+                }
+                AccountIndex group = groups[order[first]];
+                if (end - first > 1) {
+                    group = merge(groups, order, first, end);
+                }
+                for (int j = 0; j < group.size; j++) {
+                    if (!buffer.hasRemaining()) {
+                        write(channel, buffer.flip());
+                        buffer.clear();
+                    }
+                    buffer.putLong(hashes[order[first]]).putLong(group.sequences[j]).putLong(group.times[j]);
+                }
+                first = end;
+            }
+            write(channel, buffer.flip());
+            channel.force(false);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    /**
+     * Слияние индексов счетов с одинаковым хешем номера по возрастанию номера записи.
+     */
+    private static AccountIndex merge(AccountIndex[] groups, Integer[] order, int first, int end) {
+        AccountIndex merged = new AccountIndex();
+        for (int i = first; i < end; i++) {
+            AccountIndex index = groups[order[i]];
+            for (int j = 0; j < index.size; j++) {
+                merged.add(index.sequences[j], index.times[j]);
+            }
+        }
+        Integer[] positions = new Integer[merged.size];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = i;
+        }
+        Arrays.sort(positions, Comparator.comparingLong(position -> merged.sequences[position]));
+        AccountIndex sorted = new AccountIndex();
+        for (int position : positions) {
+            sorted.add(merged.sequences[position], merged.times[position]);
+        }
+        return sorted;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    /**
+     * Построение индексов счетов по записям сегмента на диске.
+     *
+     * @param segment Номер сегмента.
+     * @return Индексы записей сегмента по номерам счетов.
+     */
+    private Map<String, AccountIndex> scan(int segment) throws IOException {
+        Map<String, AccountIndex> scanned = new HashMap<>();
+        FileChannel channel = segments[segment];
+        long first = (long) segment * segmentRecords;
+        long records = Math.min(segmentRecords, channel.size() / RECORD_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(LOAD_RECORDS * RECORD_SIZE);
+        for (long i = 0; i < records; i += LOAD_RECORDS) {
+            buffer.clear().limit((int) Math.min(LOAD_RECORDS, records - i) * RECORD_SIZE);
+            readFully(channel, buffer, i * RECORD_SIZE);
+            for (long sequence = first + i; buffer.hasRemaining(); sequence++) {
+                HistoryRecord record = decode(buffer);
+                index(scanned, sequence, record.time().toEpochMilli(), record.senderAccount(),
+                        record.receiverAccount());
+            }
+        }
+        return scanned;
+    }
+
+    /**
+     * Открытие существующих сегментов. Заполненные сегменты только открываются вместе с их индексами,
+     * читается время их первой и последней записи. По записям открытого сегмента строится индекс в памяти.
+     *
+     * @throws IOException Если сегменты не удалось прочитать.
+     */
+    private void load() throws IOException {
+        List<FileChannel> opened = new ArrayList<>();
+        List<FileChannel> sealed = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        while (Files.exists(segmentFile(count))) {
+            FileChannel segment = FileChannel.open(segmentFile(count), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            opened.add(segment);
+            segments = opened.toArray(new FileChannel[0]);
+            long records = Math.min(segmentRecords, segment.size() / RECORD_SIZE);
+            if (records < segmentRecords) {
+                Map<String, AccountIndex> scanned = scan(opened.size() - 1);
+                accounts.putAll(scanned);
+                if (records > 0) {
+                    openFirstTime = readFully(segment, ByteBuffer.allocate(Long.BYTES), TIME_OFFSET).getLong();
+                    lastTime = readFully(segment, ByteBuffer.allocate(Long.BYTES),
+                            (records - 1) * RECORD_SIZE + TIME_OFFSET).getLong();
+                }
+                count += records;
+                break;
+            }
+            times.add(readFully(segment, ByteBuffer.allocate(Long.BYTES), TIME_OFFSET).getLong());
+            lastTime = readFully(segment, ByteBuffer.allocate(Long.BYTES),
+                    (records - 1) * RECORD_SIZE + TIME_OFFSET).getLong();
+            times.add(lastTime);
+            Path index = indexFile(count);
+            sealed.add(Files.exists(index) && Files.size(index) % ENTRY_SIZE == 0
+                    ? FileChannel.open(index, StandardOpenOption.READ) : null);
+            count += records;
+        }
+        indexes = sealed.toArray(new FileChannel[0]);
+        segmentTimes = times.stream().mapToLong(Long::longValue).toArray();
+        flushed = count;
+    }
+
+    /**
+     * Добавление записи в индексы счетов отправителя и получателя, запись по одному счёту добавляется один раз.
+     */
+    private static void index(Map<String, AccountIndex> accounts, long sequence, long time, String senderAccount,
+                              String receiverAccount) {
+        accounts.computeIfAbsent(senderAccount, number -> new AccountIndex()).add(sequence, time);
+        if (!receiverAccount.equals(senderAccount)) {
+            accounts.computeIfAbsent(receiverAccount, number -> new AccountIndex()).add(sequence, time);
+        }
+    }
+
+    private Path segmentFile(long firstRecord) {
+        return directory.resolve(String.format("history-%019d.dat", firstRecord));
+    }
+
+    private Path indexFile(long firstRecord) {
+        return directory.resolve(String.format("history-%019d.idx", firstRecord));
+    }
+
+    /**
+     * Хеш номера счёта для индекса сегмента (FNV-1a с перемешиванием старших бит).
+     */
+    private static long hash(byte[] number) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : number) {
+            h = (h ^ b) * 0x100000001b3L;
+        }
+        return h ^ (h >>> 32);
+    }
+
+    private static HistoryRecord decode(ByteBuffer buffer) {
+        int start = buffer.position();
+        long transactionId = buffer.getLong();
+        long time = buffer.getLong();
+        long amount = buffer.getLong();
+        boolean successful = buffer.get() != 0;
+        String sender = getString(buffer);
+        buffer.position(start + 3 * Long.BYTES + 1 + Short.BYTES + MAX_NUMBER_LENGTH);
+        String receiver = getString(buffer);
+        buffer.position(start + RECORD_SIZE);
+        return new HistoryRecord(transactionId, Instant.ofEpochMilli(time), sender, receiver, amount, successful);
+    }
+
+    private static byte[] bytes(String accountNumber) {
+        byte[] number = accountNumber.getBytes(StandardCharsets.UTF_8);
+        if (number.length > MAX_NUMBER_LENGTH) {
+            throw new IllegalArgumentException("Слишком длинный номер счёта: " + accountNumber);
+        }
+        return number;
+    }
+
+    /**
+     * Запись номера счёта в поле фиксированной длины.
+     */
+    private static void putString(ByteBuffer buffer, byte[] string) {
+        int start = buffer.position();
+        buffer.putShort((short) string.length);
+        buffer.put(string);
+        buffer.position(start + Short.BYTES + MAX_NUMBER_LENGTH);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] string = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(string);
+        return new String(string, StandardCharsets.UTF_8);
+    }
+}
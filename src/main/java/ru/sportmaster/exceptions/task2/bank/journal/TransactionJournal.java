@@ -0,0 +1,73 @@
+package ru.sportmaster.exceptions.task2.bank.journal;
+
+/**
+ * Журнал транзакций - получатель записей о завершённых транзакциях.
+ * Вызывается на пути выполнения перевода, поэтому реализация должна быть потокобезопасной
+ * и не должна блокировать вызывающий поток надолго.
+ */
+public interface TransactionJournal {
+
+    /**
+     * Журнал, который ничего не записывает.
+     */
+    TransactionJournal NONE = new TransactionJournal() {
+        @Override
+        public void record(String transactionId, String senderAccount, String receiverAccount, long amount,
+                           boolean successful) {
+        }
+
+        @Override
+        public void record(long transactionId, String senderAccount, String receiverAccount, long amount,
+                           boolean successful) {
+        }
+
+        @Override
+        public void recordLegs(long transactionId, String[] senderAccounts, String[] receiverAccounts,
+                               long[] amounts, boolean successful) {
+        }
+    };
+
+    /**
+     * Запись данных о транзакции в журнал.
+     *
+     * @param transactionId   Идентификатор транзакции.
+     * @param senderAccount   Номер счёта отправителя.
+     * @param receiverAccount Номер счёта получателя.
+     * @param amount          Сумма перевода в копейках.
+     * @param successful      Признак успешной транзакции.
+     */
+    void record(String transactionId, String senderAccount, String receiverAccount, long amount, boolean successful);
+
+    /**
+     * Запись данных о транзакции с числовым идентификатором. По умолчанию идентификатор
+     * преобразуется в строку, реализация может сохранить его без выделения памяти.
+     *
+     * @param transactionId   Идентификатор транзакции.
+     * @param senderAccount   Номер счёта отправителя.
+     * @param receiverAccount Номер счёта получателя.
+     * @param amount          Сумма перевода в копейках.
+     * @param successful      Признак успешной транзакции.
+     */
+    default void record(long transactionId, String senderAccount, String receiverAccount, long amount,
+                        boolean successful) {
+        record(Long.toString(transactionId), senderAccount, receiverAccount, amount, successful);
+    }
+
+    /**
+     * Запись составной транзакции частями: часть i - перевод amounts[i] со счёта senderAccounts[i]
+     * на счёт receiverAccounts[i]. По умолчанию каждая часть записывается отдельной записью
+     * с идентификатором транзакции, реализация может записать части вместе.
+     *
+     * @param transactionId    Идентификатор транзакции.
+     * @param senderAccounts   Номера счетов отправителей частей.
+     * @param receiverAccounts Номера счетов получателей частей.
+     * @param amounts          Суммы частей в копейках.
+     * @param successful       Признак успешной транзакции.
+     */
+    default void recordLegs(long transactionId, String[] senderAccounts, String[] receiverAccounts, long[] amounts,
+                            boolean successful) {
+        for (int i = 0; i < amounts.length; i++) {
+            record(transactionId, senderAccounts[i], receiverAccounts[i], amounts[i], successful);
+        }
+    }
+}
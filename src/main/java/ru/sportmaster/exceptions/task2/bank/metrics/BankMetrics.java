@@ -0,0 +1,336 @@
+package ru.sportmaster.exceptions.task2.bank.metrics;
+
+import ru.sportmaster.exceptions.task2.bank.BankAccount;
+import ru.sportmaster.exceptions.task2.bank.TransferMetrics;
+import ru.sportmaster.exceptions.task2.bank.TransferOutcome;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Измерения банковского сервиса на полосатых счётчиках без блокировок: запись измерения - это
+ * увеличение счётчика полосы текущего потока, поэтому потоки переводов не конкурируют за общие данные.
+ * Измерения доступны снимком ({@link #snapshot()}) и через JMX ({@link #register(String)}).
+ * <p>
+ * Глубина очередей собирается общей гистограммой, а счета, очередь которых достигла порога,
+ * попадают в отчёт о глубоких очередях - по нему находится горячий счёт, накопивший операции.
+ */
+public class BankMetrics implements TransferMetrics, BankMetricsMXBean {
+
+    /**
+     * Количество полос гистограмм.
+     */
+    private static final int STRIPES = 16;
+
+    /**
+     * Порог глубины очереди для отчёта о глубоких очередях по умолчанию - четверть ёмкости очереди счёта.
+     */
+    public static final int DEFAULT_DEEP_QUEUE = 64;
+
+    /**
+     * Количество счетов в отчёте о глубоких очередях по умолчанию.
+     */
+    public static final int DEFAULT_DEEP_QUEUE_ACCOUNTS = 16;
+
+    private final LongAdder transfers = new LongAdder();
+    private final LongAdder failedTransfers = new LongAdder();
+    private final LongAdder withdrawalRollbacks = new LongAdder();
+    private final LongAdder replenishmentRollbacks = new LongAdder();
+
+    /**
+     * Отказы по кодам, по порядковому номеру кода. Счётчики создаются заранее.
+     */
+    private final LongAdder[] rejections = new LongAdder[TransferOutcome.values().length];
+
+    private final StripedHistogram latency = new StripedHistogram(STRIPES);
+    private final StripedHistogram queueDepth = new StripedHistogram(STRIPES);
+    private final StripedHistogram drain = new StripedHistogram(STRIPES);
+
+    /**
+     * Глубина очереди, начиная с которой счёт попадает в отчёт.
+     */
+    private final int deepQueue;
+
+    /**
+     * Наибольшее количество счетов в отчёте.
+     */
+    private final int deepQueueAccounts;
+
+    /**
+     * Отчёт о глубоких очередях: номер счёта - наибольшая глубина его очереди. Изменяется под
+     * блокировкой отчёта, но только при глубине не меньше порога и больше уже известной,
+     * поэтому обычная постановка в очередь только читает отчёт.
+     */
+    private final Map<String, Integer> deepQueues = new ConcurrentHashMap<>();
+
+    /**
+     * Наименьшая глубина в заполненном отчёте: более мелкая очередь нового счёта в отчёт не попадает.
+     */
+    private volatile int deepQueueFloor;
+
+    /**
+     * Окна расчёта скорости переводов для снимков и для JMX. Окна раздельные, поэтому опрос
+     * через JMX не сдвигает окно снимков и наоборот.
+     */
+    private final RateWindow snapshotRate = new RateWindow();
+    private final RateWindow jmxRate = new RateWindow();
+
+    /**
+     * Создание измерений с порогом и размером отчёта о глубоких очередях по умолчанию.
+     */
+    public BankMetrics() {
+        this(DEFAULT_DEEP_QUEUE, DEFAULT_DEEP_QUEUE_ACCOUNTS);
+    }
+
+    /**
+     * Создание измерений.
+     *
+     * @param deepQueue         Глубина очереди, начиная с которой счёт попадает в отчёт о глубоких очередях.
+     * @param deepQueueAccounts Наибольшее количество счетов в отчёте, остаются счета с самыми глубокими очередями.
+     */
+    public BankMetrics(int deepQueue, int deepQueueAccounts) {
+        if (deepQueue <= 0 || deepQueueAccounts <= 0) {
+            throw new IllegalArgumentException("Порог и размер отчёта о глубоких очередях должны быть положительными");
+        }
+        this.deepQueue = deepQueue;
+        this.deepQueueAccounts = deepQueueAccounts;
+        for (int i = 0; i < rejections.length; i++) {
+            rejections[i] = new LongAdder();
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public void transferCompleted(long latencyNanos, boolean successful) {
+        transfers.increment();
+        if (!successful) {
+            failedTransfers.increment();
+        }
+        latency.record(latencyNanos);
+    }
+
+    @Override
+    public void withdrawalRolledBack() {
+        withdrawalRollbacks.increment();
+    }
+
+    @Override
+    public void replenishmentRolledBack() {
+        replenishmentRollbacks.increment();
+    }
+
+    @Override
+    public void rejected(TransferOutcome outcome) {
+        rejections[outcome.ordinal()].increment();
+    }
+
+    @Override
+    public void queued(BankAccount account, int depth) {
+        queueDepth.record(depth);
+        if (depth >= deepQueue && account != null) {
+            reportDeepQueue(account.getAccountNumber(), depth);
+        }
+    }
+
+    /**
+     * Учёт глубокой очереди счёта в отчёте. Если отчёт заполнен, то вытесняется счёт
+     * с самой мелкой из глубоких очередей.
+     *
+     * @param accountNumber Номер счёта.
+     * @param depth         Глубина очереди.
+     */
+    private void reportDeepQueue(String accountNumber, int depth) {
+        Integer known = deepQueues.get(accountNumber);
+        if (known != null ? known >= depth : deepQueues.size() >= deepQueueAccounts && depth <= deepQueueFloor) {
+            return;
+        }
+        synchronized (deepQueues) {
+            known = deepQueues.get(accountNumber);
+            if (known != null && known >= depth) {
+                return;
+            }
+            if (known == null && deepQueues.size() >= deepQueueAccounts) {
+                Map.Entry<String, Integer> shallowest = null;
+                for (Map.Entry<String, Integer> entry : deepQueues.entrySet()) {
+                    if (shallowest == null || entry.getValue() < shallowest.getValue()) {
+                        shallowest = entry;
+                    }
+                }
+                if (shallowest.getValue() >= depth) {
+                    return;
+                }
+                deepQueues.remove(shallowest.getKey());
+            }
+            deepQueues.put(accountNumber, depth);
+            if (deepQueues.size() >= deepQueueAccounts) {
+                deepQueueFloor = deepQueues.values().stream().mapToInt(Integer::intValue).min().orElse(0);
+            }
+        }
+    }
+
+    @Override
+    public void drained(int operations, long nanos) {
+        drain.record(nanos);
+    }
+
+    /**
+     * Снимок измерений. Скорость переводов считается с момента предыдущего снимка.
+     *
+     * @return Снимок.
+     */
+    public MetricsSnapshot snapshot() {
+        long count = transfers.sum();
+        return new MetricsSnapshot(count, failedTransfers.sum(), snapshotRate.advance(count), latency.snapshot(),
+                withdrawalRollbacks.sum(), replenishmentRollbacks.sum(), rejectionCounts(),
+                queueDepth.snapshot(), drain.snapshot(), deepQueueReport());
+    }
+
+    /**
+     * Получение отчёта о глубоких очередях.
+     *
+     * @return Номер счёта - наибольшая глубина его очереди, по убыванию глубины.
+     */
+    private Map<String, Integer> deepQueueReport() {
+        Map<String, Integer> report = new LinkedHashMap<>();
+        deepQueues.entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                .forEach(entry -> report.put(entry.getKey(), entry.getValue()));
+        return report;
+    }
+
+    /**
+     * Регистрация измерений в платформенном сервере JMX.
+     *
+     * @param name Имя сервиса, попадает в ObjectName.
+     * @return Имя зарегистрированного объекта.
+     * @throws JMException Если объект не удалось зарегистрировать.
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("ru.sportmaster.bank:type=BankMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    @Override
+    public long getTransfers() {
+        return transfers.sum();
+    }
+
+    @Override
+    public long getFailedTransfers() {
+        return failedTransfers.sum();
+    }
+
+    @Override
+    public double getTransfersPerSecond() {
+        return jmxRate.advance(transfers.sum());
+    }
+
+    @Override
+    public long getLatencyP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(latency.snapshot().p50());
+    }
+
+    @Override
+    public long getLatencyP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(latency.snapshot().p99());
+    }
+
+    @Override
+    public long getLatencyP999Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(latency.snapshot().p999());
+    }
+
+    @Override
+    public long getLatencyMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(latency.snapshot().max());
+    }
+
+    @Override
+    public long getWithdrawalRollbacks() {
+        return withdrawalRollbacks.sum();
+    }
+
+    @Override
+    public long getReplenishmentRollbacks() {
+        return replenishmentRollbacks.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRejections() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        rejectionCounts().forEach((outcome, count) -> counts.put(outcome.name(), count));
+        return counts;
+    }
+
+    /**
+     * Получение ненулевых счётчиков отказов.
+     *
+     * @return Количество отказов по кодам.
+     */
+    private Map<TransferOutcome, Long> rejectionCounts() {
+        Map<TransferOutcome, Long> counts = new EnumMap<>(TransferOutcome.class);
+        for (TransferOutcome outcome : TransferOutcome.values()) {
+            long count = rejections[outcome.ordinal()].sum();
+            if (count != 0) {
+                counts.put(outcome, count);
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public long getQueueDepthP99() {
+        return queueDepth.snapshot().p99();
+    }
+
+    @Override
+    public long getQueueDepthMax() {
+        return queueDepth.snapshot().max();
+    }
+
+    @Override
+    public long getDrainP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(drain.snapshot().p99());
+    }
+
+    @Override
+    public Map<String, Integer> getDeepQueues() {
+        return deepQueueReport();
+    }
+
+    /**
+     * Окно расчёта скорости переводов: количество переводов и время предыдущего расчёта.
+     */
+    private static final class RateWindow {
+
+        private long previousTransfers;
+        private long previousNanos = System.nanoTime();
+
+        /**
+         * Расчёт скорости с момента предыдущего расчёта и сдвиг окна.
+         *
+         * @param transfers Количество переводов сейчас.
+         * @return Переводов в секунду.
+         */
+        synchronized double advance(long transfers) {
+            long now = System.nanoTime();
+            double perSecond = (transfers - previousTransfers) * (double) TimeUnit.SECONDS.toNanos(1)
+                    / Math.max(now - previousNanos, 1);
+            previousTransfers = transfers;
+            previousNanos = now;
+            return perSecond;
+        }
+    }
+}
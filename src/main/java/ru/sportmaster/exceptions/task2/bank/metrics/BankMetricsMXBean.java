@@ -0,0 +1,38 @@
+package ru.sportmaster.exceptions.task2.bank.metrics;
+
+import java.util.Map;
+
+/**
+ * Измерения банковского сервиса, доступные через JMX. Каждое обращение к атрибуту строит снимок.
+ * Скорость переводов считается с момента предыдущего чтения атрибута через JMX, независимо от снимков.
+ */
+public interface BankMetricsMXBean {
+
+    long getTransfers();
+
+    long getFailedTransfers();
+
+    double getTransfersPerSecond();
+
+    long getLatencyP50Micros();
+
+    long getLatencyP99Micros();
+
+    long getLatencyP999Micros();
+
+    long getLatencyMaxMicros();
+
+    long getWithdrawalRollbacks();
+
+    long getReplenishmentRollbacks();
+
+    Map<String, Long> getRejections();
+
+    long getQueueDepthP99();
+
+    long getQueueDepthMax();
+
+    long getDrainP99Micros();
+
+    Map<String, Integer> getDeepQueues();
+}
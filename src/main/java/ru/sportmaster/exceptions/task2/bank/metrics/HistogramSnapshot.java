@@ -0,0 +1,14 @@
+package ru.sportmaster.exceptions.task2.bank.metrics;
+
+/**
+ * Снимок гистограммы. Значения перцентилей - верхние границы интервалов гистограммы.
+ *
+ * @param count Количество записанных значений.
+ * @param p50   Медиана.
+ * @param p90   90-й перцентиль.
+ * @param p99   99-й перцентиль.
+ * @param p999  99.9-й перцентиль.
+ * @param max   Максимальное значение.
+ */
+public record HistogramSnapshot(long count, long p50, long p90, long p99, long p999, long max) {
+}
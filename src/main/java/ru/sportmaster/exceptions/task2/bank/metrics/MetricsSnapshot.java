@@ -0,0 +1,27 @@
+package ru.sportmaster.exceptions.task2.bank.metrics;
+
+import ru.sportmaster.exceptions.task2.bank.TransferOutcome;
+
+import java.util.Map;
+
+/**
+ * Снимок измерений банковского сервиса. Счётчики накопительные, с момента создания измерений.
+ *
+ * @param transfers               Количество завершённых переводов.
+ * @param failedTransfers         Количество неуспешных переводов среди завершённых.
+ * @param transfersPerSecond      Переводов в секунду с момента предыдущего снимка.
+ * @param latencyNanos            Время перевода от создания транзакции до завершения, в наносекундах.
+ * @param withdrawalRollbacks     Количество отмен списания.
+ * @param replenishmentRollbacks  Количество отмен зачисления.
+ * @param rejections              Количество отказов по кодам.
+ * @param queueDepth              Глубина очереди счёта при постановке операции.
+ * @param drainNanos              Длительность разбора очереди одним обработчиком, в наносекундах.
+ * @param deepQueues              Счета, очередь которых достигала порога: номер счёта - наибольшая глубина,
+ *                                по убыванию глубины.
+ */
+public record MetricsSnapshot(long transfers, long failedTransfers, double transfersPerSecond,
+                              HistogramSnapshot latencyNanos, long withdrawalRollbacks,
+                              long replenishmentRollbacks, Map<TransferOutcome, Long> rejections,
+                              HistogramSnapshot queueDepth, HistogramSnapshot drainNanos,
+                              Map<String, Integer> deepQueues) {
+}
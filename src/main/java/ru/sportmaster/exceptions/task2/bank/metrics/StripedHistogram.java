@@ -0,0 +1,128 @@
+package ru.sportmaster.exceptions.task2.bank.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма значений с логарифмически-линейными интервалами, как в HdrHistogram:
+ * каждая степень двойки делится на 16 равных интервалов, поэтому погрешность значения
+ * не превышает 1/16 при любом порядке величины. Значения до 2^62 учитываются без ограничения диапазона.
+ * <p>
+ * Счётчики интервалов разделены на полосы по потокам, запись - одно атомарное увеличение
+ * без блокировок и без выделения памяти. Снимок складывает полосы, поэтому он не атомарен
+ * относительно одновременных записей.
+ */
+public class StripedHistogram {
+
+    /**
+     * Количество бит точности внутри степени двойки.
+     */
+    private static final int SUB_BITS = 5;
+
+    /**
+     * Количество точных интервалов для малых значений.
+     */
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /**
+     * Количество интервалов в каждой следующей степени двойки.
+     */
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+
+    /**
+     * Количество интервалов гистограммы.
+     */
+    private static final int BUCKETS = SUB_COUNT + (Long.SIZE - SUB_BITS - 1) * HALF_COUNT;
+
+    /**
+     * Счётчики интервалов по полосам.
+     */
+    private final AtomicLongArray[] stripes;
+
+    /**
+     * Создание гистограммы.
+     *
+     * @param stripeCount Количество полос (степень двойки).
+     */
+    public StripedHistogram(int stripeCount) {
+        if (stripeCount <= 0 || Integer.bitCount(stripeCount) != 1) {
+            throw new IllegalArgumentException("Количество полос должно быть степенью двойки: " + stripeCount);
+        }
+        stripes = new AtomicLongArray[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    /**
+     * Запись значения. Отрицательные значения считаются нулём.
+     *
+     * @param value Значение.
+     */
+    public void record(long value) {
+        long hash = Thread.currentThread().threadId() * 0x9E3779B97F4A7C15L;
+        stripes[(int) (hash >>> 32) & (stripes.length - 1)].getAndIncrement(bucketOf(Math.max(value, 0)));
+    }
+
+    /**
+     * Снимок гистограммы.
+     *
+     * @return Количество значений, перцентили и максимум.
+     */
+    public HistogramSnapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = stripe.get(i);
+                counts[i] += count;
+                total += count;
+            }
+        }
+        long max = 0;
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts[i] != 0) {
+                max = upperBound(i);
+                break;
+            }
+        }
+        return new HistogramSnapshot(total, percentile(counts, total, 50), percentile(counts, total, 90),
+                percentile(counts, total, 99), percentile(counts, total, 99.9), max);
+    }
+
+    /**
+     * Значение, не больше которого указанная доля записанных значений.
+     *
+     * @param counts     Счётчики интервалов.
+     * @param total      Количество значений.
+     * @param percentile Перцентиль от 0 до 100.
+     * @return Верхняя граница интервала, в который попал перцентиль, 0 - если значений нет.
+     */
+    private static long percentile(long[] counts, long total, double percentile) {
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return upperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) (value >>> shift) - HALF_COUNT;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_COUNT) / HALF_COUNT + 1;
+        long top = (bucket - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+        return ((top + 1) << shift) - 1;
+    }
+}
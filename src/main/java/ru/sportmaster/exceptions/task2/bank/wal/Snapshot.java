@@ -0,0 +1,222 @@
+package ru.sportmaster.exceptions.task2.bank.wal;
+
+import ru.sportmaster.exceptions.task2.bank.AccountState;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Снимок счетов, отображённый в память. Записи читаются прямо из отображённого файла по номеру записи,
+ * поэтому открытие снимка не загружает счета в кучу и не создаёт строк и объектов на каждый счёт.
+ * Для поиска по номеру счёта при первом поиске строится индекс над записями снимка - по 8 байт на счёт.
+ * <p>
+ * Формат файла описан в {@link SnapshotStore}. Снимок только читается, поэтому его можно
+ * читать из нескольких потоков одновременно.
+ */
+public class Snapshot implements AutoCloseable {
+
+    /**
+     * Файл снимка.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Окна отображения файла, по {@link SnapshotStore#RECORDS_PER_WINDOW} записей.
+     */
+    private final MappedByteBuffer[] windows;
+
+    /**
+     * Номер последнего сегмента журнала, учтённого в снимке.
+     */
+    private final long segment;
+
+    /**
+     * Количество записей.
+     */
+    private final long size;
+
+    /**
+     * Индекс поиска по номеру счёта с открытой адресацией: номер записи + 1, 0 - пустая позиция.
+     * Строится при первом поиске.
+     */
+    private int[] index;
+
+    /**
+     * Открытие снимка.
+     *
+     * @param file Файл снимка.
+     * @throws IOException Если снимок не удалось прочитать или он повреждён.
+     */
+    public Snapshot(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SnapshotStore.HEADER_SIZE);
+            this.size = SnapshotStore.readHeader(header, channel.size());
+            this.segment = header.getLong(2 * Integer.BYTES);
+            this.windows = new MappedByteBuffer[(int) ((size + SnapshotStore.RECORDS_PER_WINDOW - 1)
+                    / SnapshotStore.RECORDS_PER_WINDOW)];
+            for (int i = 0; i < windows.length; i++) {
+                long first = (long) i * SnapshotStore.RECORDS_PER_WINDOW;
+                long records = Math.min(SnapshotStore.RECORDS_PER_WINDOW, size - first);
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, SnapshotStore.offset(first),
+                        records * SnapshotStore.RECORD_SIZE);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Получение количества записей (счетов) в снимке.
+     *
+     * @return Количество записей.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Получение номера последнего сегмента журнала, учтённого в снимке.
+     *
+     * @return Номер сегмента.
+     */
+    public long getSegment() {
+        return segment;
+    }
+
+    /**
+     * Получение номера счёта записи.
+     *
+     * @param record Номер записи.
+     * @return Номер счёта.
+     */
+    public String accountNumber(long record) {
+        byte[] number = new byte[SnapshotStore.MAX_NUMBER_LENGTH];
+        int length = accountNumber(record, number);
+        return new String(number, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Копирование номера счёта записи в байтах UTF-8 без создания строки.
+     *
+     * @param record Номер записи.
+     * @param target Массив не короче {@link SnapshotStore#MAX_NUMBER_LENGTH}.
+     * @return Длина номера в байтах.
+     */
+    int accountNumber(long record, byte[] target) {
+        MappedByteBuffer window = window(record);
+        int position = position(record);
+        int length = window.getShort(position);
+        window.get(position + Short.BYTES, target, 0, length);
+        return length;
+    }
+
+    /**
+     * Получение баланса записи.
+     *
+     * @param record Номер записи.
+     * @return Баланс в копейках.
+     */
+    public long balance(long record) {
+        return window(record).getLong(position(record) + Short.BYTES + SnapshotStore.MAX_NUMBER_LENGTH);
+    }
+
+    /**
+     * Получение признаков записи.
+     *
+     * @param record Номер записи.
+     * @return Признаки {@link SnapshotStore#FRAUD_FLAG} и {@link SnapshotStore#CLOSED_FLAG}.
+     */
+    long flags(long record) {
+        return window(record).getLong(position(record) + Short.BYTES + SnapshotStore.MAX_NUMBER_LENGTH + Long.BYTES);
+    }
+
+    /**
+     * Получение состояния счёта записи.
+     *
+     * @param record Номер записи.
+     * @return Состояние счёта.
+     */
+    public AccountState get(long record) {
+        long flags = flags(record);
+        return new AccountState(accountNumber(record), balance(record), (flags & SnapshotStore.FRAUD_FLAG) != 0,
+                (flags & SnapshotStore.CLOSED_FLAG) != 0);
+    }
+
+    /**
+     * Поиск записи по номеру счёта.
+     *
+     * @param accountNumber Номер счёта.
+     * @return Номер записи или -1, если счёта в снимке нет.
+     */
+    public long find(String accountNumber) {
+        byte[] number = accountNumber.getBytes(StandardCharsets.UTF_8);
+        int[] index = index();
+        int mask = index.length - 1;
+        byte[] candidate = new byte[SnapshotStore.MAX_NUMBER_LENGTH];
+        for (int position = hash(number, number.length) & mask; index[position] != 0;
+             position = (position + 1) & mask) {
+            long record = index[position] - 1;
+            int length = accountNumber(record, candidate);
+            if (Arrays.equals(number, 0, number.length, candidate, 0, length)) {
+                return record;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Получение индекса поиска, при первом обращении он строится просмотром всех записей.
+     *
+     * @return Индекс.
+     */
+    private synchronized int[] index() {
+        if (index == null) {
+            if (size > 1 << 29) {
+                throw new IllegalStateException("Слишком много счетов для индекса снимка: " + size);
+            }
+            int[] built = new int[Integer.highestOneBit((int) Math.max(size, 4) * 2 - 1) * 2];
+            int mask = built.length - 1;
+            byte[] number = new byte[SnapshotStore.MAX_NUMBER_LENGTH];
+            for (long record = 0; record < size; record++) {
+                int position = hash(number, accountNumber(record, number)) & mask;
+                while (built[position] != 0) {
+                    position = (position + 1) & mask;
+                }
+                built[position] = (int) record + 1;
+            }
+            index = built;
+        }
+        return index;
+    }
+
+    private MappedByteBuffer window(long record) {
+        if (record < 0 || record >= size) {
+            throw new IndexOutOfBoundsException("Нет записи снимка: " + record);
+        }
+        return windows[(int) (record / SnapshotStore.RECORDS_PER_WINDOW)];
+    }
+
+    private static int position(long record) {
+        return (int) (record % SnapshotStore.RECORDS_PER_WINDOW) * SnapshotStore.RECORD_SIZE;
+    }
+
+    private static int hash(byte[] number, int length) {
+        int h = 1;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + number[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
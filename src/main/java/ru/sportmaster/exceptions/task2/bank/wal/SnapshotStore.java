@@ -0,0 +1,490 @@
+package ru.sportmaster.exceptions.task2.bank.wal;
+
+import ru.sportmaster.exceptions.task2.bank.AccountLog;
+import ru.sportmaster.exceptions.task2.bank.AccountState;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Хранилище снимков состояния счетов и файлов журнала упреждающей записи в одном каталоге.
+ * <p>
+ * Журнал пишется сегментами wal-N.log с возрастающими номерами. Снимок snapshot.dat содержит
+ * состояния всех счетов на конец некоторого сегмента и номер этого сегмента. Восстановление -
+ * это загрузка снимка и применение всех более новых сегментов.
+ * <p>
+ * Снимок строится без остановки переводов: журнал переключается на новый сегмент (это и есть
+ * согласованная точка среза), после чего прежний снимок и закрытые сегменты, которые больше
+ * не меняются, сворачиваются в новый снимок в фоне. Живые объекты счетов при этом не читаются.
+ * Свёртка потоковая: в памяти собираются только изменения счетов из закрытых сегментов,
+ * а записи прежнего снимка по одной переносятся в новый.
+ * <p>
+ * Снимок - это заголовок и записи фиксированной длины (номер счёта, баланс, признаки). Снимок читается
+ * прямо из отображённой памяти ({@link Snapshot}), а пишется последовательно блоками записей.
+ */
+public class SnapshotStore {
+
+    /**
+     * Признак файла снимка.
+     */
+    private static final int MAGIC = 0x534E4150;
+
+    /**
+     * Размер заголовка снимка: признак, размер записи, номер сегмента, количество записей.
+     */
+    static final int HEADER_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES;
+
+    /**
+     * Максимальная длина номера счёта в байтах UTF-8.
+     */
+    static final int MAX_NUMBER_LENGTH = 62;
+
+    /**
+     * Размер записи снимка: длина номера (short), номер, баланс (long), признаки (long).
+     */
+    static final int RECORD_SIZE = Short.BYTES + MAX_NUMBER_LENGTH + 2 * Long.BYTES;
+
+    /**
+     * Признак мошеннического счёта в записи снимка.
+     */
+    static final long FRAUD_FLAG = 1;
+
+    /**
+     * Признак закрытого счёта в записи снимка.
+     */
+    static final long CLOSED_FLAG = 2;
+
+    /**
+     * Количество записей в одном отображаемом в память окне файла (окно не может превышать 2 ГБ).
+     */
+    static final int RECORDS_PER_WINDOW = (1 << 30) / RECORD_SIZE;
+
+    /**
+     * Количество записей в блоке, которым снимок пишется в файл.
+     */
+    private static final int RECORDS_PER_WRITE = 4096;
+
+    /**
+     * Каталог хранилища.
+     */
+    private final Path directory;
+
+    /**
+     * Создание хранилища в каталоге. Каталог создаётся, если его нет.
+     *
+     * @param directory Каталог хранилища.
+     * @throws IOException Если каталог не удалось создать.
+     */
+    public SnapshotStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    /**
+     * Получение пути к файлу снимка.
+     *
+     * @return Путь к файлу снимка.
+     */
+    public Path getSnapshotFile() {
+        return directory.resolve("snapshot.dat");
+    }
+
+    /**
+     * Получение пути к сегменту журнала.
+     *
+     * @param number Номер сегмента.
+     * @return Путь к сегменту.
+     */
+    public Path getSegment(long number) {
+        return directory.resolve(String.format("wal-%019d.log", number));
+    }
+
+    /**
+     * Получение пути к сегменту журнала, следующему за всеми существующими сегментами и снимком.
+     * В этот сегмент следует писать журнал после восстановления.
+     *
+     * @return Путь к новому сегменту.
+     * @throws IOException Если каталог не удалось прочитать.
+     */
+    public Path nextSegment() throws IOException {
+        long last = Files.exists(getSnapshotFile()) ? readSegmentNumber(getSnapshotFile()) : 0;
+        for (long segment : segments()) {
+            last = Math.max(last, segment);
+        }
+        return getSegment(last + 1);
+    }
+
+    /**
+     * Восстановление состояния счетов: загрузка снимка и применение всех сегментов журнала,
+     * которые новее снимка, в порядке номеров.
+     *
+     * @return Состояния счетов по номерам.
+     * @throws IOException Если снимок или журнал не удалось прочитать.
+     */
+    public Map<String, AccountState> recover() throws IOException {
+        Map<String, AccountState> accounts = new LinkedHashMap<>();
+        recover(new WriteAheadLog.StateFold(accounts));
+        return accounts;
+    }
+
+    /**
+     * Потоковое восстановление: записи снимка передаются получателю как открытия счетов,
+     * затем ему передаются изменения из всех сегментов журнала, которые новее снимка.
+     * Состояния счетов не собираются в памяти, поэтому так восстанавливается реестр
+     * на десятки миллионов счетов (см. {@link ru.sportmaster.exceptions.task2.bank.AccountRegistry#recovery()}).
+     *
+     * @param target Получатель состояний и изменений счетов.
+     * @throws IOException Если снимок или журнал не удалось прочитать.
+     */
+    public void recover(AccountLog target) throws IOException {
+        long covered = 0;
+        if (Files.exists(getSnapshotFile())) {
+            try (Snapshot snapshot = new Snapshot(getSnapshotFile())) {
+                covered = snapshot.getSegment();
+                for (long record = 0; record < snapshot.size(); record++) {
+                    target.opened(snapshot.get(record));
+                }
+            }
+        }
+        for (long segment : segments()) {
+            if (segment > covered) {
+                WriteAheadLog.replay(getSegment(segment), target);
+            }
+        }
+    }
+
+    /**
+     * Построение нового снимка. Журнал переключается на новый сегмент, после чего прежний снимок
+     * и все закрытые сегменты сворачиваются в новый снимок, а свёрнутые сегменты удаляются.
+     * В памяти собираются только изменения из закрытых сегментов, записи прежнего снимка переносятся
+     * в новый по одной. Журнал должен писаться в сегмент этого хранилища.
+     *
+     * @param log Журнал упреждающей записи.
+     * @throws IOException          Если снимок не удалось записать.
+     * @throws InterruptedException Если ожидание смены сегмента прервано.
+     */
+    public void checkpoint(WriteAheadLog log) throws IOException, InterruptedException {
+        Path next = nextSegment();
+        log.rotate(next);
+        long covered = segmentNumber(next) - 1;
+
+        try (Writer writer = new Writer(getSnapshotFile())) {
+            Changes changes = new Changes();
+            if (Files.exists(getSnapshotFile())) {
+                try (Snapshot previous = new Snapshot(getSnapshotFile())) {
+                    fold(previous.getSegment(), covered, changes);
+                    copy(previous, changes, writer);
+                }
+            } else {
+                fold(0, covered, changes);
+            }
+            for (Change change : changes.accounts.values()) {
+                if (!change.copied) {
+                    if (!change.opened) {
+                        throw new IOException("Журнал изменяет счёт, которого нет в снимке: "
+                                + new String(change.number, StandardCharsets.UTF_8));
+                    }
+                    writer.add(change.number, change.number.length, change.balance(0), change.flags(0));
+                }
+            }
+            writer.commit(covered);
+        }
+
+        for (long segment : segments()) {
+            if (segment <= covered) {
+                Files.delete(getSegment(segment));
+            }
+        }
+    }
+
+    /**
+     * Сбор изменений из сегментов журнала, которые новее прежнего снимка, но не новее указанного.
+     *
+     * @param folded  Номер последнего сегмента, учтённого в прежнем снимке.
+     * @param covered Номер последнего сворачиваемого сегмента.
+     * @param changes Изменения счетов.
+     * @throws IOException Если журнал не удалось прочитать.
+     */
+    private void fold(long folded, long covered, Changes changes) throws IOException {
+        for (long segment : segments()) {
+            if (segment > folded && segment <= covered) {
+                WriteAheadLog.replay(getSegment(segment), changes);
+            }
+        }
+    }
+
+    /**
+     * Перенос записей прежнего снимка в новый с применением изменений. Номер счёта записи
+     * копируется в общий массив и ищется среди изменений без создания строки.
+     *
+     * @param previous Прежний снимок.
+     * @param changes  Изменения счетов.
+     * @param writer   Новый снимок.
+     * @throws IOException Если снимок не удалось записать.
+     */
+    private static void copy(Snapshot previous, Changes changes, Writer writer) throws IOException {
+        byte[] number = new byte[MAX_NUMBER_LENGTH];
+        ByteBuffer key = ByteBuffer.wrap(number);
+        for (long record = 0; record < previous.size(); record++) {
+            int length = previous.accountNumber(record, number);
+            Change change = changes.accounts.get(key.limit(length));
+            long balance = previous.balance(record);
+            long flags = previous.flags(record);
+            if (change != null) {
+                change.copied = true;
+                balance = change.balance(balance);
+                flags = change.flags(flags);
+            }
+            writer.add(number, length, balance, flags);
+        }
+    }
+
+    /**
+     * Запись снимка. Снимок сперва пишется во временный файл, сбрасывается на диск и затем
+     * атомарно заменяет прежний, поэтому сбой при записи не портит имеющийся снимок.
+     *
+     * @param file    Файл снимка.
+     * @param segment Номер последнего сегмента журнала, учтённого в снимке.
+     * @param states  Состояния счетов.
+     * @throws IOException Если снимок не удалось записать.
+     */
+    public static void write(Path file, long segment, Collection<AccountState> states) throws IOException {
+        try (Writer writer = new Writer(file)) {
+            for (AccountState state : states) {
+                byte[] number = state.accountNumber().getBytes(StandardCharsets.UTF_8);
+                writer.add(number, number.length, state.balance(),
+                        (state.fraud() ? FRAUD_FLAG : 0) | (state.closed() ? CLOSED_FLAG : 0));
+            }
+            writer.commit(segment);
+        }
+    }
+
+    /**
+     * Запись снимка во временный файл блоками записей. Количество записей заранее неизвестно,
+     * поэтому заголовок пишется последним. Временный файл заменяет снимок при {@link #commit},
+     * а без него удаляется при закрытии.
+     */
+    private static final class Writer implements AutoCloseable {
+        private final Path file;
+        private final Path temporary;
+        private final FileChannel channel;
+        private final ByteBuffer block;
+        private long count;
+        private boolean committed;
+
+        Writer(Path file) throws IOException {
+            this.file = file;
+            this.temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            this.channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            this.channel.position(HEADER_SIZE);
+            this.block = ByteBuffer.allocateDirect(RECORDS_PER_WRITE * RECORD_SIZE);
+        }
+
+        void add(byte[] number, int length, long balance, long flags) throws IOException {
+            if (length > MAX_NUMBER_LENGTH) {
+                throw new IllegalArgumentException("Слишком длинный номер счёта: "
+                        + new String(number, 0, length, StandardCharsets.UTF_8));
+            }
+            if (!block.hasRemaining()) {
+                flush();
+            }
+            int start = block.position();
+            block.putShort((short) length);
+            block.put(number, 0, length);
+            block.position(start + Short.BYTES + MAX_NUMBER_LENGTH);
+            block.putLong(balance);
+            block.putLong(flags);
+            count++;
+        }
+
+        void commit(long segment) throws IOException {
+            flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(RECORD_SIZE);
+            header.putLong(segment);
+            header.putLong(count);
+            header.flip();
+            for (long position = 0; header.hasRemaining(); ) {
+                position += channel.write(header, position);
+            }
+            channel.force(false);
+            channel.close();
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        private void flush() throws IOException {
+            block.flip();
+            while (block.hasRemaining()) {
+                channel.write(block);
+            }
+            block.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                channel.close();
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    /**
+     * Изменения счетов из сворачиваемых сегментов журнала. Ключ - номер счёта в байтах UTF-8,
+     * поэтому изменение находится по номеру из записи снимка без создания строки.
+     */
+    private static final class Changes implements AccountLog {
+        private final Map<ByteBuffer, Change> accounts = new LinkedHashMap<>();
+
+        private Change change(String accountNumber) {
+            byte[] number = accountNumber.getBytes(StandardCharsets.UTF_8);
+            return accounts.computeIfAbsent(ByteBuffer.wrap(number), key -> new Change(number));
+        }
+
+        @Override
+        public void opened(AccountState state) {
+            Change change = change(state.accountNumber());
+            change.opened = true;
+            change.balance = state.balance();
+            change.flags = (state.fraud() ? FRAUD_FLAG : 0) | (state.closed() ? CLOSED_FLAG : 0);
+            change.delta = 0;
+            change.fraud = null;
+            change.closed = false;
+        }
+
+        @Override
+        public void balanceChanged(String accountNumber, long delta) {
+            change(accountNumber).delta += delta;
+        }
+
+        @Override
+        public void balancesChanged(long[] accountNumbers, long[] deltas, int count) {
+            for (int i = 0; i < count; i++) {
+                balanceChanged(Long.toString(accountNumbers[i]), deltas[i]);
+            }
+        }
+
+        @Override
+        public void fraudChanged(String accountNumber, boolean fraud) {
+            change(accountNumber).fraud = fraud;
+        }
+
+        @Override
+        public void closed(String accountNumber) {
+            change(accountNumber).closed = true;
+        }
+    }
+
+    /**
+     * Изменение одного счёта: состояние при последнем открытии в журнале (если было) и изменения после него.
+     */
+    private static final class Change {
+        final byte[] number;
+        boolean opened;
+        long balance;
+        long flags;
+        long delta;
+        Boolean fraud;
+        boolean closed;
+        boolean copied;
+
+        Change(byte[] number) {
+            this.number = number;
+        }
+
+        long balance(long base) {
+            return (opened ? balance : base) + delta;
+        }
+
+        long flags(long base) {
+            long result = opened ? flags : base;
+            if (fraud != null) {
+                result = fraud ? result | FRAUD_FLAG : result & ~FRAUD_FLAG;
+            }
+            return closed ? result | CLOSED_FLAG : result;
+        }
+    }
+
+
+    /**
+     * Смещение записи снимка в файле.
+     *
+     * @param record Номер записи.
+     * @return Смещение в байтах.
+     */
+    static long offset(long record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    /**
+     * Чтение номера последнего сегмента журнала, учтённого в снимке.
+     *
+     * @param file Файл снимка.
+     * @return Номер сегмента.
+     * @throws IOException Если снимок не удалось прочитать или он повреждён.
+     */
+    private static long readSegmentNumber(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            readHeader(buffer, channel.size());
+            return buffer.getLong(2 * Integer.BYTES);
+        }
+    }
+
+    /**
+     * Проверка заголовка снимка.
+     *
+     * @param buffer Отображённый в память снимок.
+     * @param size   Размер файла снимка.
+     * @return Количество записей в снимке.
+     * @throws IOException Если снимок повреждён.
+     */
+    static long readHeader(MappedByteBuffer buffer, long size) throws IOException {
+        if (size < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != RECORD_SIZE) {
+            throw new IOException("Файл не является снимком счетов");
+        }
+        buffer.getLong();
+        long count = buffer.getLong();
+        if (size != HEADER_SIZE + count * RECORD_SIZE) {
+            throw new IOException("Снимок счетов повреждён");
+        }
+        return count;
+    }
+
+    /**
+     * Получение номеров существующих сегментов журнала по возрастанию.
+     *
+     * @return Номера сегментов.
+     * @throws IOException Если каталог не удалось прочитать.
+     */
+    private List<Long> segments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(Path::getFileName).map(Path::toString)
+                    .filter(name -> name.startsWith("wal-") && name.endsWith(".log"))
+                    .forEach(name -> segments.add(segmentNumber(directory.resolve(name))));
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private static long segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring("wal-".length(), name.length() - ".log".length()));
+    }
+}
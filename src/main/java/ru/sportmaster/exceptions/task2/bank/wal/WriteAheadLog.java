@@ -0,0 +1,736 @@
+package ru.sportmaster.exceptions.task2.bank.wal;
+
+import ru.sportmaster.exceptions.task2.bank.AccountLog;
+import ru.sportmaster.exceptions.task2.bank.AccountState;
+import ru.sportmaster.exceptions.task2.bank.journal.TransactionJournal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Журнал упреждающей записи (WAL) - двоичный журнал всех применённых к счетам изменений
+ * и итогов транзакций. Используется как журнал счетов ({@link AccountLog}) и как журнал транзакций.
+ * <p>
+ * Записи копируются в буфер в памяти под короткой блокировкой, а фоновый поток пишет накопленные
+ * записи в файл группами (group commit), при необходимости со сбросом на диск (fsync) на каждую группу,
+ * а не на каждый перевод. Пока один буфер пишется в файл, записи принимаются во второй.
+ * Перевод подтверждается через {@link #whenDurable}: ожидающие действия хранятся по номерам записей
+ * и после записи группы, которая их покрывает, передаются в отдельный виртуальный поток. Поток записи
+ * не выполняет код вызывающих, поэтому продолжение подтверждённого перевода может само ждать журнал.
+ * <p>
+ * Формат записи: длина данных (int), контрольная сумма CRC32C данных (int), данные: тип записи (byte)
+ * и поля. При восстановлении чтение останавливается на первой неполной или повреждённой записи -
+ * это хвост, не успевший попасть на диск до сбоя.
+ */
+public class WriteAheadLog implements AccountLog, TransactionJournal, AutoCloseable {
+
+    /**
+     * Тип записи: открытие или восстановление счёта.
+     */
+    private static final byte OPENED = 1;
+
+    /**
+     * Тип записи: изменение баланса.
+     */
+    private static final byte BALANCE_CHANGED = 2;
+
+    /**
+     * Тип записи: изменение признака мошеннического счёта.
+     */
+    private static final byte FRAUD_CHANGED = 3;
+
+    /**
+     * Тип записи: закрытие счёта.
+     */
+    private static final byte CLOSED = 4;
+
+    /**
+     * Тип записи: итог транзакции.
+     */
+    private static final byte TRANSACTION = 5;
+
+    /**
+     * Тип записи: изменение балансов группы счетов с числовыми номерами.
+     */
+    private static final byte BALANCES_CHANGED = 6;
+
+    /**
+     * Размер заголовка записи: длина и контрольная сумма.
+     */
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+    /**
+     * Файл журнала, в который сейчас пишутся записи. Используется только фоновым потоком.
+     */
+    private FileChannel channel;
+
+    /**
+     * Путь к файлу журнала, в который сейчас пишутся записи.
+     */
+    private volatile Path file;
+
+    /**
+     * Максимальная задержка записи группы в файл в наносекундах.
+     */
+    private final long syncIntervalNanos;
+
+    /**
+     * Признак сброса файла на диск после записи каждой группы.
+     */
+    private final boolean fsync;
+
+    /**
+     * Максимальное количество изменений балансов в одной записи группы, чтобы запись помещалась в буфер.
+     */
+    private final int maxBatch;
+
+    /**
+     * Блокировка буфера записей.
+     */
+    private final ReentrantLock lock;
+
+    /**
+     * Условие: в буфере появились записи, либо журнал закрывается.
+     */
+    private final Condition hasRecords;
+
+    /**
+     * Условие: буфер записан в файл (освободилось место, либо записи стали надёжными).
+     */
+    private final Condition written;
+
+    /**
+     * Буфер, в который принимаются записи.
+     */
+    private ByteBuffer active;
+
+    /**
+     * Буфер, который пишется в файл фоновым потоком.
+     */
+    private ByteBuffer flushing;
+
+    /**
+     * Номер последней принятой записи.
+     */
+    private long appendedLsn;
+
+    /**
+     * Номер последней записи, которая записана в файл (и сброшена на диск, если включён fsync).
+     */
+    private volatile long durableLsn;
+
+    /**
+     * Признак закрытия журнала.
+     */
+    private boolean closed;
+
+    /**
+     * Новый файл журнала при запрошенной смене файла, null - смена не запрошена.
+     */
+    private FileChannel nextChannel;
+
+    /**
+     * Путь к новому файлу журнала при запрошенной смене файла.
+     */
+    private Path nextFile;
+
+    /**
+     * Позиция в буфере записей, с которой записи должны попасть в новый файл.
+     */
+    private int rotatePosition;
+
+    /**
+     * Ошибка записи в файл.
+     */
+    private volatile IOException failure;
+
+    /**
+     * Действия, ожидающие надёжного сохранения записей, в порядке возрастания номеров записей.
+     */
+    private final ArrayDeque<Waiter> waiters;
+
+    /**
+     * Фоновый поток записи групп.
+     */
+    private final Thread writer;
+
+    /**
+     * Исполнитель действий, ожидающих надёжного сохранения записей: каждая записанная группа
+     * подтверждается в своём виртуальном потоке.
+     */
+    private final ExecutorService notifier;
+
+    /**
+     * Открытие журнала. Записи дописываются в конец файла.
+     *
+     * @param file               Файл журнала.
+     * @param bufferSize         Размер буфера группы в байтах.
+     * @param syncIntervalMillis Максимальная задержка записи группы в файл в миллисекундах.
+     * @param fsync              Сбрасывать ли файл на диск после записи каждой группы.
+     * @throws IOException Если файл не удалось открыть.
+     */
+    public WriteAheadLog(Path file, int bufferSize, long syncIntervalMillis, boolean fsync) throws IOException {
+        this.channel = open(file);
+        this.file = file;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+        this.fsync = fsync;
+        this.maxBatch = Math.max(1, (bufferSize - HEADER_SIZE - 1 - Integer.BYTES) / (2 * Long.BYTES));
+        this.lock = new ReentrantLock();
+        this.hasRecords = lock.newCondition();
+        this.written = lock.newCondition();
+        this.active = ByteBuffer.allocateDirect(bufferSize);
+        this.flushing = ByteBuffer.allocateDirect(bufferSize);
+        this.waiters = new ArrayDeque<>();
+        this.notifier = Executors.newVirtualThreadPerTaskExecutor();
+        this.writer = new Thread(this::writeGroups, "write-ahead-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public void opened(AccountState state) {
+        byte[] number = bytes(state.accountNumber());
+        ByteBuffer record = record(OPENED, Short.BYTES + number.length + Long.BYTES + 2);
+        putString(record, number);
+        record.putLong(state.balance());
+        record.put((byte) (state.fraud() ? 1 : 0));
+        record.put((byte) (state.closed() ? 1 : 0));
+        append(record);
+    }
+
+    @Override
+    public void balanceChanged(String accountNumber, long delta) {
+        byte[] number = bytes(accountNumber);
+        ByteBuffer record = record(BALANCE_CHANGED, Short.BYTES + number.length + Long.BYTES);
+        putString(record, number);
+        record.putLong(delta);
+        append(record);
+    }
+
+    /**
+     * Изменения балансов группы пишутся одной записью (или несколькими, если группа больше буфера):
+     * номер счёта и изменение - по 8 байт.
+     */
+    @Override
+    public void balancesChanged(long[] accountNumbers, long[] deltas, int count) {
+        for (int from = 0; from < count; from += maxBatch) {
+            int size = Math.min(maxBatch, count - from);
+            ByteBuffer record = record(BALANCES_CHANGED, Integer.BYTES + size * 2 * Long.BYTES);
+            record.putInt(size);
+            for (int i = from; i < from + size; i++) {
+                record.putLong(accountNumbers[i]);
+                record.putLong(deltas[i]);
+            }
+            append(record);
+        }
+    }
+
+    @Override
+    public void fraudChanged(String accountNumber, boolean fraud) {
+        byte[] number = bytes(accountNumber);
+        ByteBuffer record = record(FRAUD_CHANGED, Short.BYTES + number.length + 1);
+        putString(record, number);
+        record.put((byte) (fraud ? 1 : 0));
+        append(record);
+    }
+
+    @Override
+    public void closed(String accountNumber) {
+        byte[] number = bytes(accountNumber);
+        ByteBuffer record = record(CLOSED, Short.BYTES + number.length);
+        putString(record, number);
+        append(record);
+    }
+
+    @Override
+    public void record(String transactionId, String senderAccount, String receiverAccount, long amount,
+                       boolean successful) {
+        byte[] id = bytes(transactionId);
+        byte[] sender = bytes(senderAccount);
+        byte[] receiver = bytes(receiverAccount);
+        ByteBuffer record = record(TRANSACTION,
+                3 * Short.BYTES + id.length + sender.length + receiver.length + Long.BYTES + 1);
+        putString(record, id);
+        putString(record, sender);
+        putString(record, receiver);
+        record.putLong(amount);
+        record.put((byte) (successful ? 1 : 0));
+        append(record);
+    }
+
+    /**
+     * Получение номера последней записи, которая уже надёжно сохранена.
+     *
+     * @return Номер записи.
+     */
+    public long getDurableLsn() {
+        return durableLsn;
+    }
+
+    /**
+     * Получение пути к файлу журнала, в который сейчас пишутся записи.
+     *
+     * @return Путь к файлу.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Смена файла журнала. Все записи, принятые до вызова, остаются в прежнем файле, который
+     * сбрасывается на диск и закрывается, все последующие - пишутся в новый файл.
+     * Приём записей на время смены не останавливается. Метод возвращает управление после смены файла.
+     *
+     * @param next Новый файл журнала.
+     * @throws IOException          Если новый файл не удалось открыть.
+     * @throws InterruptedException Если ожидание прервано.
+     */
+    public void rotate(Path next) throws IOException, InterruptedException {
+        FileChannel nextChannel = open(next);
+        lock.lock();
+        try {
+            while (this.nextChannel != null) {
+                written.await();
+            }
+            if (closed) {
+                nextChannel.close();
+                throw new IllegalStateException("Журнал упреждающей записи закрыт");
+            }
+            this.nextChannel = nextChannel;
+            this.nextFile = next;
+            this.rotatePosition = active.position();
+            hasRecords.signal();
+            while (this.nextChannel == nextChannel && failure == null) {
+                written.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+        throwIfFailed();
+    }
+
+    /**
+     * Ожидание, пока все принятые на данный момент записи будут надёжно сохранены.
+     *
+     * @throws InterruptedException Если ожидание прервано.
+     */
+    public void sync() throws InterruptedException {
+        lock.lock();
+        try {
+            long lsn = appendedLsn;
+            hasRecords.signal();
+            while (durableLsn < lsn && failure == null) {
+                written.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+        throwIfFailed();
+    }
+
+    /**
+     * Действие выполняется после записи группы, в которую попала последняя принятая запись,
+     * без отдельного сброса на диск: так подтверждения переводов собираются в группы так же, как записи.
+     * Действия группы выполняются в виртуальном потоке, а не в потоке записи, поэтому могут ждать журнал.
+     * Если все принятые записи уже сохранены, то действие выполняется сразу в вызывающем потоке.
+     */
+    @Override
+    public void whenDurable(Consumer<Throwable> action) {
+        Throwable error;
+        lock.lock();
+        try {
+            error = failure != null ? new UncheckedIOException(failure) : null;
+            if (error == null && durableLsn < appendedLsn) {
+                waiters.add(new Waiter(appendedLsn, action));
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        action.accept(error);
+    }
+
+    /**
+     * Создание записи: под заголовок оставляется место, оно заполняется при добавлении в буфер.
+     *
+     * @param type Тип записи.
+     * @param size Размер полей записи.
+     * @return Буфер записи.
+     */
+    private static ByteBuffer record(byte type, int size) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + 1 + size);
+        record.position(HEADER_SIZE);
+        record.put(type);
+        return record;
+    }
+
+    /**
+     * Добавление записи в буфер. Если в буфере нет места, то ждём, пока фоновый поток его освободит.
+     *
+     * @param record Запись.
+     * @return Номер записи.
+     */
+    private long append(ByteBuffer record) {
+        throwIfFailed();
+        int length = record.position() - HEADER_SIZE;
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), HEADER_SIZE, length);
+        record.putInt(0, length);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        record.flip();
+
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Журнал упреждающей записи закрыт");
+            }
+            if (record.remaining() > active.capacity()) {
+                throw new IllegalArgumentException("Запись больше буфера журнала: " + record.remaining());
+            }
+            while (active.remaining() < record.remaining()) {
+                hasRecords.signal();
+                written.awaitUninterruptibly();
+                throwIfFailed();
+            }
+            active.put(record);
+            hasRecords.signal();
+            return ++appendedLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Цикл фонового потока: ждёт, пока буфер заполнится наполовину, но не дольше интервала сброса
+     * с момента появления первой записи группы, меняет буферы местами
+     * и пишет группу в файл за одну операцию.
+     */
+    private void writeGroups() {
+        while (true) {
+            long lsn;
+            FileChannel next;
+            Path nextPath;
+            int cut;
+            List<Waiter> ready;
+            lock.lock();
+            try {
+                long deadline = System.nanoTime() + syncIntervalNanos;
+                while (!closed && nextChannel == null && active.position() <= active.capacity() / 2) {
+                    if (active.position() == 0) {
+                        hasRecords.await();
+                        deadline = System.nanoTime() + syncIntervalNanos;
+                    } else {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        hasRecords.awaitNanos(remaining);
+                    }
+                }
+                if (closed && nextChannel == null && active.position() == 0) {
+                    return;
+                }
+                ByteBuffer group = active;
+                active = flushing;
+                flushing = group;
+                lsn = appendedLsn;
+                next = nextChannel;
+                nextPath = nextFile;
+                cut = rotatePosition;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            flushing.flip();
+            try {
+                if (next != null) {
+                    write(flushing.duplicate().limit(cut));
+                    channel.force(false);
+                    channel.close();
+                    channel = next;
+                    file = nextPath;
+                    flushing.position(cut);
+                }
+                write(flushing);
+                if (fsync) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            flushing.clear();
+
+            lock.lock();
+            try {
+                durableLsn = lsn;
+                if (next != null) {
+                    nextChannel = null;
+                    nextFile = null;
+                }
+                ready = takeWaiters(lsn);
+                written.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (!ready.isEmpty()) {
+                Throwable error = failure != null ? new UncheckedIOException(failure) : null;
+                notifier.execute(() -> {
+                    for (Waiter waiter : ready) {
+                        waiter.action().accept(error);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Извлечение действий, ожидающих записей не новее указанной. После ошибки записи
+     * извлекаются все действия: их записи уже не будут сохранены. Вызывается под блокировкой.
+     *
+     * @param lsn Номер последней записанной записи.
+     * @return Действия для выполнения вне блокировки.
+     */
+    private List<Waiter> takeWaiters(long lsn) {
+        if (waiters.isEmpty()) {
+            return List.of();
+        }
+        List<Waiter> ready = new ArrayList<>();
+        while (!waiters.isEmpty() && (failure != null || waiters.peekFirst().lsn() <= lsn)) {
+            ready.add(waiters.pollFirst());
+        }
+        return ready;
+    }
+
+    /**
+     * Закрытие журнала: дожидается записи всех принятых записей и выполнения ожидавших их действий
+     * и закрывает файл.
+     *
+     * @throws IOException Если при записи журнала произошла ошибка.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            hasRecords.signal();
+        } finally {
+            lock.unlock();
+        }
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        notifier.close();
+        channel.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Восстановление состояния счетов по журналу.
+     *
+     * @param file Файл журнала.
+     * @return Состояния счетов по номерам в порядке открытия.
+     * @throws IOException Если журнал не удалось прочитать.
+     */
+    public static Map<String, AccountState> replay(Path file) throws IOException {
+        return replay(file, Map.of());
+    }
+
+    /**
+     * Восстановление состояния счетов: к исходным состояниям (например, из снимка) применяются
+     * все целые записи журнала по порядку. Итоги транзакций на состояние не влияют и пропускаются.
+     *
+     * @param file    Файл журнала.
+     * @param initial Исходные состояния счетов.
+     * @return Состояния счетов по номерам.
+     * @throws IOException Если журнал не удалось прочитать.
+     */
+    public static Map<String, AccountState> replay(Path file, Map<String, AccountState> initial) throws IOException {
+        Map<String, AccountState> accounts = new LinkedHashMap<>(initial);
+        replay(file, new StateFold(accounts));
+        return accounts;
+    }
+
+    /**
+     * Потоковое восстановление: все целые записи журнала по порядку передаются получателю
+     * как уведомления журнала счетов, состояния счетов при этом не собираются в памяти.
+     * Так журнал применяется прямо к хранилищу счетов, например к реестру или к сворачиваемому снимку.
+     * Итоги транзакций пропускаются.
+     *
+     * @param file   Файл журнала.
+     * @param target Получатель изменений счетов.
+     * @throws IOException Если журнал не удалось прочитать.
+     */
+    public static void replay(Path file, AccountLog target) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(file));
+        CRC32C crc = new CRC32C();
+        while (log.remaining() >= HEADER_SIZE) {
+            int length = log.getInt();
+            int checksum = log.getInt();
+            if (length <= 0 || length > log.remaining()) {
+                break;
+            }
+            crc.reset();
+            crc.update(log.array(), log.position(), length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            ByteBuffer data = log.slice(log.position(), length);
+            log.position(log.position() + length);
+            apply(target, data);
+        }
+    }
+
+    /**
+     * Передача одной записи журнала получателю изменений.
+     *
+     * @param target Получатель изменений счетов.
+     * @param data   Данные записи.
+     */
+    private static void apply(AccountLog target, ByteBuffer data) {
+        byte type = data.get();
+        if (type == TRANSACTION) {
+            return;
+        }
+        if (type == BALANCES_CHANGED) {
+            int count = data.getInt();
+            long[] numbers = new long[count];
+            long[] deltas = new long[count];
+            for (int i = 0; i < count; i++) {
+                numbers[i] = data.getLong();
+                deltas[i] = data.getLong();
+            }
+            target.balancesChanged(numbers, deltas, count);
+            return;
+        }
+        String number = getString(data);
+        switch (type) {
+            case OPENED -> target.opened(new AccountState(number, data.getLong(), data.get() != 0, data.get() != 0));
+            case BALANCE_CHANGED -> target.balanceChanged(number, data.getLong());
+            case FRAUD_CHANGED -> target.fraudChanged(number, data.get() != 0);
+            case CLOSED -> target.closed(number);
+            default -> throw new IllegalStateException("Неизвестный тип записи журнала: " + type);
+        }
+    }
+
+    /**
+     * Применение изменений к состояниям счетов в памяти.
+     */
+    static final class StateFold implements AccountLog {
+        private final Map<String, AccountState> accounts;
+
+        StateFold(Map<String, AccountState> accounts) {
+            this.accounts = accounts;
+        }
+
+        @Override
+        public void opened(AccountState state) {
+            accounts.put(state.accountNumber(), state);
+        }
+
+        @Override
+        public void balanceChanged(String accountNumber, long delta) {
+            AccountState state = accounts.get(accountNumber);
+            accounts.put(accountNumber, new AccountState(accountNumber, state.balance() + delta, state.fraud(),
+                    state.closed()));
+        }
+
+        @Override
+        public void balancesChanged(long[] accountNumbers, long[] deltas, int count) {
+            for (int i = 0; i < count; i++) {
+                balanceChanged(Long.toString(accountNumbers[i]), deltas[i]);
+            }
+        }
+
+        @Override
+        public void fraudChanged(String accountNumber, boolean fraud) {
+            AccountState state = accounts.get(accountNumber);
+            accounts.put(accountNumber, new AccountState(accountNumber, state.balance(), fraud, state.closed()));
+        }
+
+        @Override
+        public void closed(String accountNumber) {
+            AccountState state = accounts.get(accountNumber);
+            accounts.put(accountNumber, new AccountState(accountNumber, state.balance(), state.fraud(), true));
+        }
+    }
+
+    /**
+     * Запись данных в текущий файл журнала.
+     *
+     * @param data Данные для записи.
+     * @throws IOException Если запись не удалась.
+     */
+    private void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    /**
+     * Действие, ожидающее надёжного сохранения записи.
+     *
+     * @param lsn    Номер записи.
+     * @param action Действие.
+     */
+    private record Waiter(long lsn, Consumer<Throwable> action) {
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void throwIfFailed() {
+        IOException error = failure;
+        if (error != null) {
+            throw new UncheckedIOException(error);
+        }
+    }
+
+    private static byte[] bytes(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] string) {
+        buffer.putShort((short) string.length);
+        buffer.put(string);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] string = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(string);
+        return new String(string, StandardCharsets.UTF_8);
+    }
+}